@@ -0,0 +1,59 @@
+plugins {
+    alias(libs.plugins.jetbrainsKotlinJvm)
+
+    `maven-publish`
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_17
+    targetCompatibility = JavaVersion.VERSION_17
+
+    withSourcesJar()
+}
+
+kotlin {
+    jvmToolchain(17)
+}
+
+dependencies {
+    implementation(libs.ksp.api)
+    implementation(libs.kotlinpoet)
+    implementation(libs.kotlinpoet.ksp)
+
+    testImplementation(libs.junit)
+    testImplementation(libs.kotlin.compile.testing.ksp)
+}
+
+//---------- maven upload info -----------------------------------
+
+val versionName = "1.0.7"
+
+publishing {
+    publications {
+        create<MavenPublication>("release") {
+            from(components["java"])
+            groupId = "io.github.limuyang2"
+            artifactId = "msnet-compiler"
+            version = versionName
+
+            pom {
+                name.value("msnet-compiler")
+                description.value("KSP processor generating msnet service implementations.")
+                url.value("https://github.com/limuyang2/msnet")
+
+                licenses {
+                    license {
+                        name.value("The MIT License")
+                        url.value("https://github.com/limuyang2/msnet/blob/main/LICENSE")
+                    }
+                }
+            }
+        }
+    }
+
+    repositories {
+        maven {
+            setUrl("$rootDir/RepoDir")
+        }
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet.compiler
+
+import com.google.devtools.ksp.getVisibility
+import com.google.devtools.ksp.isLocal
+import com.google.devtools.ksp.processing.CodeGenerator
+import com.google.devtools.ksp.processing.Dependencies
+import com.google.devtools.ksp.processing.KSPLogger
+import com.google.devtools.ksp.processing.Resolver
+import com.google.devtools.ksp.processing.SymbolProcessor
+import com.google.devtools.ksp.symbol.ClassKind
+import com.google.devtools.ksp.symbol.KSAnnotated
+import com.google.devtools.ksp.symbol.KSClassDeclaration
+import com.google.devtools.ksp.symbol.KSFunctionDeclaration
+import com.google.devtools.ksp.symbol.KSType
+import com.google.devtools.ksp.symbol.KSTypeAlias
+import com.google.devtools.ksp.symbol.KSValueParameter
+import com.google.devtools.ksp.symbol.Modifier
+import com.google.devtools.ksp.symbol.Nullability
+import com.google.devtools.ksp.symbol.Visibility
+import com.google.devtools.ksp.validate
+import com.squareup.kotlinpoet.ANY
+import com.squareup.kotlinpoet.ARRAY
+import com.squareup.kotlinpoet.AnnotationSpec
+import com.squareup.kotlinpoet.BOOLEAN
+import com.squareup.kotlinpoet.BOOLEAN_ARRAY
+import com.squareup.kotlinpoet.BYTE
+import com.squareup.kotlinpoet.BYTE_ARRAY
+import com.squareup.kotlinpoet.CHAR
+import com.squareup.kotlinpoet.CHAR_ARRAY
+import com.squareup.kotlinpoet.ClassName
+import com.squareup.kotlinpoet.CodeBlock
+import com.squareup.kotlinpoet.DOUBLE
+import com.squareup.kotlinpoet.DOUBLE_ARRAY
+import com.squareup.kotlinpoet.FLOAT
+import com.squareup.kotlinpoet.FLOAT_ARRAY
+import com.squareup.kotlinpoet.FileSpec
+import com.squareup.kotlinpoet.FunSpec
+import com.squareup.kotlinpoet.INT
+import com.squareup.kotlinpoet.INT_ARRAY
+import com.squareup.kotlinpoet.KModifier
+import com.squareup.kotlinpoet.LambdaTypeName
+import com.squareup.kotlinpoet.LONG
+import com.squareup.kotlinpoet.LONG_ARRAY
+import com.squareup.kotlinpoet.MemberName
+import com.squareup.kotlinpoet.ParameterSpec
+import com.squareup.kotlinpoet.ParameterizedTypeName.Companion.parameterizedBy
+import com.squareup.kotlinpoet.PropertySpec
+import com.squareup.kotlinpoet.SHORT
+import com.squareup.kotlinpoet.SHORT_ARRAY
+import com.squareup.kotlinpoet.TypeName
+import com.squareup.kotlinpoet.TypeSpec
+import com.squareup.kotlinpoet.ksp.addOriginatingKSFile
+import com.squareup.kotlinpoet.ksp.toClassName
+import com.squareup.kotlinpoet.ksp.toTypeName
+import com.squareup.kotlinpoet.ksp.writeTo
+
+/**
+ * Generates a concrete implementation for every interface declaring msnet service methods.
+ *
+ * The generated class resolves each interface [java.lang.reflect.Method] on its first call, and
+ * forwards calls to the function [msnet.MSNet.create] passes to its constructor, instead of going
+ * through a [java.lang.reflect.Proxy] and its `InvocationHandler`. Converters depend on the
+ * factories of the [msnet.MSNet] instance, so the `ParameterHandler` chain and converters of each
+ * method are built by `MSNet.create` on its dispatch executor as soon as it creates the generated
+ * class, and are ready by the time the methods are first called.
+ *
+ * Each generated class comes with its own R8 rules in `META-INF/proguard`, keeping the name of its
+ * interface, nested or not, that the class is looked up by.
+ */
+class MSNetProcessor(
+    private val codeGenerator: CodeGenerator,
+    private val logger: KSPLogger
+) : SymbolProcessor {
+
+    private val generated = HashSet<String>()
+
+    override fun process(resolver: Resolver): List<KSAnnotated> {
+        val deferred = ArrayList<KSAnnotated>()
+        val services = LinkedHashSet<KSClassDeclaration>()
+        for (annotation in HTTP_ANNOTATIONS) {
+            for (symbol in resolver.getSymbolsWithAnnotation(annotation)) {
+                if (!symbol.validate()) {
+                    deferred.add(symbol)
+                    continue
+                }
+                val function = symbol as? KSFunctionDeclaration ?: continue
+                val service = function.parentDeclaration as? KSClassDeclaration ?: continue
+                if (service.classKind == ClassKind.INTERFACE) {
+                    services.add(service)
+                }
+            }
+        }
+
+        for (service in services) {
+            if (generated.add(service.qualifiedName!!.asString())) {
+                generate(service)
+            }
+        }
+        return deferred
+    }
+
+    private fun generate(service: KSClassDeclaration) {
+        if (service.typeParameters.isNotEmpty()) {
+            logger.error("Type parameters are unsupported on ${service.qualifiedName!!.asString()}", service)
+            return
+        }
+        val visibility = service.getVisibility()
+        if (service.isLocal() || visibility == Visibility.PRIVATE || visibility == Visibility.PROTECTED) {
+            // Not reachable from a top level class, MSNet falls back to the proxy.
+            return
+        }
+
+        val serviceName = service.toClassName()
+        val implementationName = ClassName(
+            serviceName.packageName,
+            serviceName.simpleNames.joinToString("_") + SUFFIX
+        )
+
+        val companion = TypeSpec.companionObjectBuilder()
+            .addModifiers(KModifier.PRIVATE)
+        val implementation = TypeSpec.classBuilder(implementationName)
+            .addSuperinterface(serviceName)
+            .primaryConstructor(
+                FunSpec.constructorBuilder().addParameter("invoker", INVOKER).build()
+            )
+            .addProperty(
+                PropertySpec.builder("invoker", INVOKER, KModifier.PRIVATE)
+                    .initializer("invoker")
+                    .build()
+            )
+        if (visibility == Visibility.INTERNAL) {
+            implementation.addModifiers(KModifier.INTERNAL)
+        }
+        service.containingFile?.let { implementation.addOriginatingKSFile(it) }
+
+        val functions = service.getAllFunctions().filter { it.isAbstract }.toList()
+        for ((index, function) in functions.withIndex()) {
+            val methodField = "METHOD_$index"
+            val methodLookup = methodLookup(serviceName, function) ?: return
+            // Resolved on first use, so creating the service does not look up every method.
+            companion.addProperty(
+                PropertySpec.builder(methodField, METHOD)
+                    .delegate("lazy(%T.PUBLICATION) { %L }", LAZY_THREAD_SAFETY_MODE, methodLookup)
+                    .build()
+            )
+            implementation.addFunction(overrideFunction(function, methodField))
+        }
+        implementation.addType(companion.build())
+
+        FileSpec.builder(implementationName)
+            .addAnnotation(
+                AnnotationSpec.builder(Suppress::class)
+                    .addMember("%S, %S", "UNCHECKED_CAST", "RedundantVisibilityModifier")
+                    .build()
+            )
+            .addType(implementation.build())
+            .build()
+            .writeTo(codeGenerator, aggregating = false)
+        writeKeepRules(service, serviceName, implementationName)
+    }
+
+    /**
+     * Writes the R8 rules keeping the name of `serviceName` while its implementation is used. The
+     * wildcard rules shipped with msnet cannot map a nested interface, `Outer$Api`, to its
+     * implementation, `Outer_Api_MSNetImpl`.
+     */
+    private fun writeKeepRules(
+        service: KSClassDeclaration,
+        serviceName: ClassName,
+        implementationName: ClassName
+    ) {
+        val dependencies = Dependencies(false, *listOfNotNull(service.containingFile).toTypedArray())
+        val implementation = implementationName.reflectionName()
+        codeGenerator.createNewFileByPath(
+            dependencies,
+            "META-INF/proguard/msnet-$implementation",
+            "pro"
+        ).bufferedWriter().use { writer ->
+            writer.write(
+                """
+                |-if class $implementation
+                |-keepnames interface ${serviceName.reflectionName()}
+                |-keep class $implementation {
+                |    <init>(kotlin.jvm.functions.Function2);
+                |}
+                |""".trimMargin()
+            )
+        }
+    }
+
+    /** Builds `Service::class.java.getMethod(name, parameterTypes...)`, the JVM signature of `function`. */
+    private fun methodLookup(serviceName: ClassName, function: KSFunctionDeclaration): CodeBlock? {
+        val name = function.simpleName.asString()
+        if (function.typeParameters.isNotEmpty()) {
+            logger.error("Method return type must not include a type variable or wildcard", function)
+            return null
+        }
+
+        val code = CodeBlock.builder().add("%T::class.java.getMethod(%S", serviceName, name)
+        for (parameter in function.parameters) {
+            val literal = classLiteral(parameter) ?: return null
+            code.add(", ").add(literal)
+        }
+        if (Modifier.SUSPEND in function.modifiers) {
+            code.add(", %T::class.java", CONTINUATION)
+        }
+        return code.add(")").build()
+    }
+
+    private fun classLiteral(parameter: KSValueParameter): CodeBlock? {
+        val type = resolve(parameter.type.resolve())
+        val className = rawName(type, parameter) ?: return null
+        if (parameter.isVararg) {
+            val primitiveArray = PRIMITIVE_ARRAYS[className]
+            return if (primitiveArray != null && type.nullability == Nullability.NOT_NULL) {
+                CodeBlock.of("%T::class.java", primitiveArray)
+            } else {
+                CodeBlock.of("%T::class.java", ARRAY.parameterizedBy(type.makeNotNullable().toTypeName()))
+            }
+        }
+        return when {
+            className == ARRAY ->
+                CodeBlock.of("%T::class.java", type.makeNotNullable().toTypeName())
+            className !in PRIMITIVE_ARRAYS ->
+                CodeBlock.of("%T::class.java", className)
+            // Java primitives surface as not-null, boxed types as nullable or platform types.
+            type.nullability == Nullability.NOT_NULL ->
+                CodeBlock.of("%T::class.javaPrimitiveType!!", className)
+            else ->
+                CodeBlock.of("%T::class.javaObjectType", className)
+        }
+    }
+
+    private fun rawName(type: KSType, parameter: KSValueParameter): ClassName? {
+        val declaration = type.declaration as? KSClassDeclaration
+        if (declaration == null) {
+            logger.error("Parameter type must not include a type variable or wildcard", parameter)
+            return null
+        }
+        if (Modifier.INLINE in declaration.modifiers || Modifier.VALUE in declaration.modifiers) {
+            logger.error("Value class parameters are unsupported", parameter)
+            return null
+        }
+        return declaration.toClassName()
+    }
+
+    private fun resolve(type: KSType): KSType {
+        val declaration = type.declaration
+        return if (declaration is KSTypeAlias) resolve(declaration.type.resolve()) else type
+    }
+
+    private fun overrideFunction(function: KSFunctionDeclaration, methodField: String): FunSpec {
+        val isSuspend = Modifier.SUSPEND in function.modifiers
+        val returnType: TypeName = function.returnType!!.toTypeName()
+        val builder = FunSpec.builder(function.simpleName.asString())
+            .addModifiers(KModifier.OVERRIDE)
+            .returns(returnType)
+        if (isSuspend) {
+            builder.addModifiers(KModifier.SUSPEND)
+        }
+
+        val arguments = CodeBlock.builder()
+        for (parameter in function.parameters) {
+            val name = parameter.name!!.asString()
+            val spec = ParameterSpec.builder(name, parameter.type.toTypeName())
+            if (parameter.isVararg) {
+                spec.addModifiers(KModifier.VARARG)
+            }
+            builder.addParameter(spec.build())
+            if (arguments.isNotEmpty()) arguments.add(", ")
+            arguments.add("%N", name)
+        }
+
+        if (isSuspend) {
+            // The continuation is passed on as the trailing argument, as a proxy would receive it.
+            if (arguments.isNotEmpty()) arguments.add(", ")
+            arguments.add("it")
+            builder.addStatement(
+                "return %M<%T> { this.invoker(%N, arrayOf<Any?>(%L)) }",
+                SUSPEND_UNINTERCEPTED,
+                returnType,
+                methodField,
+                arguments.build()
+            )
+        } else {
+            builder.addStatement(
+                "return this.invoker(%N, arrayOf<Any?>(%L)) as %T",
+                methodField,
+                arguments.build(),
+                returnType
+            )
+        }
+        return builder.build()
+    }
+
+    private companion object {
+        const val SUFFIX = "_MSNetImpl"
+
+        val METHOD = ClassName("java.lang.reflect", "Method")
+        val INVOKER = LambdaTypeName.get(
+            parameters = arrayOf(METHOD, ARRAY.parameterizedBy(ANY.copy(nullable = true))),
+            returnType = ANY.copy(nullable = true)
+        )
+        val LAZY_THREAD_SAFETY_MODE = ClassName("kotlin", "LazyThreadSafetyMode")
+        val CONTINUATION = ClassName("kotlin.coroutines", "Continuation")
+        val SUSPEND_UNINTERCEPTED =
+            MemberName("kotlin.coroutines.intrinsics", "suspendCoroutineUninterceptedOrReturn")
+
+        val HTTP_ANNOTATIONS = listOf(
+            "msnet.annotation.DELETE",
+            "msnet.annotation.GET",
+            "msnet.annotation.HEAD",
+            "msnet.annotation.PATCH",
+            "msnet.annotation.POST",
+            "msnet.annotation.PUT",
+            "msnet.annotation.OPTIONS",
+            "msnet.annotation.HTTP"
+        )
+
+        val PRIMITIVE_ARRAYS = mapOf(
+            BOOLEAN to BOOLEAN_ARRAY,
+            BYTE to BYTE_ARRAY,
+            CHAR to CHAR_ARRAY,
+            SHORT to SHORT_ARRAY,
+            INT to INT_ARRAY,
+            LONG to LONG_ARRAY,
+            FLOAT to FLOAT_ARRAY,
+            DOUBLE to DOUBLE_ARRAY
+        )
+    }
+}
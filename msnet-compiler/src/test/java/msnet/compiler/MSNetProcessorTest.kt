@@ -0,0 +1,199 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet.compiler
+
+import com.tschuchort.compiletesting.JvmCompilationResult
+import com.tschuchort.compiletesting.KotlinCompilation
+import com.tschuchort.compiletesting.SourceFile
+import com.tschuchort.compiletesting.configureKsp
+import com.tschuchort.compiletesting.kspSourcesDir
+import org.jetbrains.kotlin.compiler.plugin.ExperimentalCompilerApi
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.lang.reflect.Method
+import kotlin.coroutines.Continuation
+import kotlin.coroutines.EmptyCoroutineContext
+
+@OptIn(ExperimentalCompilerApi::class)
+class MSNetProcessorTest {
+    /** The service methods called on the generated class, and their arguments. */
+    private val invocations = ArrayList<Pair<Method, List<Any?>>>()
+    private val invoker: (Method, Array<Any?>) -> Any? = { method, args ->
+        invocations.add(method to args.toList())
+        "result"
+    }
+
+    @Test
+    fun plainInterface() {
+        val result = compile(
+            """
+            package test
+
+            import msnet.annotation.GET
+
+            interface Api {
+                @GET("users/{id}")
+                fun user(id: Int, tags: List<String>): String
+            }
+            """
+        )
+
+        val api = result.classLoader.loadClass("test.Api")
+        val user = api.getMethod("user", Int::class.javaPrimitiveType, List::class.java)
+        val implementation = newInstance(result, "test.Api_MSNetImpl")
+        assertTrue(api.isInstance(implementation))
+
+        assertEquals("result", user.invoke(implementation, 1, listOf("a")))
+        assertEquals(listOf(user to listOf(1, listOf("a"))), invocations)
+    }
+
+    @Test
+    fun suspendInterface() {
+        val result = compile(
+            """
+            package test
+
+            import msnet.annotation.GET
+
+            interface Api {
+                @GET("users/{id}")
+                suspend fun user(id: Int): String
+            }
+            """
+        )
+
+        val user = result.classLoader.loadClass("test.Api")
+            .getMethod("user", Int::class.javaPrimitiveType, Continuation::class.java)
+        val implementation = newInstance(result, "test.Api_MSNetImpl")
+        val continuation = object : Continuation<Any?> {
+            override val context = EmptyCoroutineContext
+
+            override fun resumeWith(result: Result<Any?>) {
+                throw AssertionError("The invoker answered without suspending")
+            }
+        }
+
+        // The continuation is passed on as the trailing argument, as a proxy would receive it.
+        assertEquals("result", user.invoke(implementation, 1, continuation))
+        val (method, args) = invocations.single()
+        assertSame(user, method)
+        assertEquals(2, args.size)
+        assertEquals(1, args[0])
+        assertTrue(args[1] is Continuation<*>)
+    }
+
+    @Test
+    fun nestedInterface() {
+        val result = compile(
+            """
+            package test
+
+            import msnet.annotation.GET
+
+            interface Outer {
+                interface Api {
+                    @GET("ping")
+                    fun ping(): String
+                }
+            }
+            """
+        )
+
+        val ping = result.classLoader.loadClass("test.Outer\$Api").getMethod("ping")
+        val implementation = newInstance(result, "test.Outer_Api_MSNetImpl")
+        assertEquals("result", ping.invoke(implementation))
+        assertEquals(listOf(ping to emptyList<Any?>()), invocations)
+    }
+
+    @Test
+    fun nestedInterfaceKeepRules() {
+        val compilation = compilation(
+            """
+            package test
+
+            import msnet.annotation.GET
+
+            interface Outer {
+                interface Api {
+                    @GET("ping")
+                    fun ping(): String
+                }
+            }
+            """
+        )
+        assertEquals(KotlinCompilation.ExitCode.OK, compilation.compile().exitCode)
+
+        val rules = compilation.kspSourcesDir.walkTopDown()
+            .single { it.name == "msnet-test.Outer_Api_MSNetImpl.pro" }
+            .readText()
+        assertEquals(
+            """
+            |-if class test.Outer_Api_MSNetImpl
+            |-keepnames interface test.Outer${'$'}Api
+            |-keep class test.Outer_Api_MSNetImpl {
+            |    <init>(kotlin.jvm.functions.Function2);
+            |}
+            |""".trimMargin(),
+            rules
+        )
+    }
+
+    private fun compile(source: String): JvmCompilationResult {
+        val result = compilation(source).compile()
+        assertEquals(result.messages, KotlinCompilation.ExitCode.OK, result.exitCode)
+        return result
+    }
+
+    private fun compilation(source: String): KotlinCompilation {
+        return KotlinCompilation().apply {
+            sources = listOf(ANNOTATIONS, SourceFile.kotlin("Api.kt", source.trimIndent()))
+            inheritClassPath = true
+            configureKsp(useKsp2 = true) {
+                symbolProcessorProviders += MSNetProcessorProvider()
+            }
+        }
+    }
+
+    private fun newInstance(result: JvmCompilationResult, name: String): Any {
+        return result.classLoader.loadClass(name)
+            .getConstructor(Function2::class.java)
+            .newInstance(invoker)
+    }
+
+    private companion object {
+        /** Stands in for the msnet annotations, the processor only matches their names. */
+        val ANNOTATIONS = SourceFile.kotlin(
+            "GET.kt",
+            """
+            package msnet.annotation
+
+            @Target(AnnotationTarget.FUNCTION)
+            @Retention(AnnotationRetention.RUNTIME)
+            annotation class GET(val value: String)
+            """.trimIndent()
+        )
+    }
+}
@@ -47,6 +47,10 @@ dependencies {
     compileOnly(libs.cronet.api)
 
     api(libs.okcronet)
+
+    testImplementation(libs.junit)
+    testImplementation(libs.mockito.core)
+    testImplementation(libs.cronet.api)
 }
 
 //---------- maven upload info -----------------------------------
@@ -38,3 +38,12 @@
 # is used.
 -keep,allowobfuscation,allowshrinking class kotlin.coroutines.Continuation
 
+
+# Implementations generated by msnet-compiler are looked up by the name of their service interface.
+# These rules cover top level interfaces, msnet-compiler also writes the rules of each generated
+# class to META-INF/proguard, as a nested interface Outer$Api is implemented by Outer_Api_MSNetImpl.
+-keep class **_MSNetImpl {
+    <init>(kotlin.jvm.functions.Function2);
+}
+-if class **_MSNetImpl
+-keepnames interface <1>
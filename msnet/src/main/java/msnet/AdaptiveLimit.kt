@@ -0,0 +1,130 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import java.util.concurrent.TimeUnit
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * An adaptive per-host concurrency limit for the [Dispatcher], following AIMD (additive increase,
+ * multiplicative decrease).
+ *
+ * Every completed call is a sample of the host's round trip time, measured until the response
+ * headers arrive. The host's round trip time without load is the smallest sample of the last
+ * [rttWindowMillis] or so, so it follows a route that got slower instead of only ever dropping.
+ * While samples stay within [rttTolerance] times that round trip time and the limit is in use,
+ * the limit grows by about one call per round trip. A failed call, a `429` or `5xx` response, or
+ * a round trip slower than the tolerance multiplies the limit by [backoffRatio]. The limit stays
+ * within [minLimit] and [maxLimit], and never exceeds [Dispatcher.maxRequestsPerHost].
+ *
+ * Limit changes are reported to [EventListener.concurrencyLimitChanged]. The dispatcher forgets the
+ * limit of a host without calls for [idleTimeoutMillis], it starts again from [initialLimit].
+ *
+ *
+ * 按 host 自适应调整并发上限（AIMD）。根据请求耗时与错误率，网络良好时逐步放宽上限，拥塞或出错时按比例收紧。
+ */
+class AdaptiveLimit @JvmOverloads constructor(
+    val initialLimit: Int = 4,
+    val minLimit: Int = 1,
+    val maxLimit: Int = 64,
+    val backoffRatio: Double = 0.9,
+    val rttTolerance: Double = 2.0,
+    val rttWindowMillis: Long = 30_000L,
+    val idleTimeoutMillis: Long = 300_000L
+) {
+    init {
+        require(minLimit >= 1) { "minLimit < 1: $minLimit" }
+        require(maxLimit >= minLimit) { "maxLimit < minLimit: $maxLimit" }
+        require(initialLimit in minLimit..maxLimit) { "initialLimit out of range: $initialLimit" }
+        require(backoffRatio > 0.0 && backoffRatio < 1.0) { "backoffRatio out of (0, 1): $backoffRatio" }
+        require(rttTolerance >= 1.0) { "rttTolerance < 1: $rttTolerance" }
+        require(rttWindowMillis > 0L) { "rttWindowMillis <= 0: $rttWindowMillis" }
+        require(idleTimeoutMillis > 0L) { "idleTimeoutMillis <= 0: $idleTimeoutMillis" }
+    }
+
+    private val rttWindowNanos = TimeUnit.MILLISECONDS.toNanos(rttWindowMillis)
+    internal val idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis)
+
+    internal fun newHostLimit(): HostLimit = HostLimit()
+
+    /** The limit of one host. Guarded by the dispatcher. */
+    internal inner class HostLimit {
+        private var estimatedLimit = initialLimit.toDouble()
+        // The smallest round trip time of the current window and of the one before, so the
+        // baseline never covers less than a full window. Zero when there is no sample.
+        private var windowMinRttNanos = 0L
+        private var previousWindowMinRttNanos = 0L
+        private var windowStartNanos = 0L
+
+        /** When the last sample arrived. */
+        var lastSampleNanos = System.nanoTime()
+            private set
+
+        val limit: Int
+            get() = estimatedLimit.toInt()
+
+        /**
+         * Updates the limit with a completed call. Returns true if [limit] changed.
+         *
+         * @param inFlight the calls to the host running when this one completed, itself included.
+         * @param dropped whether the call failed or was turned away by the server.
+         */
+        fun onSample(rttNanos: Long, inFlight: Int, dropped: Boolean): Boolean {
+            val before = limit
+            lastSampleNanos = System.nanoTime()
+            if (dropped) {
+                estimatedLimit = max(minLimit.toDouble(), estimatedLimit * backoffRatio)
+            } else {
+                val baselineRttNanos = updateMinRtt(rttNanos.coerceAtLeast(1L), lastSampleNanos)
+                if (rttNanos > baselineRttNanos * rttTolerance) {
+                    estimatedLimit = max(minLimit.toDouble(), estimatedLimit * backoffRatio)
+                } else if (inFlight * 2 >= limit) {
+                    // Only grow a limit that is being used, about one call per round trip.
+                    estimatedLimit = min(maxLimit.toDouble(), estimatedLimit + 1.0 / estimatedLimit)
+                }
+            }
+            return limit != before
+        }
+
+        /** Adds `rttNanos` to the windowed minimum and returns the minimum. */
+        private fun updateMinRtt(rttNanos: Long, now: Long): Long {
+            if (windowMinRttNanos == 0L || now - windowStartNanos >= rttWindowNanos) {
+                // A window without samples leaves nothing recent enough to carry over.
+                val elapsedNanos = now - windowStartNanos
+                previousWindowMinRttNanos =
+                    if (elapsedNanos < 2 * rttWindowNanos) windowMinRttNanos else 0L
+                windowMinRttNanos = rttNanos
+                windowStartNanos = now
+            } else if (rttNanos < windowMinRttNanos) {
+                windowMinRttNanos = rttNanos
+            }
+            return if (previousWindowMinRttNanos == 0L) {
+                windowMinRttNanos
+            } else {
+                min(windowMinRttNanos, previousWindowMinRttNanos)
+            }
+        }
+    }
+}
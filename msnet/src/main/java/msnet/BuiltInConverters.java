@@ -18,16 +18,20 @@ package msnet;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
+import java.nio.channels.FileChannel;
 
 import kotlin.Unit;
 import msnet.annotation.Streaming;
+import okcronet.http.MediaType;
 import okcronet.http.RequestBody;
 import okcronet.http.ResponseBody;
 
 final class BuiltInConverters extends Converter.Factory {
+  private static final MediaType OCTET_STREAM = MediaType.toMediaType("application/octet-stream");
 
   @Override
   public @Nullable Converter<ResponseBody, ?> responseBodyConverter(
@@ -52,9 +56,20 @@ final class BuiltInConverters extends Converter.Factory {
           @NotNull Annotation[] parameterAnnotations,
           @NotNull Annotation[] methodAnnotations,
           @NotNull MSNet msNet) {
-    if (RequestBody.class.isAssignableFrom(Utils.getRawType(type))) {
+    Class<?> rawType = Utils.getRawType(type);
+    if (RequestBody.class.isAssignableFrom(rawType)) {
       return RequestBodyConverter.INSTANCE;
     }
+    if (rawType == File.class) {
+      return FileRequestBodyConverter.INSTANCE;
+    }
+    if (FileChannel.class.isAssignableFrom(rawType)) {
+      return FileChannelRequestBodyConverter.INSTANCE;
+    }
+    // Compared by name as java.nio.file.Path is missing before Android API 26.
+    if ("java.nio.file.Path".equals(rawType.getName())) {
+      return PathRequestBodyConverter.INSTANCE;
+    }
     return null;
   }
 
@@ -87,6 +102,36 @@ final class BuiltInConverters extends Converter.Factory {
     }
   }
 
+  static final class FileRequestBodyConverter implements Converter<File, RequestBody> {
+    static final FileRequestBodyConverter INSTANCE = new FileRequestBodyConverter();
+
+    @Override
+    public RequestBody convert(@NotNull File value) {
+      return FileRequestBody.create(value, OCTET_STREAM);
+    }
+  }
+
+  static final class PathRequestBodyConverter implements Converter<Object, RequestBody> {
+    static final PathRequestBodyConverter INSTANCE = new PathRequestBodyConverter();
+
+    @SuppressWarnings("NewApi") // Only chosen for Path parameters, which exist from API 26.
+    @Override
+    public RequestBody convert(@NotNull Object value) throws IOException {
+      return FileRequestBody.create((java.nio.file.Path) value, OCTET_STREAM);
+    }
+  }
+
+  /** Sends the whole channel, which the caller closes once the call is done. */
+  static final class FileChannelRequestBodyConverter
+      implements Converter<FileChannel, RequestBody> {
+    static final FileChannelRequestBodyConverter INSTANCE = new FileChannelRequestBodyConverter();
+
+    @Override
+    public RequestBody convert(@NotNull FileChannel value) throws IOException {
+      return FileRequestBody.create(value, OCTET_STREAM);
+    }
+  }
+
   static final class StreamingResponseBodyConverter
       implements Converter<ResponseBody, ResponseBody> {
     static final StreamingResponseBodyConverter INSTANCE = new StreamingResponseBodyConverter();
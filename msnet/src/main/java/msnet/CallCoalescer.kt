@@ -0,0 +1,232 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import okcronet.http.Headers
+import okcronet.http.HttpUrl
+import okcronet.http.Request
+import okcronet.http.ResponseBody.Companion.asResponseBody
+import okio.Buffer
+import java.io.IOException
+import java.io.InterruptedIOException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Shares one [okcronet.Call] between identical requests that are in flight at the same time.
+ *
+ * Requests are identical when they have the same method, URL and headers. The first request of a
+ * key starts the network call, later ones join it. The response body is buffered once, on the
+ * conversion executor rather than Cronet's network thread, and every waiter receives its own
+ * copy. A waiter that cancels leaves the others running, the network call is canceled with the
+ * last one. The outcome of the network call is recorded once in the circuit breaker, with the
+ * permit of the request that started it.
+ */
+internal class CallCoalescer {
+    private val inFlight = HashMap<Key, Flight>() // Guarded by this.
+
+    /**
+     * Delivers the response of `request` to `callback`, starting a network call with `callFactory`
+     * through `dispatcher` unless an identical one is already in flight. The shared response body
+     * is read on `conversionExecutor`. The circuit breaker `permit` records the outcome of the
+     * network call if this request starts it, and is released otherwise.
+     */
+    fun join(
+        callFactory: okcronet.Call.Factory,
+        dispatcher: Dispatcher,
+        conversionExecutor: Executor,
+        priority: Int,
+        eventListener: EventListener,
+        request: Request,
+        permit: CircuitBreaker.Permit?,
+        callback: okcronet.Callback
+    ): Waiter {
+        val key = Key(request.method, request.url, request.headers)
+        val waiter: Waiter
+        val start: Flight?
+        synchronized(this) {
+            val existing = inFlight[key]
+            if (existing != null) {
+                waiter = Waiter(existing, callback)
+                existing.waiters.add(waiter)
+                start = null
+            } else {
+                val flight = Flight(key, callFactory.newCall(request), conversionExecutor, permit)
+                waiter = Waiter(flight, callback)
+                flight.waiters.add(waiter)
+                inFlight[key] = flight
+                start = flight
+            }
+        }
+        if (start == null) {
+            // Sends nothing, so it does not count, nor take a half-open trial.
+            permit?.release()
+        } else {
+            val host = request.url.host
+            dispatcher.enqueue(dispatcher.AsyncCall(host, priority, start.call, start, eventListener))
+        }
+        return waiter
+    }
+
+    /** Removes `flight` and returns the waiters it still has to notify. */
+    private fun finish(flight: Flight): List<Waiter> {
+        synchronized(this) {
+            inFlight.remove(flight.key, flight)
+            val waiters = ArrayList(flight.waiters)
+            flight.waiters.clear()
+            return waiters
+        }
+    }
+
+    private fun cancel(waiter: Waiter) {
+        val flight = waiter.flight
+        val cancelCall: Boolean
+        synchronized(this) {
+            if (!flight.waiters.remove(waiter)) return // Already notified.
+            cancelCall = flight.waiters.isEmpty()
+            if (cancelCall) {
+                inFlight.remove(flight.key, flight)
+            }
+        }
+        if (cancelCall) {
+            flight.permit?.release()
+            flight.call.cancel()
+        }
+        waiter.onFailure(flight.call, IOException("Canceled"))
+    }
+
+    internal data class Key(val method: String, val url: HttpUrl, val headers: Headers)
+
+    internal inner class Flight(
+        val key: Key,
+        val call: okcronet.Call,
+        private val conversionExecutor: Executor,
+        val permit: CircuitBreaker.Permit?
+    ) : okcronet.Callback {
+        val waiters = ArrayList<Waiter>(2) // Guarded by the coalescer.
+
+        override fun onResponse(call: okcronet.Call, response: okcronet.http.Response) {
+            permit?.onResponse(response.code)
+            val waiters = finish(this)
+            // Reading the whole body here would stall Cronet's network thread.
+            try {
+                conversionExecutor.execute { share(call, response, waiters) }
+            } catch (e: RejectedExecutionException) {
+                response.body?.close()
+                val failure = IOException("Conversion executor rejected the call", e)
+                for (waiter in waiters) {
+                    waiter.onFailure(call, failure)
+                }
+            }
+        }
+
+        /** Buffers the body of `response` and gives each waiter a copy. */
+        private fun share(
+            call: okcronet.Call,
+            response: okcronet.http.Response,
+            waiters: List<Waiter>
+        ) {
+            val rawBody = response.body
+            val buffer = Buffer()
+            try {
+                rawBody?.use { it.source().readAll(buffer) }
+            } catch (e: IOException) {
+                for (waiter in waiters) {
+                    waiter.onFailure(call, e)
+                }
+                return
+            }
+
+            val contentType = rawBody?.contentType()
+            for (waiter in waiters) {
+                // Buffer.clone() shares the segments, so each copy is cheap.
+                val copy = response.newBuilder()
+                    .body(buffer.clone().asResponseBody(contentType, buffer.size))
+                    .build()
+                waiter.onResponse(call, copy)
+            }
+        }
+
+        override fun onFailure(call: okcronet.Call, e: IOException) {
+            permit?.onFailure()
+            for (waiter in finish(this)) {
+                waiter.onFailure(call, e)
+            }
+        }
+    }
+
+    /** One call waiting for the response of a shared network call. */
+    inner class Waiter internal constructor(
+        internal val flight: Flight,
+        private val callback: okcronet.Callback
+    ) {
+        private val delivered = AtomicBoolean()
+
+        /** Stops waiting. The network call is canceled if no other call is waiting for it. */
+        fun cancel() {
+            cancel(this)
+        }
+
+        internal fun onResponse(call: okcronet.Call, response: okcronet.http.Response) {
+            if (delivered.getAndSet(true)) return
+            callback.onResponse(call, response)
+        }
+
+        internal fun onFailure(call: okcronet.Call, e: IOException) {
+            if (delivered.getAndSet(true)) return
+            callback.onFailure(call, e)
+        }
+    }
+
+    /** A callback that blocks [await] until the shared call completes, for [Call.execute]. */
+    class ResponseFuture : okcronet.Callback {
+        private val latch = CountDownLatch(1)
+        private var response: okcronet.http.Response? = null
+        private var failure: IOException? = null
+
+        override fun onResponse(call: okcronet.Call, response: okcronet.http.Response) {
+            this.response = response
+            latch.countDown()
+        }
+
+        override fun onFailure(call: okcronet.Call, e: IOException) {
+            failure = e
+            latch.countDown()
+        }
+
+        @Throws(IOException::class)
+        fun await(): okcronet.http.Response {
+            try {
+                latch.await()
+            } catch (e: InterruptedException) {
+                Thread.currentThread().interrupt()
+                throw InterruptedIOException("Interrupted while waiting for a coalesced call")
+            }
+            failure?.let { throw it }
+            return response!!
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import java.lang.reflect.Method
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Fails calls fast while their backend looks down, instead of letting each one wait for Cronet's
+ * timeout and hold a slot of the [Dispatcher].
+ *
+ * Calls are grouped into circuits by host or by service method, see [Scope]. A circuit starts
+ * [State.CLOSED] and records whether each of its last [windowSize] calls failed, where failing is
+ * an [java.io.IOException] or a `5xx` response. Once at least [minimumCalls] are recorded and the
+ * share of failures reaches [failureRateThreshold], the circuit opens: for [openDurationMillis]
+ * its calls fail with [CircuitBreakerOpenException] without being sent. Then it is
+ * [State.HALF_OPEN] and lets [halfOpenCalls] trial calls through. The circuit closes if they all
+ * succeed and opens again at the first failure. Canceled calls are not recorded.
+ *
+ * At most [maxCircuits] circuits are kept. Past that, the circuit used least recently is
+ * forgotten, closed circuits before open ones, and starts closed again on its next call.
+ *
+ * State changes are reported to [EventListener.circuitBreakerStateChanged].
+ *
+ *
+ * 熔断器：按 host 或服务方法统计最近请求的失败率，超过阈值后在一段时间内直接失败，不再等待超时；
+ * 之后放行少量试探请求，全部成功则恢复。最多保留 [maxCircuits] 个熔断状态，超出时淘汰最久未使用的。
+ */
+class CircuitBreaker @JvmOverloads constructor(
+    val scope: Scope = Scope.HOST,
+    val failureRateThreshold: Double = 0.5,
+    val windowSize: Int = 20,
+    val minimumCalls: Int = 10,
+    val openDurationMillis: Long = 30_000L,
+    val halfOpenCalls: Int = 3,
+    val maxCircuits: Int = 256
+) {
+    init {
+        require(failureRateThreshold > 0.0 && failureRateThreshold <= 1.0) {
+            "failureRateThreshold out of (0, 1]: $failureRateThreshold"
+        }
+        require(windowSize >= 1) { "windowSize < 1: $windowSize" }
+        require(minimumCalls in 1..windowSize) { "minimumCalls out of [1, windowSize]: $minimumCalls" }
+        require(openDurationMillis >= 0L) { "openDurationMillis < 0: $openDurationMillis" }
+        require(halfOpenCalls >= 1) { "halfOpenCalls < 1: $halfOpenCalls" }
+        require(maxCircuits >= 1) { "maxCircuits < 1: $maxCircuits" }
+    }
+
+    /** What calls share a circuit. */
+    enum class Scope {
+        /** The calls to the same host. */
+        HOST,
+
+        /**
+         * The calls of the same service method, named `com.example.Service.method`. Overloads
+         * have a circuit each.
+         */
+        METHOD
+    }
+
+    enum class State {
+        /** Calls are sent and their outcome recorded. */
+        CLOSED,
+
+        /** Calls fail fast with [CircuitBreakerOpenException]. */
+        OPEN,
+
+        /** A few trial calls are sent to decide whether to close or open again. */
+        HALF_OPEN
+    }
+
+    // Keyed by host, or by service Method so that overloads and same-named services never share.
+    private val circuits = ConcurrentHashMap<Any, Circuit>()
+
+    /** Returns the state of the circuit of `host`, with [Scope.HOST]. */
+    fun state(host: String): State = circuits[host]?.state ?: State.CLOSED
+
+    /** Returns the state of the circuit of the service method `method`, with [Scope.METHOD]. */
+    fun state(method: Method): State = circuits[method]?.state ?: State.CLOSED
+
+    /**
+     * Returns a permit to send a call of the circuit `key`, which must be given the outcome of the
+     * call. The circuit is reported as `name`.
+     */
+    @Throws(CircuitBreakerOpenException::class)
+    internal fun acquire(key: Any, name: String, eventListener: EventListener): Permit {
+        val circuit = circuits[key] ?: newCircuit(key, name)
+        return circuit.acquire(eventListener)
+    }
+
+    private fun newCircuit(key: Any, name: String): Circuit {
+        val circuit = Circuit(name)
+        circuits.putIfAbsent(key, circuit)?.let { return it }
+        if (circuits.size > maxCircuits) {
+            evictCircuit(key)
+        }
+        return circuit
+    }
+
+    /**
+     * Forgets the circuit used least recently other than the one of `newKey`, a closed one if
+     * there is any. Scans the map, which only happens when a new host or method shows up.
+     */
+    private fun evictCircuit(newKey: Any) {
+        var eldestKey: Any? = null
+        var eldest: Circuit? = null
+        for ((key, circuit) in circuits) {
+            if (key == newKey) continue
+            if (eldest == null || circuit.evictsBefore(eldest)) {
+                eldestKey = key
+                eldest = circuit
+            }
+        }
+        if (eldestKey != null) {
+            circuits.remove(eldestKey, eldest)
+        }
+    }
+
+    internal inner class Permit(
+        private val circuit: Circuit,
+        private val generation: Int,
+        private val eventListener: EventListener
+    ) {
+        private val done = AtomicBoolean()
+
+        fun onResponse(code: Int) {
+            if (done.compareAndSet(false, true)) {
+                circuit.record(generation, code >= 500, eventListener)
+            }
+        }
+
+        fun onFailure() {
+            if (done.compareAndSet(false, true)) {
+                circuit.record(generation, true, eventListener)
+            }
+        }
+
+        /** Gives the permit back without an outcome, as for a canceled call. */
+        fun release() {
+            if (done.compareAndSet(false, true)) {
+                circuit.release(generation)
+            }
+        }
+    }
+
+    internal inner class Circuit(private val key: String) {
+        @Volatile
+        var state = State.CLOSED
+            private set
+
+        @Volatile
+        private var lastUsedNanos = System.nanoTime()
+
+        // Incremented on each state change, so the outcome of a call acquired in an earlier state
+        // is ignored. The fields below are guarded by this.
+        private var generation = 0
+        private val failures = BooleanArray(windowSize)
+        private var next = 0
+        private var recordedCount = 0
+        private var failureCount = 0
+        private var openedAtNanos = 0L
+        private var trialsInFlight = 0
+        private var trialSuccesses = 0
+
+        fun acquire(eventListener: EventListener): Permit {
+            lastUsedNanos = System.nanoTime()
+            val permit: Permit
+            synchronized(this) {
+                if (state == State.OPEN) {
+                    val remainingNanos =
+                        TimeUnit.MILLISECONDS.toNanos(openDurationMillis) - (System.nanoTime() - openedAtNanos)
+                    if (remainingNanos > 0L) {
+                        throw CircuitBreakerOpenException(
+                            key,
+                            TimeUnit.NANOSECONDS.toMillis(remainingNanos + 999_999L)
+                        )
+                    }
+                    moveTo(State.HALF_OPEN)
+                    permit = trialPermit(eventListener)
+                } else if (state == State.HALF_OPEN) {
+                    if (trialsInFlight + trialSuccesses >= halfOpenCalls) {
+                        throw CircuitBreakerOpenException(key, 0L)
+                    }
+                    return trialPermit(eventListener)
+                } else {
+                    return Permit(this, generation, eventListener)
+                }
+            }
+            eventListener.circuitBreakerStateChanged(key, State.OPEN, State.HALF_OPEN)
+            return permit
+        }
+
+        /** Returns true if this circuit is to be forgotten before `other`. */
+        fun evictsBefore(other: Circuit): Boolean {
+            val closed = state == State.CLOSED
+            if (closed != (other.state == State.CLOSED)) return closed
+            return lastUsedNanos - other.lastUsedNanos < 0L
+        }
+
+        private fun trialPermit(eventListener: EventListener): Permit {
+            trialsInFlight++
+            return Permit(this, generation, eventListener)
+        }
+
+        fun record(permitGeneration: Int, failed: Boolean, eventListener: EventListener) {
+            val from: State
+            val to: State
+            synchronized(this) {
+                if (permitGeneration != generation) return
+                from = state
+                if (state == State.HALF_OPEN) {
+                    trialsInFlight--
+                    if (failed) {
+                        open()
+                    } else if (++trialSuccesses >= halfOpenCalls) {
+                        moveTo(State.CLOSED)
+                    }
+                } else {
+                    if (failures[next]) failureCount--
+                    failures[next] = failed
+                    if (failed) failureCount++
+                    next = (next + 1) % windowSize
+                    if (recordedCount < windowSize) recordedCount++
+                    if (recordedCount >= minimumCalls
+                        && failureCount >= failureRateThreshold * recordedCount
+                    ) {
+                        open()
+                    }
+                }
+                to = state
+            }
+            if (from != to) {
+                eventListener.circuitBreakerStateChanged(key, from, to)
+            }
+        }
+
+        @Synchronized
+        fun release(permitGeneration: Int) {
+            if (permitGeneration == generation && state == State.HALF_OPEN) {
+                trialsInFlight--
+            }
+        }
+
+        private fun open() {
+            moveTo(State.OPEN)
+            openedAtNanos = System.nanoTime()
+        }
+
+        private fun moveTo(state: State) {
+            this.state = state
+            generation++
+            failures.fill(false)
+            next = 0
+            recordedCount = 0
+            failureCount = 0
+            trialsInFlight = 0
+            trialSuccesses = 0
+        }
+    }
+}
@@ -77,27 +77,7 @@ final class DefaultCallAdapterFactory extends CallAdapter.Factory {
 
     @Override
     public void enqueue(@NotNull final Callback<T> callback) {
-      delegate.enqueue(
-          new Callback<T>() {
-            @Override
-            public void onResponse(@NotNull Call<T> call, @NotNull final Response<T> response) {
-              callbackExecutor.execute(
-                  () -> {
-                    if (delegate.isCanceled()) {
-                      // Emulate OkHttp's behavior of throwing/delivering an IOException on
-                      // cancellation.
-                      callback.onFailure(ExecutorCallbackCall.this, new IOException("Canceled"));
-                    } else {
-                      callback.onResponse(ExecutorCallbackCall.this, response);
-                    }
-                  });
-            }
-
-            @Override
-            public void onFailure(@NotNull Call<T> call, @NotNull final Throwable t) {
-              callbackExecutor.execute(() -> callback.onFailure(ExecutorCallbackCall.this, t));
-            }
-          });
+      delegate.enqueue(new ExecutorCallback(callback));
     }
 
     @Override
@@ -138,5 +118,45 @@ final class DefaultCallAdapterFactory extends CallAdapter.Factory {
     public Timeout timeout() {
       return delegate.timeout();
     }
+
+    /**
+     * Delivers the outcome of the call on the callback executor. A call completes once, so the
+     * callback holds its outcome and runs itself instead of allocating a task per response.
+     */
+    final class ExecutorCallback implements Callback<T>, Runnable {
+      private final Callback<T> callback;
+      private @Nullable Response<T> response;
+      private @Nullable Throwable failure;
+
+      ExecutorCallback(Callback<T> callback) {
+        this.callback = callback;
+      }
+
+      @Override
+      public void onResponse(@NotNull Call<T> call, @NotNull Response<T> response) {
+        this.response = response;
+        callbackExecutor.execute(this);
+      }
+
+      @Override
+      public void onFailure(@NotNull Call<T> call, @NotNull Throwable t) {
+        this.failure = t;
+        callbackExecutor.execute(this);
+      }
+
+      @Override
+      public void run() {
+        Throwable failure = this.failure;
+        if (failure != null) {
+          callback.onFailure(ExecutorCallbackCall.this, failure);
+        } else if (delegate.isCanceled()) {
+          // Emulate OkHttp's behavior of throwing/delivering an IOException on cancellation.
+          callback.onFailure(ExecutorCallbackCall.this, new IOException("Canceled"));
+        } else {
+          //noinspection ConstantConditions Set before this runs.
+          callback.onResponse(ExecutorCallbackCall.this, response);
+        }
+      }
+    }
   }
 }
@@ -0,0 +1,366 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import java.io.IOException
+import java.util.TreeMap
+import java.util.concurrent.TimeUnit
+import kotlin.math.min
+
+/**
+ * Limits how many asynchronous calls are sent to Cronet at once, overall and, once
+ * [maxRequestsPerHost] or [adaptiveLimit] is set, per host.
+ *
+ * Calls over a limit wait in queues ordered by their [msnet.annotation.PRIORITY], so a burst of
+ * low priority prefetches does not hold back a high priority request. A waiting call is raised by
+ * one priority level every [agingMillis], so low priority calls still run when high priority ones
+ * keep coming. Calls of the same effective priority run in the order they were enqueued.
+ *
+ * With an [adaptiveLimit], each host's limit follows its measured round trip time and error rate,
+ * capped by [maxRequestsPerHost].
+ *
+ * Waiting calls are queued per host, and only hosts with room are looked at when a slot frees up,
+ * so a host with a long backlog does not slow down starting the calls of the others.
+ *
+ * Synchronous [Call.execute] calls are not limited.
+ *
+ *
+ * 异步请求的调度器，限制同时进行的请求总数，设置 [maxRequestsPerHost] 或 [adaptiveLimit] 后也限制每个 host
+ * 的请求数，默认不限制单个 host。超出限制的请求按 `PRIORITY` 排队，排队时间每经过 [agingMillis]
+ * 优先级提升一级，避免低优先级请求一直等待。
+ */
+class Dispatcher @JvmOverloads constructor(
+    maxRequests: Int = 64,
+    maxRequestsPerHost: Int = Int.MAX_VALUE
+) {
+    // Waiting calls by host. Guarded by this.
+    private val readyCalls = HashMap<String, HostQueue>()
+    // The hosts of readyCalls that may have room, a host found full is removed until one of its
+    // calls finishes or a limit changes. Guarded by this.
+    private val readyHosts = LinkedHashSet<HostQueue>()
+    private val runningCallsPerHost = HashMap<String, Int>()
+    private val hostLimits = HashMap<String, AdaptiveLimit.HostLimit>()
+    private var runningCallsCount = 0
+    private var queuedCallsCount = 0
+    private var lastEvictionNanos = System.nanoTime()
+
+    /** The maximum number of calls running at once. */
+    var maxRequests: Int = maxRequests
+        get() = synchronized(this) { field }
+        set(value) {
+            require(value >= 1) { "max < 1: $value" }
+            synchronized(this) {
+                field = value
+            }
+            promoteAndExecute()
+        }
+
+    /**
+     * The maximum number of calls running at once to each host, by host name. Unlimited by
+     * default, hosts are then only limited by [maxRequests] and [adaptiveLimit].
+     */
+    var maxRequestsPerHost: Int = maxRequestsPerHost
+        get() = synchronized(this) { field }
+        set(value) {
+            require(value >= 1) { "max < 1: $value" }
+            synchronized(this) {
+                field = value
+                readyHosts.addAll(readyCalls.values)
+            }
+            promoteAndExecute()
+        }
+
+    /** How long a call waits before it is raised by one priority level. */
+    var agingMillis: Long = 1000L
+        get() = synchronized(this) { field }
+        set(value) {
+            require(value > 0L) { "agingMillis <= 0: $value" }
+            synchronized(this) {
+                field = value
+            }
+        }
+
+    /**
+     * Adjusts each host's limit from completed calls instead of using [maxRequestsPerHost] as is.
+     * Null, the default, keeps the fixed limit. Setting it resets the learned limits.
+     */
+    var adaptiveLimit: AdaptiveLimit? = null
+        get() = synchronized(this) { field }
+        set(value) {
+            synchronized(this) {
+                field = value
+                hostLimits.clear()
+                readyHosts.addAll(readyCalls.values)
+            }
+            promoteAndExecute()
+        }
+
+    init {
+        require(maxRequests >= 1) { "max < 1: $maxRequests" }
+        require(maxRequestsPerHost >= 1) { "max < 1: $maxRequestsPerHost" }
+    }
+
+    @Synchronized
+    fun runningCallsCount(): Int = runningCallsCount
+
+    @Synchronized
+    fun queuedCallsCount(): Int = queuedCallsCount
+
+    @Synchronized
+    fun runningCallsCount(host: String): Int = runningCallsPerHost[host] ?: 0
+
+    @Synchronized
+    fun queuedCallsCount(host: String): Int = readyCalls[host]?.size ?: 0
+
+    /** The number of calls to `host` allowed to run at once, adaptive or not. */
+    @Synchronized
+    fun hostLimit(host: String): Int {
+        val hostLimit = hostLimitState(host) ?: return maxRequestsPerHost
+        return min(hostLimit.limit, maxRequestsPerHost)
+    }
+
+    private fun hostLimitState(host: String): AdaptiveLimit.HostLimit? {
+        val adaptiveLimit = adaptiveLimit ?: return null
+        return hostLimits.getOrPut(host) { adaptiveLimit.newHostLimit() }
+    }
+
+    /** Starts `call` as soon as the limits allow, ahead of lower priority calls. */
+    internal fun enqueue(call: AsyncCall) {
+        synchronized(this) {
+            val hostQueue = readyCalls.getOrPut(call.host) { HostQueue(call.host) }
+            hostQueue.add(call)
+            readyHosts.add(hostQueue)
+            queuedCallsCount++
+        }
+        promoteAndExecute()
+    }
+
+    /**
+     * Removes `call` if it is still waiting and reports it as canceled. A call that already started
+     * is canceled through its [okcronet.Call]. Returns true if `call` was removed, so it was never
+     * sent.
+     */
+    internal fun cancel(call: AsyncCall): Boolean {
+        val removed = synchronized(this) { removeReadyCall(call) }
+        if (removed) {
+            call.callback.onFailure(call.call, IOException("Canceled"))
+        }
+        return removed
+    }
+
+    private fun removeReadyCall(call: AsyncCall): Boolean {
+        val hostQueue = readyCalls[call.host] ?: return false
+        if (!hostQueue.remove(call)) return false
+        if (hostQueue.size == 0) {
+            readyCalls.remove(call.host)
+            readyHosts.remove(hostQueue)
+        }
+        queuedCallsCount--
+        return true
+    }
+
+    private fun promoteAndExecute() {
+        val executableCalls = ArrayList<AsyncCall>()
+        synchronized(this) {
+            val now = System.nanoTime()
+            while (runningCallsCount < maxRequests) {
+                val call = nextReadyCall(now) ?: break
+                removeReadyCall(call)
+                runningCallsCount++
+                runningCallsPerHost.increment(call.host, 1)
+                executableCalls.add(call)
+            }
+        }
+
+        // Every promoted call holds a slot, start all of them even if one throws.
+        var failure: Throwable? = null
+        for (call in executableCalls) {
+            try {
+                call.start()
+            } catch (t: Throwable) {
+                failure?.addSuppressed(t) ?: run { failure = t }
+            }
+        }
+        failure?.let { throw it }
+    }
+
+    /**
+     * Returns the waiting call with the highest priority after aging whose host has room. Only the
+     * first call of each priority of each host with room is looked at.
+     */
+    private fun nextReadyCall(now: Long): AsyncCall? {
+        val agingNanos = TimeUnit.MILLISECONDS.toNanos(agingMillis)
+        var best: AsyncCall? = null
+        var bestPriority = Long.MIN_VALUE
+        val hosts = readyHosts.iterator()
+        while (hosts.hasNext()) {
+            val hostQueue = hosts.next()
+            val host = hostQueue.host
+            if ((runningCallsPerHost[host] ?: 0) >= hostLimit(host)) {
+                // Looked at again when one of its calls finishes.
+                hosts.remove()
+                continue
+            }
+            for (queue in hostQueue.queues.values) {
+                // The calls behind the first one waited less, none of them can rank higher.
+                val call = queue.first()
+                val priority = call.priority + (now - call.enqueuedAtNanos) / agingNanos
+                if (best == null
+                    || priority > bestPriority
+                    || (priority == bestPriority && call.enqueuedAtNanos - best.enqueuedAtNanos < 0)
+                ) {
+                    best = call
+                    bestPriority = priority
+                }
+            }
+        }
+        return best
+    }
+
+    private fun finished(call: AsyncCall) {
+        synchronized(this) {
+            runningCallsCount--
+            runningCallsPerHost.increment(call.host, -1)
+            readyCalls[call.host]?.let { readyHosts.add(it) }
+            evictIdleHostLimits()
+        }
+        promoteAndExecute()
+    }
+
+    /** Forgets the adaptive limits of hosts without calls, at most once per idle timeout. */
+    private fun evictIdleHostLimits() {
+        val adaptiveLimit = adaptiveLimit ?: return
+        val now = System.nanoTime()
+        if (now - lastEvictionNanos < adaptiveLimit.idleTimeoutNanos) return
+        lastEvictionNanos = now
+        hostLimits.entries.removeAll { (host, hostLimit) ->
+            now - hostLimit.lastSampleNanos >= adaptiveLimit.idleTimeoutNanos
+                    && host !in runningCallsPerHost
+                    && host !in readyCalls
+        }
+    }
+
+    /** Feeds a completed call to the adaptive limit of its host. */
+    private fun recordSample(call: AsyncCall, dropped: Boolean) {
+        val rttNanos = System.nanoTime() - call.startedAtNanos
+        val limit: Int
+        val inFlight: Int
+        val queued: Int
+        synchronized(this) {
+            val hostLimit = hostLimitState(call.host) ?: return
+            inFlight = runningCallsPerHost[call.host] ?: 0
+            if (!hostLimit.onSample(rttNanos, inFlight, dropped)) return
+            limit = min(hostLimit.limit, maxRequestsPerHost)
+            queued = readyCalls[call.host]?.size ?: 0
+        }
+        call.eventListener.concurrencyLimitChanged(call.host, limit, inFlight, queued)
+    }
+
+    private fun HashMap<String, Int>.increment(host: String, delta: Int) {
+        val count = (this[host] ?: 0) + delta
+        if (count == 0) {
+            remove(host)
+        } else {
+            this[host] = count
+        }
+    }
+
+    /** The calls waiting for a slot to one host, by priority, each queue in enqueue order. */
+    private class HostQueue(val host: String) {
+        val queues = TreeMap<Int, ArrayDeque<AsyncCall>>()
+        var size = 0
+            private set
+
+        fun add(call: AsyncCall) {
+            queues.getOrPut(call.priority) { ArrayDeque() }.addLast(call)
+            size++
+        }
+
+        fun remove(call: AsyncCall): Boolean {
+            val queue = queues[call.priority] ?: return false
+            if (!queue.remove(call)) return false
+            if (queue.isEmpty()) {
+                queues.remove(call.priority)
+            }
+            size--
+            return true
+        }
+    }
+
+    /** A Cronet call waiting for, or holding, a slot of this dispatcher. */
+    internal inner class AsyncCall(
+        val host: String,
+        val priority: Int,
+        val call: okcronet.Call,
+        val callback: okcronet.Callback,
+        val eventListener: EventListener
+    ) : okcronet.Callback {
+        val enqueuedAtNanos = System.nanoTime()
+        // Read by HedgedCall from other threads.
+        @Volatile
+        var startedAtNanos = 0L
+            private set
+
+        internal fun start() {
+            startedAtNanos = System.nanoTime()
+            if (call.isCanceled) {
+                onFailure(call, IOException("Canceled"))
+                return
+            }
+            try {
+                call.enqueue(this)
+            } catch (t: Throwable) {
+                // Release the slot and fail this call only, not the one whose completion started it.
+                try {
+                    Utils.throwIfFatal(t)
+                    val e = t as? IOException ?: IOException("Failed to start the call", t)
+                    callback.onFailure(call, e)
+                } finally {
+                    finished(this)
+                }
+            }
+        }
+
+        override fun onResponse(call: okcronet.Call, response: okcronet.http.Response) {
+            val code = response.code
+            recordSample(this, dropped = code == 429 || code >= 500)
+            try {
+                callback.onResponse(call, response)
+            } finally {
+                finished(this)
+            }
+        }
+
+        override fun onFailure(call: okcronet.Call, e: IOException) {
+            if (!call.isCanceled) {
+                recordSample(this, dropped = true)
+            }
+            try {
+                callback.onFailure(call, e)
+            } finally {
+                finished(this)
+            }
+        }
+    }
+}
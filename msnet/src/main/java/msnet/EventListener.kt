@@ -0,0 +1,73 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import java.lang.reflect.Method
+
+/**
+ * Listener for metrics events of an [MSNet]. All methods do nothing by default, override the
+ * ones of interest. Methods are invoked on the thread where the event happened, and must return
+ * quickly.
+ *
+ *
+ * [MSNet] 的指标事件监听，方法默认为空实现，按需重写。回调在事件发生的线程执行，不要做耗时操作。
+ */
+abstract class EventListener {
+    /**
+     * The adaptive concurrency limit of `host` changed to `limit`. `inFlight` calls to the host are
+     * running and `queued` are waiting for a slot.
+     *
+     * @see AdaptiveLimit
+     */
+    open fun concurrencyLimitChanged(host: String, limit: Int, inFlight: Int, queued: Int) {
+    }
+
+    /**
+     * The circuit `key`, a host or a `com.example.Service.method`, moved from state `from` to `to`.
+     *
+     * @see CircuitBreaker
+     */
+    open fun circuitBreakerStateChanged(
+        key: String,
+        from: CircuitBreaker.State,
+        to: CircuitBreaker.State
+    ) {
+    }
+
+    /**
+     * The response body of a call to `method` was read and converted in `conversionNanos`, after
+     * waiting `queuedNanos` for a conversion thread once the response headers arrived.
+     *
+     * @see MSNet.Builder.conversionExecutor
+     */
+    open fun responseConverted(method: Method, queuedNanos: Long, conversionNanos: Long) {
+    }
+
+    companion object {
+        /** A listener that ignores every event. */
+        @JvmField
+        val NONE: EventListener = object : EventListener() {
+        }
+    }
+}
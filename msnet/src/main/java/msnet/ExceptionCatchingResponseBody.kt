@@ -2,6 +2,7 @@ package msnet
 
 import okcronet.http.MediaType
 import okcronet.http.ResponseBody
+import okio.AsyncTimeout
 import okio.Buffer
 import okio.BufferedSource
 import okio.ForwardingSource
@@ -13,13 +14,18 @@ import java.io.IOException
  * @date 2023/2/23
  * @description
  */
-internal class ExceptionCatchingResponseBody(private val delegate: ResponseBody) : ResponseBody() {
+internal class ExceptionCatchingResponseBody(
+    private val delegate: ResponseBody,
+    /** Bounds each read of the body, when not null. */
+    readTimeout: AsyncTimeout? = null
+) : ResponseBody() {
     private val delegateSource: BufferedSource
 
     var thrownException: IOException? = null
 
     init {
-        delegateSource = object : ForwardingSource(delegate.source()) {
+        val source = delegate.source().let { readTimeout?.source(it) ?: it }
+        delegateSource = object : ForwardingSource(source) {
             @Throws(IOException::class)
             override fun read(sink: Buffer, byteCount: Long): Long {
                 return try {
@@ -0,0 +1,272 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import msnet.annotation.Download
+import okcronet.http.Request
+import okcronet.http.ResponseBody
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.lang.reflect.Type
+import java.net.ProtocolException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Path
+import java.util.Properties
+
+/**
+ * Writes the response body of a [Download] method to its target, through a temporary file next to
+ * it that is renamed over the target once complete.
+ *
+ * The body is copied from the source into one direct buffer and from there to a [FileChannel],
+ * so memory use does not grow with the file, and the channel writes the buffer without copying it
+ * again.
+ *
+ * When the response has a validator, an interrupted download keeps its temporary file and records
+ * the validator and the bytes written in a metadata file beside it. The next attempt, or the next
+ * call with the same target, asks for the rest with `Range` and `If-Range`, and starts over when
+ * the server answers with the whole resource instead.
+ */
+internal class FileDownload(
+    /** The [File] or [Path] argument of the [Download] parameter. */
+    private val target: Any,
+    private val responseType: Type
+) : Converter<ResponseBody, Any> {
+    private val file: File = if (target is File) target else toFile(target)
+    private val temp = File(file.path + TEMP_SUFFIX)
+    private val metadata = File(file.path + METADATA_SUFFIX)
+
+    /** Writes the whole body, as when the server ignored or was not asked for a range. */
+    @Throws(IOException::class)
+    override fun convert(value: ResponseBody): Any? {
+        return write(value, null, 0L)
+    }
+
+    /** Returns `request` asking for the rest of the partial file, or null if there is none. */
+    fun resumeRequest(request: Request): Request? {
+        val partial = loadPartial() ?: return null
+        return request.newBuilder()
+            .header("Range", "bytes=${partial.length}-")
+            .header("If-Range", partial.validator)
+            .build()
+    }
+
+    /**
+     * Returns the offset at which the `206` `response` continues the partial file.
+     *
+     * @throws ProtocolException if it does not continue the partial file where it ends, which is
+     * discarded then.
+     */
+    @Throws(IOException::class)
+    fun resumeOffset(response: okcronet.http.Response): Long {
+        val partial = loadPartial()
+        val contentRange = Utils.header(response, "Content-Range")
+        val start = contentRange?.let { parseRangeStart(it) } ?: -1L
+        val validator = validator(response)
+        if (partial == null
+            || start != partial.length
+            || (validator != null && validator != partial.validator)
+        ) {
+            discardPartial()
+            throw ProtocolException(
+                "Unexpected Content-Range $contentRange for a partial file of " +
+                        "${partial?.length ?: 0L} bytes"
+            )
+        }
+        return start
+    }
+
+    /**
+     * Writes `body` from `offset` of the temporary file and moves it to the target. Keeps what was
+     * written when reading the body fails and the download can be resumed.
+     */
+    @Throws(IOException::class)
+    fun write(body: ResponseBody, response: okcronet.http.Response?, offset: Long): Any? {
+        val validator = response?.let { validator(it) }
+        try {
+            body.use { writeTemp(it, offset, validator) }
+            Utils.moveReplacing(temp, target)
+            metadata.delete()
+        } catch (e: Throwable) {
+            if (validator == null || e !is IOException) {
+                discardPartial()
+            }
+            throw e
+        }
+        return when {
+            Utils.isUnit(responseType) -> Unit
+            responseType == Void::class.java -> null
+            responseType == File::class.java -> file
+            else -> if (target is File) toPath(file) else target
+        }
+    }
+
+    /** Deletes the partial file, so that the next attempt downloads all of it. */
+    fun discardPartial() {
+        metadata.delete()
+        temp.delete()
+    }
+
+    @Throws(IOException::class)
+    private fun writeTemp(body: ResponseBody, offset: Long, validator: String?) {
+        file.parentFile?.mkdirs()
+        RandomAccessFile(temp, "rw").use { randomAccessFile ->
+            // Sizes the file once up front, rather than growing it on every write. This only sets
+            // the length, usually as a sparse file, a full disk still fails a later write.
+            val contentLength = body.contentLength()
+            randomAccessFile.setLength(if (contentLength > 0L) offset + contentLength else offset)
+            val channel = randomAccessFile.channel
+            channel.position(offset)
+
+            // Recorded before writing, so the metadata never describes bytes of another version.
+            if (validator != null) {
+                savePartial(validator, offset)
+            } else {
+                metadata.delete()
+            }
+
+            val source = body.source()
+            val buffer = ByteBuffer.allocateDirect(BUFFER_SIZE)
+            var written = offset
+            var checkpoint = offset
+            try {
+                var exhausted = false
+                while (!exhausted) {
+                    // Fills the buffer first, the source hands out one segment per read.
+                    while (buffer.hasRemaining()) {
+                        if (source.read(buffer) == -1) {
+                            exhausted = true
+                            break
+                        }
+                    }
+                    buffer.flip()
+                    while (buffer.hasRemaining()) {
+                        written += channel.write(buffer)
+                    }
+                    buffer.clear()
+
+                    // Survives the process dying, at the cost of a sync every few megabytes.
+                    if (validator != null && written - checkpoint >= CHECKPOINT_BYTES) {
+                        checkpoint(channel, validator, written)
+                        checkpoint = written
+                    }
+                }
+            } catch (e: IOException) {
+                if (validator != null) {
+                    try {
+                        checkpoint(channel, validator, written)
+                    } catch (suppressed: IOException) {
+                        // The last checkpoint still holds.
+                        e.addSuppressed(suppressed)
+                    }
+                }
+                throw e
+            }
+            // The decoded body may be shorter than its encoded Content-Length.
+            if (randomAccessFile.length() != written) {
+                randomAccessFile.setLength(written)
+            }
+            channel.force(false)
+        }
+    }
+
+    /** Records `length` bytes as written, once they are on the disk. */
+    @Throws(IOException::class)
+    private fun checkpoint(channel: FileChannel, validator: String, length: Long) {
+        channel.force(false)
+        savePartial(validator, length)
+    }
+
+    private fun loadPartial(): Partial? {
+        if (!metadata.exists()) return null
+        val properties = Properties()
+        try {
+            metadata.inputStream().use { properties.load(it) }
+        } catch (e: IOException) {
+            return null
+        }
+        val validator = properties.getProperty(KEY_VALIDATOR) ?: return null
+        val length = properties.getProperty(KEY_LENGTH)?.toLongOrNull() ?: return null
+        if (length <= 0L || temp.length() < length) return null
+        return Partial(validator, length)
+    }
+
+    @Throws(IOException::class)
+    private fun savePartial(validator: String, length: Long) {
+        val properties = Properties()
+        properties.setProperty(KEY_VALIDATOR, validator)
+        properties.setProperty(KEY_LENGTH, length.toString())
+        // Replaced atomically, a crash leaves either the old or the new metadata.
+        val next = File(metadata.path + ".tmp")
+        FileOutputStream(next).use {
+            properties.store(it, null)
+            it.fd.sync()
+        }
+        Utils.moveReplacing(next, metadata)
+    }
+
+    private class Partial(val validator: String, val length: Long)
+
+    private companion object {
+        const val TEMP_SUFFIX = ".part"
+        const val METADATA_SUFFIX = ".part.meta"
+        const val KEY_VALIDATOR = "validator"
+        const val KEY_LENGTH = "length"
+        const val BUFFER_SIZE = 64 * 1024
+        const val CHECKPOINT_BYTES = 4L * 1024 * 1024
+
+        /**
+         * Returns the `If-Range` validator of `response`, or null if a range of it cannot be asked
+         * for safely: weak entity tags are not allowed, and ranges of an encoded body do not match
+         * the decoded bytes Cronet returns.
+         */
+        fun validator(response: okcronet.http.Response): String? {
+            val contentEncoding = Utils.header(response, "Content-Encoding")
+            if (contentEncoding != null && !contentEncoding.equals("identity", ignoreCase = true)) {
+                return null
+            }
+            val etag = Utils.header(response, "ETag")
+            if (etag != null && !etag.startsWith("W/")) return etag
+            return Utils.header(response, "Last-Modified")
+        }
+
+        /** Returns the first byte of a `Content-Range` like `bytes 100-199/200`, or -1. */
+        fun parseRangeStart(contentRange: String): Long {
+            val prefix = "bytes "
+            if (!contentRange.startsWith(prefix, ignoreCase = true)) return -1L
+            val dash = contentRange.indexOf('-', prefix.length)
+            if (dash == -1) return -1L
+            return contentRange.substring(prefix.length, dash).trim().toLongOrNull() ?: -1L
+        }
+
+        // Path arguments are only possible from API 26.
+        @Suppress("NewApi")
+        fun toFile(path: Any): File = (path as Path).toFile()
+
+        @Suppress("NewApi")
+        fun toPath(file: File): Path = file.toPath()
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import androidx.annotation.RequiresApi
+import okcronet.http.MediaType
+import okcronet.http.RequestBody
+import okio.BufferedSink
+import java.io.EOFException
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * A [RequestBody] of a window of a file, which reports its exact [length] so the upload does not
+ * need chunked encoding. The window is streamed with positional reads straight into the segments
+ * of the sink's buffer, a segment at a time, instead of being loaded in memory whole or staged in
+ * a buffer of its own first.
+ *
+ * Bodies of a [File] or [Path] open the file on every [writeTo], so they can be sent again by
+ * retries. Bodies of a [FileChannel] use positional reads that leave the position of the channel
+ * alone, and never close it.
+ */
+class FileRequestBody private constructor(
+    private val file: File?,
+    private val path: Any?,
+    private val channel: FileChannel?,
+    private val contentType: MediaType?,
+    /** The first byte of the file in the body. */
+    val offset: Long,
+    private val byteCount: Long
+) : RequestBody() {
+
+    override fun contentType(): MediaType? = contentType
+
+    override fun length(): Long = byteCount
+
+    /**
+     * Returns the body of `byteCount` bytes from `offset` of this body, such as one chunk of a
+     * chunked upload.
+     */
+    fun slice(offset: Long, byteCount: Long): FileRequestBody {
+        checkWindow(offset, byteCount, this.byteCount)
+        return FileRequestBody(
+            file, path, channel, contentType, this.offset + offset, byteCount
+        )
+    }
+
+    @Throws(IOException::class)
+    override fun writeTo(sink: BufferedSink) {
+        val channel = channel
+        if (channel != null) {
+            write(channel, sink)
+            return
+        }
+        val opened = if (file != null) RandomAccessFile(file, "r").channel else open(path!!)
+        opened.use { write(it, sink) }
+    }
+
+    @Throws(IOException::class)
+    private fun write(channel: FileChannel, sink: BufferedSink) {
+        val end = offset + byteCount
+        if (channel.size() < end) {
+            throw EOFException("File has ${channel.size()} bytes, the body ends at $end")
+        }
+        var position = offset
+        val buffer = sink.buffer
+        while (position < end) {
+            val read = buffer.readAndWriteUnsafe().use { cursor ->
+                val oldSize = buffer.size
+                val capacity = cursor.expandBuffer(1)
+                var read = -1
+                try {
+                    val count = min(capacity.toLong(), end - position).toInt()
+                    val target = ByteBuffer.wrap(cursor.data!!, cursor.start, count)
+                    read = channel.read(target, position)
+                } finally {
+                    // Drops the capacity that was not filled.
+                    cursor.resizeBuffer(oldSize + max(read, 0))
+                }
+                read
+            }
+            if (read == -1) throw EOFException("File ended before the body at $position")
+            position += read
+            sink.emitCompleteSegments()
+        }
+    }
+
+    companion object {
+        /** Returns the body of `byteCount` bytes of `file` from `offset`, the rest by default. */
+        @JvmStatic
+        @JvmOverloads
+        fun create(
+            file: File,
+            contentType: MediaType? = null,
+            offset: Long = 0L,
+            byteCount: Long = file.length() - offset
+        ): FileRequestBody {
+            checkWindow(offset, byteCount, file.length())
+            return FileRequestBody(file, null, null, contentType, offset, byteCount)
+        }
+
+        /** Returns the body of `byteCount` bytes of `path` from `offset`, the rest by default. */
+        @JvmStatic
+        @JvmOverloads
+        @RequiresApi(26)
+        fun create(
+            path: Path,
+            contentType: MediaType? = null,
+            offset: Long = 0L,
+            byteCount: Long = Files.size(path) - offset
+        ): FileRequestBody {
+            checkWindow(offset, byteCount, Files.size(path))
+            return FileRequestBody(null, path, null, contentType, offset, byteCount)
+        }
+
+        /**
+         * Returns the body of `byteCount` bytes of `channel` from `offset`, the rest by default.
+         * The caller keeps the channel open until the call is done, and closes it.
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun create(
+            channel: FileChannel,
+            contentType: MediaType? = null,
+            offset: Long = 0L,
+            byteCount: Long = channel.size() - offset
+        ): FileRequestBody {
+            checkWindow(offset, byteCount, channel.size())
+            return FileRequestBody(null, null, channel, contentType, offset, byteCount)
+        }
+
+        private fun checkWindow(offset: Long, byteCount: Long, size: Long) {
+            require(offset >= 0L && byteCount >= 0L && offset + byteCount <= size) {
+                "offset $offset and byteCount $byteCount out of bounds for $size bytes"
+            }
+        }
+
+        @Suppress("NewApi") // Only bodies created from a Path have one.
+        private fun open(path: Any): FileChannel {
+            return FileChannel.open(path as Path, StandardOpenOption.READ)
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import android.os.Handler
+import android.os.Looper
+import android.view.Choreographer
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * A callback executor for the main thread that runs the callbacks submitted during a frame
+ * together, at the start of the next frame, instead of posting one [Handler] message each. When
+ * many calls complete at once, as while loading a feed, this keeps the main looper free for input
+ * and drawing. Callbacks run in the order they were submitted. When no frame comes, as while the app
+ * is in the background, a [Handler] message runs them after [FALLBACK_DELAY_MILLIS] instead.
+ *
+ * Set it with [MSNet.Builder.callbackExecutor]:
+ * ```
+ * MSNet.Builder()
+ *     .callbackExecutor(FrameBatchingExecutor())
+ * ```
+ *
+ *
+ * 主线程回调执行器：将同一帧内提交的回调合并，在下一帧开始时通过 [Choreographer] 一次性执行，避免每个回调各发送一条
+ * [Handler] 消息。回调按提交顺序执行。没有新帧时（例如应用处于后台），回调会在 [FALLBACK_DELAY_MILLIS] 后执行。
+ */
+class FrameBatchingExecutor : Executor, Choreographer.FrameCallback {
+    private val handler = Handler(Looper.getMainLooper())
+    private val pending = ConcurrentLinkedQueue<Runnable>()
+    // Whether a frame callback is posted, or about to be, for the pending callbacks.
+    private val scheduled = AtomicBoolean()
+
+    // Posts the frame callback from the main thread, where the Choreographer lives, and the
+    // message running the callbacks in case no frame comes.
+    private val scheduleFrame = Runnable {
+        Choreographer.getInstance().postFrameCallback(this)
+        handler.postDelayed(fallback, FALLBACK_DELAY_MILLIS)
+    }
+
+    private val fallback = Runnable {
+        Choreographer.getInstance().removeFrameCallback(this)
+        runPending()
+    }
+
+    override fun execute(command: Runnable) {
+        pending.add(command)
+        if (scheduled.compareAndSet(false, true)) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                scheduleFrame.run()
+            } else {
+                handler.post(scheduleFrame)
+            }
+        }
+    }
+
+    override fun doFrame(frameTimeNanos: Long) {
+        handler.removeCallbacks(fallback)
+        runPending()
+    }
+
+    private fun runPending() {
+        // Callbacks submitted from now on schedule the next frame.
+        scheduled.set(false)
+        try {
+            while (true) {
+                val command = pending.poll() ?: break
+                command.run()
+            }
+        } finally {
+            // Only left over when a callback threw, run the rest next frame.
+            if (pending.isNotEmpty() && scheduled.compareAndSet(false, true)) {
+                scheduleFrame.run()
+            }
+        }
+    }
+
+    companion object {
+        /** How long submitted callbacks wait for a frame before they run without one. */
+        const val FALLBACK_DELAY_MILLIS = 32L
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import java.lang.reflect.Constructor
+import java.lang.reflect.InvocationTargetException
+import java.lang.reflect.Method
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Looks up service implementations generated by `msnet-compiler`.
+ *
+ * The generated class lives in the package of the service interface and is named after it, with
+ * nested names joined by `_` and the [SUFFIX] appended. For example `com.example.Api` is
+ * implemented by `com.example.Api_MSNetImpl`. Its constructor takes the function every method
+ * forwards to, so the entry point into [MSNet] does not have to be public API.
+ */
+internal object GeneratedServices {
+    const val SUFFIX = "_MSNetImpl"
+
+    /** Marks services without a generated implementation so the lookup only happens once. */
+    private val MISSING = Any()
+
+    private val constructors: MutableMap<Class<*>, Any> = ConcurrentHashMap()
+
+    fun <T> newInstance(service: Class<T>, invoker: (Method, Array<Any?>) -> Any?): T? {
+        val lookup = constructors.getOrPut(service) { findConstructor(service) ?: MISSING }
+        if (lookup === MISSING) return null
+
+        return try {
+            service.cast((lookup as Constructor<*>).newInstance(invoker))
+        } catch (e: InvocationTargetException) {
+            throw e.cause ?: e
+        }
+    }
+
+    private fun findConstructor(service: Class<*>): Constructor<*>? {
+        val implementation = try {
+            Class.forName(generatedName(service), false, service.classLoader)
+        } catch (ignored: ClassNotFoundException) {
+            return null
+        }
+        if (!service.isAssignableFrom(implementation)) return null
+
+        return try {
+            implementation.getConstructor(Function2::class.java)
+        } catch (ignored: NoSuchMethodException) {
+            null
+        }
+    }
+
+    fun generatedName(service: Class<*>): String {
+        val name = service.name
+        val packageEnd = name.lastIndexOf('.')
+        return name.substring(0, packageEnd + 1) +
+                name.substring(packageEnd + 1).replace('$', '_') +
+                SUFFIX
+    }
+}
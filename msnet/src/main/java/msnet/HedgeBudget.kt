@@ -0,0 +1,50 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import msnet.annotation.Hedge
+
+/**
+ * Bounds the duplicates sent by [Hedge]d calls to a share of all requests made by an [MSNet].
+ *
+ * Every request earns `ratio` of a token, and each duplicate spends a whole one, so at most about
+ * `ratio` extra requests are sent. Unused tokens accumulate up to a small cap, allowing a short
+ * burst of duplicates after a quiet period.
+ */
+internal class HedgeBudget(private val ratio: Double) {
+    private var tokens = 0.0 // Guarded by this.
+    private val maxTokens = maxOf(1.0, ratio * 100)
+
+    @Synchronized
+    fun onRequest() {
+        tokens = minOf(maxTokens, tokens + ratio)
+    }
+
+    @Synchronized
+    fun tryAcquire(): Boolean {
+        if (tokens < 1.0) return false
+        tokens -= 1.0
+        return true
+    }
+}
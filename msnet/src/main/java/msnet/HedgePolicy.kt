@@ -0,0 +1,68 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import msnet.annotation.Hedge
+import java.util.concurrent.TimeUnit
+
+/**
+ * The [Hedge] settings of one service method, with the latencies observed for it.
+ */
+internal class HedgePolicy(hedge: Hedge) {
+    private val delayNanos = TimeUnit.MILLISECONDS.toNanos(hedge.delayMs)
+    val maxExtra = hedge.maxExtra
+
+    // The most recent latencies, in a ring. Guarded by this.
+    private val latencies = LongArray(SAMPLE_COUNT)
+    private var sampleCount = 0
+    private var nextSample = 0
+
+    /**
+     * The time to wait before sending a duplicate, or -1 if the observed latencies are not enough
+     * yet to pick one.
+     */
+    fun delayNanos(): Long {
+        if (delayNanos > 0L) return delayNanos
+        val sorted: LongArray
+        synchronized(this) {
+            if (sampleCount < MIN_SAMPLE_COUNT) return -1L
+            sorted = latencies.copyOf(sampleCount)
+        }
+        sorted.sort()
+        return sorted[(sorted.size * 95 + 99) / 100 - 1]
+    }
+
+    /** Records the time it took the primary attempt of a call to receive its response. */
+    @Synchronized
+    fun recordLatency(nanos: Long) {
+        latencies[nextSample] = nanos
+        nextSample = (nextSample + 1) % SAMPLE_COUNT
+        if (sampleCount < SAMPLE_COUNT) sampleCount++
+    }
+
+    private companion object {
+        const val SAMPLE_COUNT = 128
+        const val MIN_SAMPLE_COUNT = 20
+    }
+}
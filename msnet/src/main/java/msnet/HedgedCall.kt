@@ -0,0 +1,160 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import okcronet.http.Request
+import java.io.IOException
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+
+/**
+ * Races the primary call of a [msnet.annotation.Hedge]d method against duplicates sent after a
+ * delay. The first response wins and is delivered to `callback`, the other calls are canceled.
+ * A failure is only delivered once every call sent has failed.
+ */
+internal class HedgedCall(
+    private val msNet: MSNet,
+    private val callFactory: okcronet.Call.Factory,
+    private val policy: HedgePolicy,
+    private val request: Request,
+    private val priority: Int,
+    primary: okcronet.Call,
+    private val callback: okcronet.Callback
+) {
+    private val host = request.url.host
+    private val attempts = ArrayList<Dispatcher.AsyncCall>(2) // Guarded by this.
+    private var failedCount = 0
+    private var extraLeft = policy.maxExtra
+    private var scheduledHedge: ScheduledFuture<*>? = null
+    private var done = false
+    private var canceled = false
+
+    private val primary = attempt(primary)
+
+    fun start() {
+        synchronized(this) {
+            attempts.add(primary)
+            if (canceled) {
+                primary.call.cancel()
+            } else {
+                scheduleHedge()
+            }
+        }
+        msNet.dispatcher.enqueue(primary)
+    }
+
+    fun cancel() {
+        val toCancel: List<Dispatcher.AsyncCall>
+        synchronized(this) {
+            canceled = true
+            scheduledHedge?.cancel(false)
+            scheduledHedge = null
+            toCancel = ArrayList(attempts)
+        }
+        for (attempt in toCancel) {
+            attempt.call.cancel()
+            msNet.dispatcher.cancel(attempt)
+        }
+    }
+
+    /** Must hold the lock on this. */
+    private fun scheduleHedge() {
+        if (extraLeft == 0 || done || canceled) return
+        val delayNanos = policy.delayNanos()
+        if (delayNanos < 0L) return // Not enough latency samples yet.
+        scheduledHedge = Platform.get().scheduler()
+            .schedule({ sendHedge() }, delayNanos, TimeUnit.NANOSECONDS)
+    }
+
+    private fun sendHedge() {
+        val hedge: Dispatcher.AsyncCall
+        synchronized(this) {
+            scheduledHedge = null
+            if (done || canceled) return
+            if (!msNet.hedgeBudget.tryAcquire()) return // Over budget, keep waiting for the others.
+            extraLeft--
+            hedge = attempt(callFactory.newCall(request))
+            attempts.add(hedge)
+            scheduleHedge()
+        }
+        msNet.dispatcher.enqueue(hedge)
+    }
+
+    private fun attempt(call: okcronet.Call): Dispatcher.AsyncCall {
+        return msNet.dispatcher.AsyncCall(
+            host,
+            priority,
+            call,
+            AttemptCallback(),
+            msNet.eventListener
+        )
+    }
+
+    /**
+     * Records how long the primary took since the dispatcher started it, queue time excluded. When
+     * a duplicate won, the primary is canceled and this is a lower bound of its latency, still a
+     * sample of the method rather than only of the winners. Must hold the lock on this.
+     */
+    private fun recordPrimaryLatency() {
+        val startedAtNanos = primary.startedAtNanos
+        if (startedAtNanos == 0L) return // Never left the dispatcher queue.
+        policy.recordLatency(System.nanoTime() - startedAtNanos)
+    }
+
+    private inner class AttemptCallback : okcronet.Callback {
+        override fun onResponse(call: okcronet.Call, response: okcronet.http.Response) {
+            val losers: List<Dispatcher.AsyncCall>
+            synchronized(this@HedgedCall) {
+                if (done) {
+                    // Lost the race.
+                    response.body?.close()
+                    return
+                }
+                done = true
+                scheduledHedge?.cancel(false)
+                scheduledHedge = null
+                losers = attempts.filter { it.call !== call }
+                recordPrimaryLatency()
+            }
+            for (loser in losers) {
+                loser.call.cancel()
+                msNet.dispatcher.cancel(loser)
+            }
+            callback.onResponse(call, response)
+        }
+
+        override fun onFailure(call: okcronet.Call, e: IOException) {
+            synchronized(this@HedgedCall) {
+                if (done) return
+                failedCount++
+                // Another call in flight may still succeed.
+                if (failedCount < attempts.size) return
+                done = true
+                scheduledHedge?.cancel(false)
+                scheduledHedge = null
+            }
+            callback.onFailure(call, e)
+        }
+    }
+}
@@ -20,12 +20,15 @@ import static msnet.Utils.methodError;
 
 import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 
 import kotlin.coroutines.Continuation;
+import msnet.annotation.DisableCache;
+import msnet.annotation.Streaming;
 import okcronet.http.ResponseBody;
 
 /**
@@ -90,26 +93,53 @@ abstract class HttpServiceMethod<ResponseT, ReturnT> extends ServiceMethod<Retur
             throw methodError(method, "HEAD method must use Void or Unit as response type.");
         }
 
+        boolean isDownload = requestFactory.downloadParameter >= 0;
+        if (isDownload
+                && responseType != File.class
+                && !"java.nio.file.Path".equals(getRawType(responseType).getName())
+                && !Void.class.equals(responseType)
+                && !Utils.isUnit(responseType)) {
+            throw methodError(
+                    method, "@Download methods must use File, Path, Void or Unit as response type.");
+        }
+
+        // Downloads bind a converter to the target of each call instead.
         Converter<okcronet.http.ResponseBody, ResponseT> responseConverter =
-                createResponseConverter(MSNet, method, responseType);
+                isDownload ? null : createResponseConverter(MSNet, method, responseType);
+
+        // Raw and streamed bodies are one-shot, and methods may opt out of caching.
+        ResponseCache responseCache = MSNet.getResponseCache();
+        if (responseCache != null
+                && (!"GET".equals(requestFactory.httpMethod)
+                || isDownload
+                || responseType == ResponseBody.class
+                || Utils.isAnnotationPresent(annotations, Streaming.class)
+                || Utils.isAnnotationPresent(annotations, DisableCache.class))) {
+            responseCache = null;
+        }
 
         if (!isKotlinSuspendFunction) {
-            return new CallAdapted<>(requestFactory, callFactory, responseConverter, callAdapter);
+            return new CallAdapted<>(
+                    MSNet, requestFactory, callFactory, responseConverter, responseCache, callAdapter);
         } else if (continuationWantsResponse) {
             //noinspection unchecked Kotlin compiler guarantees ReturnT to be Object.
             return (HttpServiceMethod<ResponseT, ReturnT>)
                     new SuspendForResponse<>(
+                            MSNet,
                             requestFactory,
                             callFactory,
                             responseConverter,
+                            responseCache,
                             (CallAdapter<ResponseT, Call<ResponseT>>) callAdapter);
         } else {
             //noinspection unchecked Kotlin compiler guarantees ReturnT to be Object.
             return (HttpServiceMethod<ResponseT, ReturnT>)
                     new SuspendForBody<>(
+                            MSNet,
                             requestFactory,
                             callFactory,
                             responseConverter,
+                            responseCache,
                             (CallAdapter<ResponseT, Call<ResponseT>>) callAdapter,
                             continuationBodyNullable,
                             continuationIsUnit);
@@ -136,23 +166,45 @@ abstract class HttpServiceMethod<ResponseT, ReturnT> extends ServiceMethod<Retur
         }
     }
 
+    private final MSNet msNet;
     private final RequestFactory requestFactory;
-    private final Converter<okcronet.http.ResponseBody, ResponseT> responseConverter;
+    private final Type responseType;
+    /** Null for {@code @Download} methods. */
+    private final @Nullable Converter<okcronet.http.ResponseBody, ResponseT> responseConverter;
 
     private final okcronet.Call.Factory callFactory;
 
+    private final @Nullable ResponseCache responseCache;
+
     HttpServiceMethod(
+            MSNet msNet,
             RequestFactory requestFactory,
             okcronet.Call.Factory callFactory,
-            Converter<okcronet.http.ResponseBody, ResponseT> responseConverter) {
+            @Nullable Converter<okcronet.http.ResponseBody, ResponseT> responseConverter,
+            @Nullable ResponseCache responseCache,
+            Type responseType) {
+        this.msNet = msNet;
         this.requestFactory = requestFactory;
+        this.responseType = responseType;
         this.callFactory = callFactory;
         this.responseConverter = responseConverter;
+        this.responseCache = responseCache;
     }
 
     @Override
     final @Nullable ReturnT invoke(Object[] args) {
-        Call<ResponseT> call = new MsCall<>(callFactory, requestFactory, args, responseConverter);
+        Converter<okcronet.http.ResponseBody, ResponseT> converter = responseConverter;
+        if (converter == null) {
+            Object target = args[requestFactory.downloadParameter];
+            if (target == null) {
+                throw new NullPointerException("@Download target was null.");
+            }
+            //noinspection unchecked Checked against the response type when the method was parsed.
+            converter = (Converter<okcronet.http.ResponseBody, ResponseT>)
+                    (Converter<?, ?>) new FileDownload(target, responseType);
+        }
+        Call<ResponseT> call =
+                new MsCall<>(msNet, callFactory, requestFactory, args, converter, responseCache);
         return adapt(call, args);
     }
 
@@ -162,11 +214,14 @@ abstract class HttpServiceMethod<ResponseT, ReturnT> extends ServiceMethod<Retur
         private final CallAdapter<ResponseT, ReturnT> callAdapter;
 
         CallAdapted(
+                MSNet msNet,
                 RequestFactory requestFactory,
                 okcronet.Call.Factory callFactory,
-                Converter<okcronet.http.ResponseBody, ResponseT> responseConverter,
+                @Nullable Converter<okcronet.http.ResponseBody, ResponseT> responseConverter,
+                @Nullable ResponseCache responseCache,
                 CallAdapter<ResponseT, ReturnT> callAdapter) {
-            super(requestFactory, callFactory, responseConverter);
+            super(msNet, requestFactory, callFactory, responseConverter, responseCache,
+                    callAdapter.responseType());
             this.callAdapter = callAdapter;
         }
 
@@ -180,11 +235,14 @@ abstract class HttpServiceMethod<ResponseT, ReturnT> extends ServiceMethod<Retur
         private final CallAdapter<ResponseT, Call<ResponseT>> callAdapter;
 
         SuspendForResponse(
+                MSNet msNet,
                 RequestFactory requestFactory,
                 okcronet.Call.Factory callFactory,
-                Converter<okcronet.http.ResponseBody, ResponseT> responseConverter,
+                @Nullable Converter<okcronet.http.ResponseBody, ResponseT> responseConverter,
+                @Nullable ResponseCache responseCache,
                 CallAdapter<ResponseT, Call<ResponseT>> callAdapter) {
-            super(requestFactory, callFactory, responseConverter);
+            super(msNet, requestFactory, callFactory, responseConverter, responseCache,
+                    callAdapter.responseType());
             this.callAdapter = callAdapter;
         }
 
@@ -207,13 +265,16 @@ abstract class HttpServiceMethod<ResponseT, ReturnT> extends ServiceMethod<Retur
 //        private final boolean isUnit;
 
         SuspendForBody(
+                MSNet msNet,
                 RequestFactory requestFactory,
                 okcronet.Call.Factory callFactory,
-                Converter<okcronet.http.ResponseBody, ResponseT> responseConverter,
+                @Nullable Converter<okcronet.http.ResponseBody, ResponseT> responseConverter,
+                @Nullable ResponseCache responseCache,
                 CallAdapter<ResponseT, Call<ResponseT>> callAdapter,
                 boolean isNullable,
                 boolean isUnit) {
-            super(requestFactory, callFactory, responseConverter);
+            super(msNet, requestFactory, callFactory, responseConverter, responseCache,
+                    callAdapter.responseType());
             this.callAdapter = callAdapter;
             this.isNullable = isNullable;
 //            this.isUnit = isUnit;
@@ -0,0 +1,124 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A plain JVM, for server-side tools, load generators and unit tests. Callbacks run on a virtual
+ * thread each on JDK 21 and later, on the common {@link ForkJoinPool} before. Either can be
+ * replaced with {@code MSNet.Builder.callbackExecutor}.
+ */
+// Never loaded on Android, so the API level checks of Android lint do not apply.
+@SuppressWarnings("NewApi")
+final class JvmPlatform extends Platform {
+  private @Nullable Executor callbackExecutor;
+  private @Nullable Method privateLookupIn;
+  private @Nullable Constructor<Lookup> lookupConstructor;
+
+  @Override
+  synchronized Executor defaultCallbackExecutor() {
+    Executor executor = callbackExecutor;
+    if (executor == null) {
+      executor = createCallbackExecutor();
+      callbackExecutor = executor;
+    }
+    return executor;
+  }
+
+  private static Executor createCallbackExecutor() {
+    try {
+      // JDK 21+. Looked up reflectively since this code also compiles against older APIs.
+      return (Executor)
+          java.util.concurrent.Executors.class
+              .getMethod("newVirtualThreadPerTaskExecutor")
+              .invoke(null);
+    } catch (ReflectiveOperationException ignored) {
+      return ForkJoinPool.commonPool();
+    }
+  }
+
+  @Override
+  List<? extends CallAdapter.Factory> createDefaultCallAdapterFactories(
+      @Nullable Executor callbackExecutor) {
+    return asList(
+        new CompletableFutureCallAdapterFactory(),
+        new ResponseFlowCallAdapterFactory(),
+        new DefaultCallAdapterFactory(callbackExecutor));
+  }
+
+  @Override
+  List<? extends Converter.Factory> createDefaultConverterFactories() {
+    return singletonList(new OptionalConverterFactory());
+  }
+
+  @Override
+  boolean isDefaultMethod(Method method) {
+    return method.isDefault();
+  }
+
+  @Nullable
+  @Override
+  Object invokeDefaultMethod(
+      Method method, Class<?> declaringClass, Object proxy, Object... args) throws Throwable {
+    return lookup(declaringClass)
+        .unreflectSpecial(method, declaringClass)
+        .bindTo(proxy)
+        .invokeWithArguments(args);
+  }
+
+  /** Returns a lookup with private access to {@code declaringClass}. */
+  private synchronized Lookup lookup(Class<?> declaringClass) throws ReflectiveOperationException {
+    Method privateLookupIn = this.privateLookupIn;
+    Constructor<Lookup> lookupConstructor = this.lookupConstructor;
+    if (privateLookupIn == null && lookupConstructor == null) {
+      try {
+        // Java 9+.
+        privateLookupIn =
+            MethodHandles.class.getMethod("privateLookupIn", Class.class, Lookup.class);
+        this.privateLookupIn = privateLookupIn;
+      } catch (NoSuchMethodException e) {
+        // Java 8 has no public way, use the trusted lookup.
+        lookupConstructor = Lookup.class.getDeclaredConstructor(Class.class, int.class);
+        lookupConstructor.setAccessible(true);
+        this.lookupConstructor = lookupConstructor;
+      }
+    }
+    if (privateLookupIn != null) {
+      return (Lookup) privateLookupIn.invoke(null, declaringClass, MethodHandles.lookup());
+    }
+    return lookupConstructor.newInstance(declaringClass, -1 /* trusted */);
+  }
+}
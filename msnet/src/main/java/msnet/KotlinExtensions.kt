@@ -23,7 +23,7 @@
  */
 package msnet
 
-import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.MainCoroutineDispatcher
 import kotlinx.coroutines.suspendCancellableCoroutine
 import kotlin.coroutines.Continuation
 import kotlin.coroutines.ContinuationInterceptor
@@ -33,64 +33,36 @@ import kotlin.coroutines.resumeWithException
 inline fun <reified T : Any> MSNet.create(): T = create(T::class.java)
 
 suspend fun <T : Any> Call<T>.await(): T {
-    return suspendCancellableCoroutine { continuation ->
-        continuation.invokeOnCancellation {
-            cancel()
-        }
-
-        enqueue(object : Callback<T> {
-            override fun onResponse(call: Call<T>, response: Response<T>) {
-                if (response.isSuccessful) {
-                    val body = response.body()
-                    if (body == null) {
-                        val invocation = request().tag(Invocation::class.java)!!
-                        val method = invocation.method()
-                        val e = KotlinNullPointerException(
-                            "Response from " +
-                                    method.declaringClass.name +
-                                    '.' +
-                                    method.name +
-                                    " was null but response body type was declared as non-null"
-                        )
-                        continuation.resumeWithException(e)
-                    } else {
-                        continuation.resume(body)
-                    }
-                } else {
-                    continuation.resumeWithException(HttpException(response))
-                }
-            }
-
-            override fun onFailure(call: Call<T>, t: Throwable) {
-                continuation.resumeWithException(t)
-            }
-        })
-
+    val response = awaitResponse()
+    if (!response.isSuccessful) {
+        throw HttpException(response)
+    }
+    return response.body() ?: run {
+        val invocation = request().tag(Invocation::class.java)!!
+        val method = invocation.method()
+        throw KotlinNullPointerException(
+            "Response from " +
+                    method.declaringClass.name +
+                    '.' +
+                    method.name +
+                    " was null but response body type was declared as non-null"
+        )
     }
 }
 
 suspend fun <T : Any> Call<T?>.awaitNullable(): T? {
-    return suspendCancellableCoroutine { continuation ->
-        continuation.invokeOnCancellation {
-            cancel()
-        }
-        enqueue(object : Callback<T?> {
-            override fun onResponse(call: Call<T?>, response: Response<T?>) {
-                if (response.isSuccessful) {
-                    continuation.resume(response.body())
-                } else {
-                    continuation.resumeWithException(HttpException(response))
-                }
-            }
-
-            override fun onFailure(call: Call<T?>, t: Throwable) {
-                continuation.resumeWithException(t)
-            }
-        })
+    val response = awaitResponse()
+    if (!response.isSuccessful) {
+        throw HttpException(response)
     }
+    return response.body()
 }
 
 suspend fun <T> Call<T>.awaitResponse(): Response<T> {
+    // Calls of service methods resume their coroutine directly, without a Callback.
+    if (this is MsCall<T>) {
+        return awaitDirect()
+    }
     return suspendCancellableCoroutine { continuation ->
         continuation.invokeOnCancellation {
             cancel()
@@ -112,6 +84,7 @@ suspend fun <T> Call<T>.awaitResponse(): Response<T> {
  * 判断协程是否运行在子线程
  */
 fun Continuation<*>.isMainDispatcher(): Boolean {
-    val coroutineContext: ContinuationInterceptor? = this.context[ContinuationInterceptor]
-    return Dispatchers.Main == coroutineContext || Dispatchers.Main.immediate == coroutineContext
+    // Dispatchers.Main and Main.immediate are both main dispatchers. Checking the type rather than
+    // reading Dispatchers.Main also works on a plain JVM, which has none.
+    return this.context[ContinuationInterceptor] is MainCoroutineDispatcher
 }
\ No newline at end of file
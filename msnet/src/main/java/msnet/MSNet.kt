@@ -15,17 +15,22 @@
  */
 package msnet
 
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.asCoroutineDispatcher
 import msnet.annotation.*
 import okcronet.CronetClient
 import okcronet.http.HttpUrl
 import okcronet.http.HttpUrl.Companion.toHttpUrl
 import okcronet.http.RequestBody
 import okcronet.http.ResponseBody
+import java.io.File
 import java.lang.reflect.*
 import java.net.URL
 import java.util.*
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
 import java.util.concurrent.Executor
+import java.util.concurrent.FutureTask
 
 
 /**
@@ -40,9 +45,32 @@ class MSNet private constructor(
     val callAdapterFactories: List<CallAdapter.Factory>,
     val defaultCallAdapterFactoriesSize: Int,
     val callbackExecutor: Executor?,
+    val dispatchExecutor: Executor,
+    val dispatcher: Dispatcher,
+    val eventListener: EventListener,
+    val coalesceGetRequests: Boolean,
+    val responseCache: ResponseCache?,
+    val hedgeBudgetRatio: Double,
+    val retryPolicy: RetryPolicy?,
+    val retryBudgetMaxTokens: Int,
+    val retryBudgetTokenRatio: Double,
+    val circuitBreaker: CircuitBreaker?,
+    val conversionExecutor: Executor,
+    val conversionDispatcher: CoroutineDispatcher,
     val validateEagerly: Boolean
 ) {
-    private val serviceMethodCache: MutableMap<Method, ServiceMethod<*>> = ConcurrentHashMap()
+    /** Holds either a parsed [ServiceMethod] or the [FutureTask] parsing it.  */
+    private val serviceMethodCache: ConcurrentHashMap<Method, Any> = ConcurrentHashMap()
+
+    /** The generated services whose methods [create] already started to parse. */
+    private val preparedServices: MutableSet<Class<*>> =
+        Collections.newSetFromMap(ConcurrentHashMap())
+
+    internal val callCoalescer = CallCoalescer()
+
+    internal val hedgeBudget = HedgeBudget(hedgeBudgetRatio)
+
+    internal val retryBudget = RetryBudget(retryBudgetMaxTokens.toDouble(), retryBudgetTokenRatio)
 
 
     fun cronetEngineVersionString() = cronetClient.cronetEngine.versionString
@@ -100,6 +128,13 @@ class MSNet private constructor(
     // Single-interface proxy creation guarded by parameter safety.
     fun <T> create(service: Class<T>): T {
         validateServiceInterface(service)
+        // Prefer the implementation generated by msnet-compiler, it avoids the proxy dispatch.
+        GeneratedServices.newInstance(service) { method, args ->
+            loadServiceMethod(method).invoke(args)
+        }?.let {
+            prepareServiceMethods(service)
+            return it
+        }
         return Proxy.newProxyInstance(
             service.classLoader, arrayOf<Class<*>>(service),
             object : InvocationHandler {
@@ -123,7 +158,108 @@ class MSNet private constructor(
             }) as T
     }
 
+    /**
+     * Parse the service methods of `services` in the background so the first call to each of them
+     * does not pay for it on the calling thread.
+     *
+     *
+     * Every method is parsed as its own task on `executor`, so a pool with several threads parses
+     * them in parallel. The parsed methods fill the same cache [create] uses. Parse failures do
+     * not throw, they are reported through `listener` and [ServiceWarmUp.failures].
+     */
+    @JvmOverloads
+    fun warmUp(
+        vararg services: Class<*>,
+        executor: Executor,
+        listener: ServiceWarmUp.Listener? = null
+    ): ServiceWarmUp {
+        val methods = ArrayList<Method>()
+        for (service in services) {
+            checkServiceInterface(service)
+            methods.addAll(serviceMethods(service))
+        }
+        return ServiceWarmUp(methods, listener).also {
+            it.start(executor) { method -> loadServiceMethod(method) }
+        }
+    }
+
+    /**
+     * Download `url`, resolved against [baseUrl], into `target` as up to `segmentCount` byte ranges
+     * fetched at the same time on the [dispatchExecutor]. Worth it for large files on links with a
+     * long round trip time, where one stream cannot use all the bandwidth.
+     */
+    @JvmOverloads
+    fun segmentedDownload(
+        url: String,
+        target: File,
+        segmentCount: Int = 4,
+        listener: SegmentedDownload.Listener? = null
+    ): SegmentedDownload {
+        require(segmentCount >= 1) { "segmentCount < 1: $segmentCount" }
+        val resolved = requireNotNull(baseUrl.resolve(url)) { "Invalid URL: $url" }
+        return SegmentedDownload(cronetClient, resolved, target, segmentCount, listener).also {
+            it.start(dispatchExecutor)
+        }
+    }
+
+    /**
+     * Upload `file` to the tus `endpoint`, resolved against [baseUrl], in chunks of `chunkSize`
+     * bytes sent on the [dispatchExecutor]. Progress is saved to `stateFile`, so that starting the
+     * same upload again, even after the process died, resumes it where the server got to.
+     * A `parallelism` above 1 sends that many parts at the same time, which needs the server to
+     * support the tus `concatenation` extension.
+     */
+    @JvmOverloads
+    fun resumableUpload(
+        endpoint: String,
+        file: File,
+        stateFile: File,
+        chunkSize: Long = 4L * 1024 * 1024,
+        parallelism: Int = 1,
+        metadata: Map<String, String> = emptyMap(),
+        listener: ResumableUpload.Listener? = null
+    ): ResumableUpload {
+        require(file.isFile) { "Not a file: $file" }
+        require(chunkSize >= 1L) { "chunkSize < 1: $chunkSize" }
+        require(parallelism >= 1) { "parallelism < 1: $parallelism" }
+        val resolved = requireNotNull(baseUrl.resolve(endpoint)) { "Invalid URL: $endpoint" }
+        val service = create(ResumableUpload.Service::class.java)
+        return ResumableUpload(
+            service, resolved, file, stateFile, chunkSize, parallelism, metadata, listener
+        ).also {
+            it.start(dispatchExecutor)
+        }
+    }
+
     private fun validateServiceInterface(service: Class<*>) {
+        checkServiceInterface(service)
+        if (validateEagerly) {
+            for (method in serviceMethods(service)) {
+                loadServiceMethod(method)
+            }
+        }
+    }
+
+    /**
+     * Builds the parameter handlers and converters of the methods of a generated `service` on the
+     * [dispatchExecutor], once per service, so that its first calls do not parse them on the
+     * calling thread. Methods that fail to parse throw again when they are called.
+     */
+    private fun prepareServiceMethods(service: Class<*>) {
+        if (validateEagerly || !preparedServices.add(service)) return
+        ServiceWarmUp(serviceMethods(service), null).start(dispatchExecutor) { method ->
+            loadServiceMethod(method)
+        }
+    }
+
+    private fun serviceMethods(service: Class<*>): List<Method> {
+        val platform = Platform.get()
+        return service.declaredMethods.filter { method ->
+            !platform.isDefaultMethod(method) && !Modifier.isStatic(method.modifiers)
+        }
+    }
+
+    private fun checkServiceInterface(service: Class<*>) {
         require(service.isInterface) { "API declarations must be interfaces." }
         val check: Deque<Class<*>> = ArrayDeque(1)
         check.add(service)
@@ -139,26 +275,50 @@ class MSNet private constructor(
             }
             Collections.addAll(check, *candidate.interfaces)
         }
-        if (validateEagerly) {
-            val platform = Platform.get()
-            for (method in service.declaredMethods) {
-                if (!platform.isDefaultMethod(method) && !Modifier.isStatic(method.modifiers)) {
-                    loadServiceMethod(method)
-                }
-            }
-        }
     }
 
     private fun loadServiceMethod(method: Method): ServiceMethod<*> {
-        val result = serviceMethodCache[method]
-        if (result != null) return result
-        return synchronized(serviceMethodCache) {
-            serviceMethodCache[method] ?: ServiceMethod.parseAnnotations<Any>(
-                this,
-                method,
-                cronetClient
-            ).apply {
-                serviceMethodCache[method] = this
+        // Cold path when absent. Each method is parsed once, callers of that method wait for the
+        // parse in flight while other methods are parsed in parallel.
+        val lookup = serviceMethodCache[method] ?: parseServiceMethod(method)
+        if (lookup is ServiceMethod<*>) return lookup
+
+        @Suppress("UNCHECKED_CAST")
+        return awaitServiceMethod(method, lookup as FutureTask<ServiceMethod<*>>)
+    }
+
+    /** Returns the cached [ServiceMethod] or parse in flight, starting a parse if there is none. */
+    private fun parseServiceMethod(method: Method): Any {
+        val task = FutureTask<ServiceMethod<*>> {
+            ServiceMethod.parseAnnotations<Any>(this, method, cronetClient)
+        }
+        val existing = serviceMethodCache.putIfAbsent(method, task)
+        if (existing != null) return existing
+
+        task.run()
+        return task
+    }
+
+    private fun awaitServiceMethod(method: Method, task: FutureTask<ServiceMethod<*>>): ServiceMethod<*> {
+        var interrupted = false
+        try {
+            while (true) {
+                try {
+                    val result = task.get()
+                    // Replace the finished task so later lookups take the fast path.
+                    serviceMethodCache.replace(method, task, result)
+                    return result
+                } catch (e: InterruptedException) {
+                    interrupted = true
+                } catch (e: ExecutionException) {
+                    // Forget the failed parse so the next call reports the error again.
+                    serviceMethodCache.remove(method, task)
+                    throw e.cause ?: e
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt()
             }
         }
     }
@@ -392,6 +552,18 @@ class MSNet private constructor(
         private val converterFactories: MutableList<Converter.Factory> = ArrayList()
         private val callAdapterFactories: MutableList<CallAdapter.Factory> = ArrayList()
         private var callbackExecutor: Executor? = null
+        private var dispatchExecutor: Executor? = null
+        private var dispatcher: Dispatcher? = null
+        private var eventListener: EventListener = EventListener.NONE
+        private var coalesceGetRequests = false
+        private var responseCache: ResponseCache? = null
+        private var hedgeBudgetRatio = 0.05
+        private var retryPolicy: RetryPolicy? = null
+        private var retryBudgetMaxTokens = 10
+        private var retryBudgetTokenRatio = 0.1
+        private var circuitBreaker: CircuitBreaker? = null
+        private var conversionExecutor: Executor? = null
+        private var conversionDispatcher: CoroutineDispatcher? = null
         private var validateEagerly = false
         private var cronetClient: CronetClient? = null
 
@@ -418,6 +590,18 @@ class MSNet private constructor(
                 i++
             }
             callbackExecutor = msNet.callbackExecutor
+            dispatchExecutor = msNet.dispatchExecutor
+            dispatcher = msNet.dispatcher
+            eventListener = msNet.eventListener
+            coalesceGetRequests = msNet.coalesceGetRequests
+            responseCache = msNet.responseCache
+            hedgeBudgetRatio = msNet.hedgeBudgetRatio
+            retryPolicy = msNet.retryPolicy
+            retryBudgetMaxTokens = msNet.retryBudgetMaxTokens
+            retryBudgetTokenRatio = msNet.retryBudgetTokenRatio
+            circuitBreaker = msNet.circuitBreaker
+            conversionExecutor = msNet.conversionExecutor
+            conversionDispatcher = msNet.conversionDispatcher
             validateEagerly = msNet.validateEagerly
         }
 
@@ -540,6 +724,124 @@ class MSNet private constructor(
             return this
         }
 
+        /**
+         * The executor on which asynchronous calls build their request, from the service method
+         * arguments, before it is handed to Cronet. This keeps URL building and request body
+         * conversion off the thread calling [Call.enqueue], which is often the main thread.
+         *
+         *
+         * Defaults to a shared pool of background threads.
+         */
+        fun dispatchExecutor(executor: Executor): Builder {
+            dispatchExecutor = executor
+            return this
+        }
+
+        /**
+         * The dispatcher limiting how many asynchronous calls run at once, overall and, when
+         * configured, per host, and ordering the waiting ones by [PRIORITY]. Defaults to a new
+         * [Dispatcher] for each [MSNet].
+         */
+        fun dispatcher(dispatcher: Dispatcher): Builder {
+            this.dispatcher = dispatcher
+            return this
+        }
+
+        /** Receives the metrics events of calls made by the [MSNet]. See [EventListener]. */
+        fun eventListener(eventListener: EventListener): Builder {
+            this.eventListener = eventListener
+            return this
+        }
+
+        /**
+         * Coalesce identical `GET` requests that are in flight at the same time, as if every `GET`
+         * service method was annotated with [Coalesce]. Methods annotated with [Streaming] are left
+         * out because their body cannot be shared.
+         */
+        fun coalesceGetRequests(coalesceGetRequests: Boolean): Builder {
+            this.coalesceGetRequests = coalesceGetRequests
+            return this
+        }
+
+        /**
+         * Answer `GET` calls from an in-memory cache of converted bodies when the server allows
+         * it. See [ResponseCache].
+         */
+        fun responseCache(responseCache: ResponseCache?): Builder {
+            this.responseCache = responseCache
+            return this
+        }
+
+        /**
+         * The share of extra requests that [Hedge]d methods may add, 0.05 (5%) by default. Each
+         * request earns this fraction of a duplicate, so 0 disables hedging.
+         */
+        fun hedgeBudget(ratio: Double): Builder {
+            require(ratio in 0.0..1.0) { "ratio out of [0, 1]: $ratio" }
+            hedgeBudgetRatio = ratio
+            return this
+        }
+
+        /**
+         * Retry failed calls of idempotent methods (`GET`, `HEAD`, `OPTIONS`, `PUT`, `DELETE`)
+         * with `retryPolicy`. Methods annotated with [Retry] are retried whatever their HTTP
+         * method, using the annotation values over this policy. Off by default.
+         */
+        fun retryPolicy(retryPolicy: RetryPolicy?): Builder {
+            this.retryPolicy = retryPolicy
+            return this
+        }
+
+        /**
+         * Caps the retries of all calls, so that an outage does not multiply the load on the
+         * server. Each failed attempt takes one of `maxTokens` tokens, each success gives back
+         * `tokenRatio` of a token, and retries stop while fewer than half of the tokens are left.
+         * Defaults to 10 tokens and a ratio of 0.1.
+         */
+        fun retryBudget(maxTokens: Int, tokenRatio: Double): Builder {
+            require(maxTokens > 0) { "maxTokens <= 0: $maxTokens" }
+            require(tokenRatio > 0.0) { "tokenRatio <= 0: $tokenRatio" }
+            retryBudgetMaxTokens = maxTokens
+            retryBudgetTokenRatio = tokenRatio
+            return this
+        }
+
+        /**
+         * Fail calls fast with [CircuitBreakerOpenException] while their host, or service method,
+         * keeps failing. See [CircuitBreaker]. Off by default.
+         */
+        fun circuitBreaker(circuitBreaker: CircuitBreaker?): Builder {
+            this.circuitBreaker = circuitBreaker
+            return this
+        }
+
+        /**
+         * The executor on which asynchronous calls read and convert their response body, so that
+         * large payloads are not parsed on Cronet's network thread, which would stall the other
+         * calls. Queue wait and conversion times are reported to
+         * [EventListener.responseConverted].
+         *
+         *
+         * Defaults to a shared pool of a few background threads, with an unbounded queue: a burst
+         * of responses waits for a thread rather than being rejected, each holding its unread body
+         * meanwhile. An executor that rejects tasks fails the calls it rejects.
+         */
+        fun conversionExecutor(executor: Executor): Builder {
+            conversionExecutor = executor
+            return this
+        }
+
+        /**
+         * The dispatcher on which suspend functions called from the main dispatcher read and
+         * convert their response body, before resuming on the main thread. Suspend functions
+         * called from any other dispatcher convert on their own. Defaults to the
+         * [conversion executor][conversionExecutor].
+         */
+        fun conversionDispatcher(dispatcher: CoroutineDispatcher): Builder {
+            conversionDispatcher = dispatcher
+            return this
+        }
+
         /** Returns a modifiable list of call adapter factories.  */
         fun callAdapterFactories(): List<CallAdapter.Factory> {
             return callAdapterFactories
@@ -568,6 +870,10 @@ class MSNet private constructor(
 
             val platform = Platform.get()
             val callbackExecutor = callbackExecutor ?: platform.defaultCallbackExecutor()
+            val dispatchExecutor = dispatchExecutor ?: platform.defaultDispatchExecutor()
+            val conversionExecutor = conversionExecutor ?: platform.defaultConversionExecutor()
+            val conversionDispatcher =
+                conversionDispatcher ?: conversionExecutor.asCoroutineDispatcher()
 
             // Make a defensive copy of the adapters and add the default Call adapter.
             val callAdapterFactories: MutableList<CallAdapter.Factory> = ArrayList(
@@ -596,6 +902,18 @@ class MSNet private constructor(
                 callAdapterFactories,
                 defaultCallAdapterFactories.size,
                 callbackExecutor,
+                dispatchExecutor,
+                dispatcher ?: Dispatcher(),
+                eventListener,
+                coalesceGetRequests,
+                responseCache,
+                hedgeBudgetRatio,
+                retryPolicy,
+                retryBudgetMaxTokens,
+                retryBudgetTokenRatio,
+                circuitBreaker,
+                conversionExecutor,
+                conversionDispatcher,
                 validateEagerly
             )
         }
@@ -2,10 +2,23 @@ package msnet
 
 import okcronet.*
 import okcronet.http.*
+import kotlinx.coroutines.CancellableContinuation
+import kotlinx.coroutines.suspendCancellableCoroutine
+import okcronet.http.ResponseBody.Companion.asResponseBody
+import okio.AsyncTimeout
+import okio.Buffer
 import okio.BufferedSource
 import okio.Timeout
 import java.io.IOException
+import java.io.InterruptedIOException
+import java.net.SocketTimeoutException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicBoolean
+import kotlin.coroutines.resume
+import kotlin.coroutines.resumeWithException
 
 /**
  * @author 李沐阳
@@ -13,19 +26,54 @@ import java.util.concurrent.atomic.AtomicBoolean
  * @description cronet 请求实现类
  */
 internal class MsCall<T>(
+    private val msNet: MSNet,
     private val callFactory: okcronet.Call.Factory,
     private val requestFactory: RequestFactory,
     private val args: Array<Any>,
-    private val responseConverter: Converter<ResponseBody, T>
+    private val responseConverter: Converter<ResponseBody, T>,
+    /** Non-null when the service method may be answered from the cache. */
+    private val responseCache: ResponseCache?
 ) : Call<T> {
 
-    private val request: Request = requestFactory.create(args)
-
     private val executed = AtomicBoolean()
 
+    @Volatile
     private var canceled: Boolean = false
 
-    private val rawCall by lazy(LazyThreadSafetyMode.NONE) { callFactory.newCall(request) }
+    // Set when the call deadline canceled the call.
+    @Volatile
+    private var timedOut: Boolean = false
+
+    // The deadline of the whole call, across attempts. Returned by timeout() so it can be changed.
+    private val callTimeout = object : AsyncTimeout() {
+        override fun timedOut() {
+            timedOut = true
+            cancel()
+        }
+    }.apply { timeout(requestFactory.callTimeoutMillis, TimeUnit.MILLISECONDS) }
+
+    // The request is built on first use rather than in the constructor, so calls that are never
+    // started, or canceled first, do not pay for it. Guarded by this.
+    private var request: Request? = null
+    private var rawCall: okcronet.Call? = null
+    // The slot rawCall waits for, or holds, in the dispatcher.
+    private var asyncCall: Dispatcher.AsyncCall? = null
+
+    // Set while the current attempt holds a rate limit permit that it may still give back.
+    private val rateLimitPermitHeld = AtomicBoolean()
+    // Races rawCall against duplicates when the method is hedged.
+    private var hedgedCall: HedgedCall? = null
+    // Set instead of rawCall when the request is coalesced with identical ones.
+    private var coalescedCall: CallCoalescer.Waiter? = null
+    // The wait before the next attempt, for a retry backoff or a rate limit.
+    private var pendingAttempt: PendingAttempt? = null
+    private var attemptWait: CountDownLatch? = null
+    // The stale cache entry this call revalidates with a conditional request.
+    private var cacheEntry: ResponseCache.Entry? = null
+    // Ask the network even when the cache entry is fresh.
+    private var revalidate = false
+    // Either a RuntimeException, non-fatal Error, or IOException.
+    private var creationFailure: Throwable? = null
 
     @Throws(IOException::class)
     override fun execute(): Response<T> {
@@ -33,9 +81,113 @@ internal class MsCall<T>(
             "Already Executed"
         }
 
-        val rawResponse =  rawCall.execute()
+        callTimeout.enter()
+        try {
+            return executeAttempts()
+        } catch (e: IOException) {
+            throw timeoutIfTimedOut(e)
+        } finally {
+            callTimeout.exit()
+        }
+    }
 
-        return parseResponse(rawResponse)
+    @Throws(IOException::class)
+    private fun executeAttempts(): Response<T> {
+        cachedResponse()?.let { return it }
+        msNet.hedgeBudget.onRequest()
+
+        val retryPolicy = requestFactory.retryPolicy
+        var attempt = 1
+        while (true) {
+            val waitNanos = reserveRateLimit()
+            if (waitNanos > 0L) {
+                try {
+                    awaitAttempt(waitNanos)
+                } catch (e: IOException) {
+                    refundRateLimit()
+                    throw e
+                }
+            }
+            val acquired = acquirePermit()
+            // A coalesced call hands its permit over to the network call it shares.
+            val permit = if (requestFactory.coalesce) null else acquired
+            val rawResponse = try {
+                executeAttempt(acquired).also { permit?.onResponse(it.code) }
+            } catch (e: IOException) {
+                recordFailure(permit)
+                val delayMillis = retryDelayMillis(retryPolicy, attempt, e)
+                if (delayMillis < 0L) throw e
+                awaitAttempt(TimeUnit.MILLISECONDS.toNanos(delayMillis))
+                attempt++
+                continue
+            } finally {
+                // A no-op when the outcome was recorded, frees a half-open trial otherwise.
+                permit?.release()
+            }
+
+            val delayMillis = retryDelayMillis(retryPolicy, attempt, rawResponse)
+            if (delayMillis < 0L) {
+                try {
+                    return convert(rawResponse, System.nanoTime())
+                } catch (e: IOException) {
+                    val resumeMillis = resumeDelayMillis(retryPolicy, attempt, e)
+                    if (resumeMillis < 0L) throw e
+                    awaitAttempt(TimeUnit.MILLISECONDS.toNanos(resumeMillis))
+                    attempt++
+                    continue
+                }
+            }
+            rawResponse.body?.close()
+            awaitAttempt(TimeUnit.MILLISECONDS.toNanos(delayMillis))
+            attempt++
+        }
+    }
+
+    /**
+     * Sends the request once and waits for the response. The circuit breaker `permit` is only
+     * used by a coalesced request.
+     */
+    @Throws(IOException::class)
+    private fun executeAttempt(permit: CircuitBreaker.Permit?): okcronet.http.Response {
+        val attemptTimeout = newAttemptTimeout()
+        attemptTimeout?.enter()
+        val response = try {
+            if (requestFactory.coalesce) {
+                val future = CallCoalescer.ResponseFuture()
+                joinCoalescedCall(future, permit)
+                future.await()
+            } else {
+                val call = synchronized(this) { getRawCall() }
+                if (canceled) {
+                    call.cancel()
+                }
+                call.execute()
+            }
+        } catch (e: IOException) {
+            if (attemptTimeout?.exit() == true) throw attemptTimeoutException(e)
+            throw e
+        }
+        attemptTimeout?.exit()
+        return response
+    }
+
+    /** Blocks before the next attempt of [execute], and forgets the calls of the last one. */
+    @Throws(IOException::class)
+    private fun awaitAttempt(delayNanos: Long) {
+        val wait = synchronized(this) {
+            rawCall = null
+            coalescedCall = null
+            attemptWait ?: CountDownLatch(1).also { attemptWait = it }
+        }
+        val canceledWhileWaiting = try {
+            wait.await(delayNanos, TimeUnit.NANOSECONDS)
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+            throw InterruptedIOException("Interrupted while waiting for the next attempt")
+        }
+        if (canceledWhileWaiting || canceled) {
+            throw IOException("Canceled")
+        }
     }
 
     override fun enqueue(callback: Callback<T>) {
@@ -43,39 +195,586 @@ internal class MsCall<T>(
             "Already Executed"
         }
 
-        rawCall.enqueue(object : okcronet.Callback {
-            override fun onResponse(call: okcronet.Call, response: okcronet.http.Response) {
-                val msResponse: Response<T>
-                try {
-                    msResponse = parseResponse(response)
-                } catch (e: Throwable) {
-                    Utils. throwIfFatal(e)
-                    callFailure(e)
-                    return
+        callTimeout.enter()
+        dispatchRawCall(CallbackResponseCallback(callback))
+    }
+
+    /**
+     * Runs the call for a suspend function, without the [Callback] of [enqueue]. The continuation
+     * resumes on the caller's dispatcher. Called from the main dispatcher, the request is built on
+     * the dispatch executor and the response converted on [MSNet.conversionDispatcher]. From any
+     * other dispatcher both run on the caller's own, which saves two thread hops.
+     */
+    internal suspend fun awaitDirect(): Response<T> {
+        check(!executed.getAndSet(true)) {
+            "Already Executed"
+        }
+
+        callTimeout.enter()
+        try {
+            var responseCallback: ResponseCallback? = null
+            val result = suspendCancellableCoroutine<Any> { continuation ->
+                continuation.invokeOnCancellation {
+                    cancel()
                 }
 
-                try {
-                    callback.onResponse(this@MsCall, msResponse)
-                } catch (t: Throwable) {
-                    Utils.throwIfFatal(t)
-                    t.printStackTrace()
+                val onMainThread = continuation.isMainDispatcher()
+                val callback =
+                    ContinuationResponseCallback(continuation, convertOnCaller = !onMainThread)
+                responseCallback = callback
+                if (onMainThread) {
+                    dispatchRawCall(callback)
+                } else {
+                    startRawCall(callback)
                 }
             }
+            if (result is okcronet.http.Response) {
+                return convert(result, responseCallback!!.receivedAtNanos)
+            }
+            @Suppress("UNCHECKED_CAST")
+            return result as Response<T>
+        } catch (e: IOException) {
+            throw timeoutIfTimedOut(e)
+        } finally {
+            callTimeout.exit()
+        }
+    }
+
+    /** Starts the call on the dispatch executor, unless its request is already built. */
+    private fun dispatchRawCall(responseCallback: ResponseCallback) {
+        val built: Request?
+        val failure: Throwable?
+        synchronized(this) {
+            built = request
+            failure = creationFailure
+        }
+        if (built != null || failure != null) {
+            // Already built by request(), there is nothing left to move off this thread.
+            startRawCall(responseCallback)
+            return
+        }
+
+        try {
+            msNet.dispatchExecutor.execute { startRawCall(responseCallback) }
+        } catch (e: RejectedExecutionException) {
+            responseCallback.fail(IOException("Dispatch executor rejected the call", e))
+        }
+    }
+
+    private fun startRawCall(responseCallback: ResponseCallback) {
+        if (canceled) {
+            // Do not build a request nobody is waiting for.
+            responseCallback.fail(IOException("Canceled"))
+            return
+        }
 
-            override fun onFailure(call: okcronet.Call, e: IOException) {
-                callFailure(e)
+        try {
+            val cached = cachedResponse()
+            if (cached != null) {
+                responseCallback.deliver(cached)
+                return
             }
+            msNet.hedgeBudget.onRequest()
 
-            private fun callFailure(e: Throwable) {
-                try {
-                    callback.onFailure(this@MsCall, e)
-                } catch (t: Throwable) {
-                    Utils.throwIfFatal(t)
-                    t.printStackTrace()
+            startAttempt(responseCallback)
+        } catch (t: Throwable) {
+            Utils.throwIfFatal(t)
+            responseCallback.fail(t)
+        }
+    }
+
+    /**
+     * Sends the request once, the response or failure goes to `responseCallback`. Unless
+     * `rateLimitReserved`, the attempt first waits for the rate limit of the method.
+     */
+    @Throws(IOException::class)
+    private fun startAttempt(responseCallback: ResponseCallback, rateLimitReserved: Boolean = false) {
+        if (!rateLimitReserved) {
+            val waitNanos = reserveRateLimit()
+            if (waitNanos > 0L) {
+                responseCallback.scheduleAttempt(waitNanos, rateLimitReserved = true)
+                return
+            }
+        }
+        val permit = acquirePermit()
+        // A coalesced call hands its permit over to the network call it shares.
+        responseCallback.permit = if (requestFactory.coalesce) null else permit
+        responseCallback.attemptTimeout = newAttemptTimeout()?.also { it.enter() }
+
+        if (requestFactory.coalesce) {
+            joinCoalescedCall(responseCallback, permit)
+            return
+        }
+
+        val hedgePolicy = requestFactory.hedgePolicy
+        if (hedgePolicy != null) {
+            startHedgedCall(hedgePolicy, responseCallback)
+            return
+        }
+
+        val dispatcher = msNet.dispatcher
+        val asyncCall = synchronized(this) {
+            val call = getRawCall()
+            val host = getRequest().url.host
+            dispatcher.AsyncCall(
+                host,
+                requestFactory.priority,
+                call,
+                responseCallback,
+                msNet.eventListener
+            ).also { asyncCall = it }
+        }
+        if (canceled) {
+            // Reported as canceled once the dispatcher starts it.
+            asyncCall.call.cancel()
+            refundRateLimit()
+        }
+        dispatcher.enqueue(asyncCall)
+    }
+
+    /**
+     * Takes a permit of the method's rate limit and returns how long to wait before using it.
+     *
+     * @throws RateLimitExceededException if the limit is reached and the method fails fast.
+     */
+    @Throws(IOException::class)
+    private fun reserveRateLimit(): Long {
+        val rateLimiter = requestFactory.rateLimiter ?: return 0L
+        val waitNanos = rateLimiter.reserve()
+        if (waitNanos < 0L) {
+            val method = requestFactory.method
+            throw RateLimitExceededException(
+                "Rate limit of ${method.declaringClass.simpleName}.${method.name} exceeded"
+            )
+        }
+        rateLimitPermitHeld.set(true)
+        return waitNanos
+    }
+
+    /**
+     * Gives back the rate limit permit of an attempt canceled before it was sent. Only the first
+     * call gives it back, the attempt can be canceled from several places at once.
+     */
+    private fun refundRateLimit() {
+        if (rateLimitPermitHeld.compareAndSet(true, false)) {
+            requestFactory.rateLimiter?.refund()
+        }
+    }
+
+    /**
+     * Returns a permit of the circuit breaker to send an attempt, or null if there is no circuit
+     * breaker.
+     */
+    @Throws(IOException::class)
+    private fun acquirePermit(): CircuitBreaker.Permit? {
+        val circuitBreaker = msNet.circuitBreaker ?: return null
+        return when (circuitBreaker.scope) {
+            CircuitBreaker.Scope.HOST -> {
+                val host = synchronized(this) { getRequest().url.host }
+                circuitBreaker.acquire(host, host, msNet.eventListener)
+            }
+            CircuitBreaker.Scope.METHOD -> {
+                val method = requestFactory.method
+                val name = method.declaringClass.name + "." + method.name
+                circuitBreaker.acquire(method, name, msNet.eventListener)
+            }
+        }
+    }
+
+    /** Returns the timeout of one attempt receiving its response headers, or null if it has none. */
+    private fun newAttemptTimeout(): AsyncTimeout? {
+        val timeoutMillis = requestFactory.connectTimeoutMillis
+        if (timeoutMillis == 0L) return null
+        return object : AsyncTimeout() {
+            override fun timedOut() {
+                cancelAttempt()
+            }
+        }.apply { timeout(timeoutMillis, TimeUnit.MILLISECONDS) }
+    }
+
+    private fun attemptTimeoutException(cause: IOException): IOException {
+        return SocketTimeoutException("Timed out waiting for the response headers").apply {
+            initCause(cause)
+        }
+    }
+
+    /** Returns the exception to report for `e`, which is a timeout when the call deadline passed. */
+    private fun timeoutIfTimedOut(e: Throwable): Throwable {
+        if (!timedOut || e !is IOException) return e
+        return InterruptedIOException("timeout").apply { initCause(e) }
+    }
+
+    /** Records a failed attempt, unless it failed because the call was canceled. */
+    private fun recordFailure(permit: CircuitBreaker.Permit?) {
+        if (canceled) {
+            permit?.release()
+        } else {
+            permit?.onFailure()
+        }
+    }
+
+    /**
+     * Returns how long to wait before retrying after `e`, or -1 if the failure is final. Every
+     * retryable failure is counted against the retry budget.
+     */
+    private fun retryDelayMillis(policy: RetryPolicy?, attempt: Int, e: IOException): Long {
+        if (policy == null || canceled || !policy.isRetryable(e)) return -1L
+        if (!msNet.retryBudget.tryRetry()) return -1L
+        return policy.retryDelayMillis(attempt)
+    }
+
+    /**
+     * Returns how long to wait before resuming a download whose body failed with `e`, or -1 if the
+     * failure is final.
+     */
+    private fun resumeDelayMillis(policy: RetryPolicy?, attempt: Int, e: IOException): Long {
+        if (responseConverter !is FileDownload || timedOut) return -1L
+        return retryDelayMillis(policy, attempt, e)
+    }
+
+    /** Returns how long to wait before retrying after `response`, or -1 to return it. */
+    private fun retryDelayMillis(
+        policy: RetryPolicy?,
+        attempt: Int,
+        response: okcronet.http.Response
+    ): Long {
+        if (policy == null) return -1L
+        if (response.code !in policy.retryableStatusCodes) {
+            msNet.retryBudget.onSuccess()
+            return -1L
+        }
+        if (canceled || !msNet.retryBudget.tryRetry()) return -1L
+        return policy.retryDelayMillis(attempt, response)
+    }
+
+    /**
+     * Receives the outcome of each attempt of an asynchronous call, retries it when the policy
+     * allows, and reports the final outcome exactly once.
+     */
+    private abstract inner class ResponseCallback : okcronet.Callback {
+        private val notified = AtomicBoolean()
+        private var attempt = 1
+
+        // The circuit breaker permit and the timeout of the attempt in flight.
+        @Volatile
+        var permit: CircuitBreaker.Permit? = null
+        @Volatile
+        var attemptTimeout: AsyncTimeout? = null
+
+        // When the response of the last attempt arrived.
+        @Volatile
+        var receivedAtNanos = 0L
+
+        override fun onResponse(call: okcronet.Call, response: okcronet.http.Response) {
+            receivedAtNanos = System.nanoTime()
+            attemptTimeout?.exit()
+            permit?.onResponse(response.code)
+            val delayMillis = retryDelayMillis(requestFactory.retryPolicy, attempt, response)
+            if (delayMillis >= 0L) {
+                response.body?.close()
+                scheduleRetry(delayMillis)
+                return
+            }
+            onFinalResponse(response)
+        }
+
+        /** Handles the response of the last attempt, converting it on the conversion executor. */
+        protected open fun onFinalResponse(response: okcronet.http.Response) {
+            // Downloads last as long as the transfer, so they must not hold the bounded pool.
+            val executor = if (responseConverter is FileDownload) {
+                msNet.dispatchExecutor
+            } else {
+                msNet.conversionExecutor
+            }
+            try {
+                executor.execute { convertAndDeliver(response) }
+            } catch (e: RejectedExecutionException) {
+                response.body?.close()
+                fail(IOException("Conversion executor rejected the call", e))
+            }
+        }
+
+        protected fun convertAndDeliver(response: okcronet.http.Response) {
+            val msResponse: Response<T>
+            try {
+                msResponse = convert(response, receivedAtNanos)
+            } catch (e: Throwable) {
+                Utils.throwIfFatal(e)
+                if (e is IOException) {
+                    val delayMillis = resumeDelayMillis(requestFactory.retryPolicy, attempt, e)
+                    if (delayMillis >= 0L) {
+                        scheduleRetry(delayMillis)
+                        return
+                    }
+                }
+                fail(e)
+                return
+            }
+
+            deliver(msResponse)
+        }
+
+        override fun onFailure(call: okcronet.Call, e: IOException) {
+            val failure = if (attemptTimeout?.exit() == true) attemptTimeoutException(e) else e
+            recordFailure(permit)
+            val delayMillis = retryDelayMillis(requestFactory.retryPolicy, attempt, failure)
+            if (delayMillis >= 0L) {
+                scheduleRetry(delayMillis)
+                return
+            }
+            fail(failure)
+        }
+
+        /** Returns true the first time only, when the outcome is to be reported. */
+        protected fun notify(): Boolean = notified.compareAndSet(false, true)
+
+        protected abstract fun onResult(response: Response<T>)
+
+        protected abstract fun onError(t: Throwable)
+
+        fun deliver(response: Response<T>) {
+            if (notify()) {
+                callTimeout.exit()
+                onResult(response)
+            }
+        }
+
+        fun fail(t: Throwable) {
+            // A no-op when the outcome was recorded, frees a half-open trial otherwise.
+            permit?.release()
+            attemptTimeout?.exit()
+            if (notify()) {
+                callTimeout.exit()
+                onError(timeoutIfTimedOut(t))
+            }
+        }
+
+        private fun scheduleRetry(delayMillis: Long) {
+            attempt++
+            scheduleAttempt(TimeUnit.MILLISECONDS.toNanos(delayMillis), rateLimitReserved = false)
+        }
+
+        /** Starts the next attempt after `delayNanos`, without blocking a thread meanwhile. */
+        fun scheduleAttempt(delayNanos: Long, rateLimitReserved: Boolean) {
+            val pending = PendingAttempt(this, rateLimitReserved)
+            synchronized(this@MsCall) {
+                // The next attempt creates new calls from the same request.
+                rawCall = null
+                asyncCall = null
+                hedgedCall = null
+                coalescedCall = null
+                pendingAttempt = pending
+            }
+            pending.future = Platform.get().scheduler()
+                .schedule(pending, delayNanos, TimeUnit.NANOSECONDS)
+            if (canceled) {
+                pending.cancel()
+            }
+        }
+
+        fun startNextAttempt(rateLimitReserved: Boolean) {
+            if (canceled) {
+                if (rateLimitReserved) refundRateLimit()
+                fail(IOException("Canceled"))
+                return
+            }
+            try {
+                startAttempt(this, rateLimitReserved)
+            } catch (t: Throwable) {
+                Utils.throwIfFatal(t)
+                fail(t)
+            }
+        }
+    }
+
+    /** Reports the outcome of [enqueue] to its [Callback]. */
+    private inner class CallbackResponseCallback(
+        private val callback: Callback<T>
+    ) : ResponseCallback() {
+        override fun onResult(response: Response<T>) {
+            deliverResponse(callback, response)
+        }
+
+        override fun onError(t: Throwable) {
+            callFailure(callback, t)
+        }
+    }
+
+    /**
+     * Resumes the suspend function of [awaitDirect], with a converted [Response] or, when
+     * `convertOnCaller`, with the raw response for the caller to convert.
+     */
+    private inner class ContinuationResponseCallback(
+        private val continuation: CancellableContinuation<Any>,
+        private val convertOnCaller: Boolean
+    ) : ResponseCallback() {
+        override fun onFinalResponse(response: okcronet.http.Response) {
+            if (responseConverter is FileDownload) {
+                // Written here rather than by the caller, so a broken transfer can be resumed.
+                super.onFinalResponse(response)
+                return
+            }
+            if (convertOnCaller) {
+                if (notify()) {
+                    // Closed if the coroutine is canceled before it takes the response.
+                    continuation.resume(response) { response.body?.close() }
+                } else {
+                    response.body?.close()
+                }
+                return
+            }
+            try {
+                msNet.conversionDispatcher.dispatch(continuation.context, Runnable {
+                    convertAndDeliver(response)
+                })
+            } catch (e: RejectedExecutionException) {
+                response.body?.close()
+                fail(IOException("Conversion dispatcher rejected the call", e))
+            }
+        }
+
+        override fun onResult(response: Response<T>) {
+            continuation.resume(response)
+        }
+
+        override fun onError(t: Throwable) {
+            continuation.resumeWithException(t)
+        }
+    }
+
+    /** The timer of an asynchronous call between two attempts. */
+    private inner class PendingAttempt(
+        private val responseCallback: ResponseCallback,
+        private val rateLimitReserved: Boolean
+    ) : Runnable {
+        @Volatile
+        var future: ScheduledFuture<*>? = null
+
+        override fun run() {
+            synchronized(this@MsCall) {
+                if (pendingAttempt === this) {
+                    pendingAttempt = null
                 }
             }
-        })
+            try {
+                msNet.dispatchExecutor.execute { responseCallback.startNextAttempt(rateLimitReserved) }
+            } catch (e: RejectedExecutionException) {
+                responseCallback.fail(IOException("Dispatch executor rejected the call", e))
+            }
+        }
 
+        fun cancel() {
+            // Not run yet, so the attempt it waits the rate limit for is never sent.
+            if (future?.cancel(false) == true && rateLimitReserved) refundRateLimit()
+            responseCallback.fail(IOException("Canceled"))
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun startHedgedCall(policy: HedgePolicy, callback: okcronet.Callback) {
+        val hedged = synchronized(this) {
+            HedgedCall(
+                msNet,
+                callFactory,
+                policy,
+                getNetworkRequest(),
+                requestFactory.priority,
+                getRawCall(),
+                callback
+            ).also { hedgedCall = it }
+        }
+        if (canceled) {
+            hedged.cancel()
+        }
+        hedged.start()
+    }
+
+    @Throws(IOException::class)
+    private fun joinCoalescedCall(callback: okcronet.Callback, permit: CircuitBreaker.Permit?) {
+        val request = try {
+            synchronized(this) { getNetworkRequest() }
+        } catch (t: Throwable) {
+            permit?.release()
+            throw t
+        }
+        val waiter = msNet.callCoalescer.join(
+            callFactory,
+            msNet.dispatcher,
+            msNet.conversionExecutor,
+            requestFactory.priority,
+            msNet.eventListener,
+            request,
+            permit,
+            callback
+        )
+        synchronized(this) {
+            coalescedCall = waiter
+        }
+        if (canceled) {
+            waiter.cancel()
+        }
+    }
+
+    private fun deliverResponse(callback: Callback<T>, response: Response<T>) {
+        try {
+            callback.onResponse(this, response)
+        } catch (t: Throwable) {
+            Utils.throwIfFatal(t)
+            t.printStackTrace()
+        }
+    }
+
+    private fun callFailure(callback: Callback<T>, e: Throwable) {
+        try {
+            callback.onFailure(this, e)
+        } catch (t: Throwable) {
+            Utils.throwIfFatal(t)
+            t.printStackTrace()
+        }
+    }
+
+    /** Returns the request, building it on first use. Must hold the lock on this. */
+    @Throws(IOException::class)
+    private fun getRequest(): Request {
+        request?.let { return it }
+
+        creationFailure?.let { throw it }
+
+        try {
+            return requestFactory.create(args).also { request = it }
+        } catch (e: Throwable) {
+            Utils.throwIfFatal(e) // Do not assign a fatal error to creationFailure.
+            creationFailure = e
+            throw e
+        }
+    }
+
+    /**
+     * Returns the request to send, which carries the validators of a stale cache entry, or asks for
+     * the rest of a partial download. Must hold the lock on this.
+     */
+    @Throws(IOException::class)
+    private fun getNetworkRequest(): Request {
+        val request = getRequest()
+        if (responseConverter is FileDownload) {
+            return responseConverter.resumeRequest(request) ?: request
+        }
+        return cacheEntry?.conditionalRequest(request) ?: request
+    }
+
+    /** Returns the raw call, creating it and its request on first use. Must hold the lock on this. */
+    @Throws(IOException::class)
+    private fun getRawCall(): okcronet.Call {
+        rawCall?.let { return it }
+
+        val request = getNetworkRequest()
+        try {
+            return callFactory.newCall(request).also { rawCall = it }
+        } catch (e: Throwable) {
+            Utils.throwIfFatal(e)
+            creationFailure = e
+            throw e
+        }
     }
 
     override val isExecuted: Boolean
@@ -86,22 +785,105 @@ internal class MsCall<T>(
             if (canceled) {
                 return true
             }
-            return rawCall.isCanceled
+            synchronized(this) {
+                return rawCall?.isCanceled == true
+            }
         }
 
     override fun cancel() {
         canceled = true
-        rawCall.cancel()
+        val pending: PendingAttempt?
+        synchronized(this) {
+            pending = pendingAttempt
+            pendingAttempt = null
+            attemptWait?.countDown()
+        }
+        cancelAttempt()
+        pending?.cancel()
     }
 
-    override fun clone(): Call<T> {
-        return MsCall(callFactory, requestFactory, args, responseConverter)
+    /** Cancels the attempt in flight, which then fails. */
+    private fun cancelAttempt() {
+        val call: okcronet.Call?
+        val queued: Dispatcher.AsyncCall?
+        val hedged: HedgedCall?
+        val coalesced: CallCoalescer.Waiter?
+        synchronized(this) {
+            call = rawCall
+            queued = asyncCall
+            hedged = hedgedCall
+            coalesced = coalescedCall
+        }
+        call?.cancel()
+        queued?.let {
+            if (msNet.dispatcher.cancel(it)) refundRateLimit()
+        }
+        hedged?.cancel()
+        coalesced?.cancel()
     }
 
-    override fun request(): Request= request
+    override fun clone(): Call<T> {
+        return MsCall(msNet, callFactory, requestFactory, args, responseConverter, responseCache)
+    }
 
     @Synchronized
-    override fun timeout(): Timeout = rawCall.timeout()
+    override fun request(): Request {
+        try {
+            return getRequest()
+        } catch (e: IOException) {
+            throw RuntimeException("Unable to create request.", e)
+        }
+    }
+
+    /**
+     * The deadline of the whole call, across retries, initially the `callMs` of the method's
+     * [msnet.annotation.Timeout]. Change it before the call is executed or enqueued.
+     */
+    override fun timeout(): Timeout {
+        return callTimeout
+    }
+
+    /**
+     * Returns the cached response if the cache has a fresh entry for this call. A stale entry is
+     * kept to revalidate it with a conditional request.
+     */
+    @Throws(IOException::class)
+    private fun cachedResponse(): Response<T>? {
+        val cache = responseCache ?: return null
+        if (synchronized(this) { revalidate }) return null
+        val entry = cache.get(requestFactory.method, synchronized(this) { getRequest() })
+            ?: return null
+        if (entry.isFresh()) {
+            return cachedResponse(entry)
+        }
+        synchronized(this) {
+            cacheEntry = entry
+        }
+        return null
+    }
+
+    /**
+     * Returns the cached response for this call, fresh or stale, and makes this call revalidate it
+     * with the network instead of being answered from the cache. Must be called before the call is
+     * started.
+     */
+    @Throws(IOException::class)
+    internal fun revalidateCachedResponse(): Response<T>? {
+        val cache = responseCache ?: return null
+        val entry: ResponseCache.Entry
+        synchronized(this) {
+            revalidate = true
+            entry = cache.get(requestFactory.method, getRequest()) ?: return null
+            cacheEntry = entry
+        }
+        return cachedResponse(entry)
+    }
+
+    /** Returns the body of `entry`, converted again only if another converter stored it. */
+    @Throws(IOException::class)
+    private fun cachedResponse(entry: ResponseCache.Entry): Response<T> {
+        return Response.cached(entry.body(responseConverter), entry)
+    }
 
     @Throws(IOException::class)
     fun parseResponse(response: okcronet.http.Response): Response<T> {
@@ -114,7 +896,19 @@ internal class MsCall<T>(
             .body(NoContentResponseBody(rawBody.contentType(), rawBody.contentLength()))
             .build()
         val code = response.urlResponseInfo.httpStatusCode
+        if (code == 304 && responseCache != null) {
+            val entry = synchronized(this) { cacheEntry }
+            if (entry != null) {
+                rawBody.close()
+                responseCache.revalidated(entry, response)
+                return cachedResponse(entry)
+            }
+        }
         if (code < 200 || code >= 300) {
+            if (code == 416 && responseConverter is FileDownload) {
+                // The partial file no longer matches the resource, start over next time.
+                responseConverter.discardPartial()
+            }
             return rawBody.use {
                 // Buffer the entire body to avoid future I/O.
                 val bufferedBody = Utils.buffer(it)
@@ -125,9 +919,38 @@ internal class MsCall<T>(
             rawBody.close()
             return Response.success(null, rawResponse)
         }
-        val catchingBody = ExceptionCatchingResponseBody(rawBody)
+        val catchingBody = ExceptionCatchingResponseBody(rawBody, newReadTimeout())
         return try {
-            val body = responseConverter.convert(catchingBody)
+            val body = if (responseConverter is FileDownload) {
+                // A 206 must continue the partial file, any other response replaces it.
+                val offset = if (code == 206) responseConverter.resumeOffset(response) else 0L
+                @Suppress("UNCHECKED_CAST")
+                responseConverter.write(catchingBody, response, offset) as T?
+            } else if (responseCache != null && code == 200) {
+                val request = synchronized(this) { getRequest() }
+                if (responseCache.isCacheable(requestFactory.method, request, response)) {
+                    // Keep the bytes too, for calls converting with another converter.
+                    val bytes = catchingBody.use { it.source().readByteString() }
+                    val contentType = rawBody.contentType()
+                    val converted = responseConverter.convert(
+                        Buffer().write(bytes).asResponseBody(contentType, bytes.size.toLong())
+                    )
+                    responseCache.put(
+                        requestFactory.method,
+                        request,
+                        rawResponse,
+                        bytes,
+                        contentType,
+                        converted,
+                        responseConverter
+                    )
+                    converted
+                } else {
+                    responseConverter.convert(catchingBody)
+                }
+            } else {
+                responseConverter.convert(catchingBody)
+            }
             Response.success(body, rawResponse)
         } catch (e: java.lang.RuntimeException) {
             // If the underlying source threw an exception, propagate that rather than indicating it was
@@ -137,6 +960,36 @@ internal class MsCall<T>(
         }
     }
 
+    /**
+     * Reads and converts `response`, reporting how long it waited since `receivedAtNanos` and how
+     * long it took to the event listener.
+     */
+    @Throws(IOException::class)
+    private fun convert(response: okcronet.http.Response, receivedAtNanos: Long): Response<T> {
+        val startNanos = System.nanoTime()
+        try {
+            return parseResponse(response)
+        } finally {
+            msNet.eventListener.responseConverted(
+                requestFactory.method,
+                startNanos - receivedAtNanos,
+                System.nanoTime() - startNanos
+            )
+        }
+    }
+
+    /** Returns the timeout of each read of the response body, or null if it has none. */
+    private fun newReadTimeout(): AsyncTimeout? {
+        val timeoutMillis = requestFactory.readTimeoutMillis
+        if (timeoutMillis == 0L) return null
+        return object : AsyncTimeout() {
+            override fun timedOut() {
+                // Unblocks the read, which then fails with a timeout.
+                cancelAttempt()
+            }
+        }.apply { timeout(timeoutMillis, TimeUnit.MILLISECONDS) }
+    }
+
     private class NoContentResponseBody(
         private val contentType: MediaType?,
         private val contentLength: Long
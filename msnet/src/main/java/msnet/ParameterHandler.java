@@ -97,13 +97,21 @@ abstract class ParameterHandler<T> {
         private final Method method;
         private final int p;
         private final String name;
+        private final int index;
         private final Converter<T, String> valueConverter;
         private final boolean encoded;
 
-        Path(Method method, int p, String name, Converter<T, String> valueConverter, boolean encoded) {
+        Path(
+                Method method,
+                int p,
+                String name,
+                int index,
+                Converter<T, String> valueConverter,
+                boolean encoded) {
             this.method = method;
             this.p = p;
             this.name = Objects.requireNonNull(name, "name == null");
+            this.index = index;
             this.valueConverter = valueConverter;
             this.encoded = encoded;
         }
@@ -114,7 +122,7 @@ abstract class ParameterHandler<T> {
                 throw Utils.parameterError(
                         method, p, "Path parameter \"" + name + "\" value must not be null.");
             }
-            builder.addPathParam(name, valueConverter.convert(value), encoded);
+            builder.addPathParam(index, valueConverter.convert(value), encoded);
         }
     }
 
@@ -455,4 +463,12 @@ abstract class ParameterHandler<T> {
             builder.addTag(cls, value);
         }
     }
+
+    /** The target of a {@code @Download} method, which is written to rather than sent. */
+    static final class Download<T> extends ParameterHandler<T> {
+        @Override
+        void apply(RequestBuilder builder, @Nullable T value) {
+            // The target is used when the response arrives, see FileDownload.
+        }
+    }
 }
@@ -0,0 +1,100 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet;
+
+/**
+ * Table-driven percent-encoding of path segments.
+ *
+ * <p>Each encode set is a 128-entry table of the ASCII characters that must be escaped. Control
+ * characters, DEL and every non-ASCII code point are always escaped, as UTF-8. Query parameters and
+ * form fields are not encoded here: okcronet already encodes them in the single pass of {@code
+ * addQueryParameter} and {@code FormBody.Builder.add}, escaping them beforehand would only make it
+ * scan them a second time.
+ */
+final class PercentEncoding {
+  private static final char[] HEX_DIGITS = {
+    '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+  };
+
+  /** A path segment whose value may already contain escapes. */
+  static final boolean[] PATH_SEGMENT_ENCODED = encodeSet(" \"<>^`{}|\\?#");
+  /** A path segment value taken literally: slashes and percent signs are escaped too. */
+  static final boolean[] PATH_SEGMENT = encodeSet(" \"<>^`{}|\\?#/%");
+
+  private PercentEncoding() {
+    // No instances.
+  }
+
+  private static boolean[] encodeSet(String characters) {
+    boolean[] table = new boolean[128];
+    for (int c = 0; c < 0x20; c++) {
+      table[c] = true;
+    }
+    table[0x7f] = true;
+    for (int i = 0; i < characters.length(); i++) {
+      table[characters.charAt(i)] = true;
+    }
+    return table;
+  }
+
+  /**
+   * Appends {@code input} escaped with {@code encodeSet} to {@code out}. When {@code
+   * alreadyEncoded}, tabs and line breaks are dropped as in a URL, instead of being escaped.
+   */
+  static void encode(StringBuilder out, String input, boolean[] encodeSet, boolean alreadyEncoded) {
+    int codePoint;
+    for (int i = 0, limit = input.length(); i < limit; i += Character.charCount(codePoint)) {
+      codePoint = input.codePointAt(i);
+      if (codePoint < 0x80) {
+        if (!encodeSet[codePoint]) {
+          out.append((char) codePoint);
+        } else if (alreadyEncoded
+            && (codePoint == '\t' || codePoint == '\n' || codePoint == '\f' || codePoint == '\r')) {
+          // Skip this character.
+        } else {
+          appendEscaped(out, codePoint);
+        }
+      } else if (codePoint < 0x800) {
+        appendEscaped(out, 0xc0 | codePoint >> 6);
+        appendEscaped(out, 0x80 | (codePoint & 0x3f));
+      } else if (codePoint >= 0xd800 && codePoint <= 0xdfff) {
+        // A lone surrogate is not valid UTF-8, write '?' like okio does.
+        appendEscaped(out, '?');
+      } else if (codePoint < 0x10000) {
+        appendEscaped(out, 0xe0 | codePoint >> 12);
+        appendEscaped(out, 0x80 | (codePoint >> 6 & 0x3f));
+        appendEscaped(out, 0x80 | (codePoint & 0x3f));
+      } else {
+        appendEscaped(out, 0xf0 | codePoint >> 18);
+        appendEscaped(out, 0x80 | (codePoint >> 12 & 0x3f));
+        appendEscaped(out, 0x80 | (codePoint >> 6 & 0x3f));
+        appendEscaped(out, 0x80 | (codePoint & 0x3f));
+      }
+    }
+  }
+
+  private static void appendEscaped(StringBuilder out, int b) {
+    out.append('%').append(HEX_DIGITS[(b >> 4) & 0xf]).append(HEX_DIGITS[b & 0xf]);
+  }
+}
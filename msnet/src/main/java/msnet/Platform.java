@@ -23,25 +23,23 @@
  */
 package msnet;
 
-import static java.util.Arrays.asList;
-import static java.util.Collections.emptyList;
-import static java.util.Collections.singletonList;
-
-import android.annotation.TargetApi;
-import android.os.Build;
-import android.os.Handler;
-import android.os.Looper;
-
-import androidx.annotation.ChecksSdkIntAtLeast;
-
 import org.jetbrains.annotations.Nullable;
 
-import java.lang.invoke.MethodHandles.Lookup;
-import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.util.List;
 import java.util.concurrent.Executor;
-
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * What differs between Android, see {@link AndroidPlatform}, and a plain JVM, see {@link
+ * JvmPlatform}. This class itself uses no Android API.
+ */
 abstract class Platform {
   private static final Platform PLATFORM = createPlatform();
 
@@ -50,14 +48,33 @@ abstract class Platform {
   }
 
   private static Platform createPlatform() {
-    if (Build.VERSION.SDK_INT >= 24) {
-      return new Android24();
+    // Both Dalvik and ART report the Dalvik VM name. Android classes are only loaded on Android.
+    if ("Dalvik".equals(System.getProperty("java.vm.name"))) {
+      return AndroidPlatform.create();
     }
-    return new Android21();
+    return new JvmPlatform();
   }
 
   abstract @Nullable Executor defaultCallbackExecutor();
 
+  /** A shared pool for building requests of asynchronous calls. Threads are created on demand. */
+  Executor defaultDispatchExecutor() {
+    return DispatchExecutorHolder.INSTANCE;
+  }
+
+  /**
+   * A shared, bounded pool for reading and converting response bodies, away from Cronet's network
+   * thread.
+   */
+  Executor defaultConversionExecutor() {
+    return ConversionExecutorHolder.INSTANCE;
+  }
+
+  /** A shared timer thread. Scheduled tasks must only hand work off, never block. */
+  ScheduledExecutorService scheduler() {
+    return SchedulerHolder.INSTANCE;
+  }
+
   abstract List<? extends CallAdapter.Factory> createDefaultCallAdapterFactories(
       @Nullable Executor callbackExecutor);
 
@@ -68,97 +85,66 @@ abstract class Platform {
   abstract @Nullable Object invokeDefaultMethod(
       Method method, Class<?> declaringClass, Object proxy, Object... args) throws Throwable;
 
-  private static final class Android21 extends Platform {
-    @Override
-    boolean isDefaultMethod(Method method) {
-      return false;
-    }
-
-    @Nullable
-    @Override
-    Object invokeDefaultMethod(
-        Method method, Class<?> declaringClass, Object proxy, Object... args) {
-      throw new AssertionError();
-    }
-
-    @Override
-    Executor defaultCallbackExecutor() {
-      return MainThreadExecutor.INSTANCE;
-    }
-
-    @Override
-    List<? extends CallAdapter.Factory> createDefaultCallAdapterFactories(
-        @Nullable Executor callbackExecutor) {
-      return singletonList(new DefaultCallAdapterFactory(callbackExecutor));
-    }
-
-    @Override
-    List<? extends Converter.Factory> createDefaultConverterFactories() {
-      return emptyList();
+  private static final class DispatchExecutorHolder {
+    static final Executor INSTANCE = createDispatchExecutor();
+
+    private static Executor createDispatchExecutor() {
+      AtomicInteger threadCount = new AtomicInteger();
+      return new ThreadPoolExecutor(
+          0,
+          Integer.MAX_VALUE,
+          60,
+          TimeUnit.SECONDS,
+          new SynchronousQueue<>(),
+          r -> {
+            Thread thread = new Thread(r, "MSNet Dispatch " + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          });
     }
   }
 
-  // Only used on Android API 24+
-  @TargetApi(24)
-  private static final class Android24 extends Platform {
-    @ChecksSdkIntAtLeast(api = Build.VERSION_CODES.N)
-
-    private @Nullable Constructor<Lookup> lookupConstructor;
-
-    @Override
-    Executor defaultCallbackExecutor() {
-      return MainThreadExecutor.INSTANCE;
-    }
-
-    @Override
-    List<? extends CallAdapter.Factory> createDefaultCallAdapterFactories(
-        @Nullable Executor callbackExecutor) {
-      return asList(
-          new CompletableFutureCallAdapterFactory(),
-          new DefaultCallAdapterFactory(callbackExecutor));
-    }
-
-    @Override
-    List<? extends Converter.Factory> createDefaultConverterFactories() {
-      return singletonList(new OptionalConverterFactory());
-    }
-
-    @Override
-    public boolean isDefaultMethod(Method method) {
-      return method.isDefault();
-    }
-
-    @Nullable
-    @Override
-    public Object invokeDefaultMethod(
-        Method method, Class<?> declaringClass, Object proxy, Object... args) throws Throwable {
-      if (Build.VERSION.SDK_INT < 26) {
-        throw new UnsupportedOperationException(
-            "Calling default methods on API 24 and 25 is not supported");
-      }
-      Constructor<Lookup> lookupConstructor = this.lookupConstructor;
-      if (lookupConstructor == null) {
-        lookupConstructor = Lookup.class.getDeclaredConstructor(Class.class, int.class);
-        lookupConstructor.setAccessible(true);
-        this.lookupConstructor = lookupConstructor;
-      }
-      return lookupConstructor
-          .newInstance(declaringClass, -1 /* trusted */)
-          .unreflectSpecial(method, declaringClass)
-          .bindTo(proxy)
-          .invokeWithArguments(args);
+  private static final class ConversionExecutorHolder {
+    static final Executor INSTANCE = createConversionExecutor();
+
+    private static Executor createConversionExecutor() {
+      // Converting is mostly parsing, a few threads keep it from competing with the main thread.
+      // The queue is unbounded so that a burst of responses is never rejected, it waits instead;
+      // each waiting response holds its unread body until a thread takes it.
+      int threads = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+      AtomicInteger threadCount = new AtomicInteger();
+      ThreadPoolExecutor executor =
+          new ThreadPoolExecutor(
+              threads,
+              threads,
+              60,
+              TimeUnit.SECONDS,
+              new LinkedBlockingQueue<>(),
+              r -> {
+                Thread thread = new Thread(r, "MSNet Conversion " + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+              });
+      executor.allowCoreThreadTimeOut(true);
+      return executor;
     }
   }
 
-
-  private static final class MainThreadExecutor implements Executor {
-    static final Executor INSTANCE = new MainThreadExecutor();
-
-    private final Handler handler = new Handler(Looper.getMainLooper());
-
-    @Override
-    public void execute(Runnable r) {
-      handler.post(r);
+  private static final class SchedulerHolder {
+    static final ScheduledExecutorService INSTANCE = createScheduler();
+
+    private static ScheduledExecutorService createScheduler() {
+      ScheduledThreadPoolExecutor scheduler =
+          new ScheduledThreadPoolExecutor(
+              1,
+              r -> {
+                Thread thread = new Thread(r, "MSNet Scheduler");
+                thread.setDaemon(true);
+                return thread;
+              });
+      // Canceled timers are common, do not keep them until they would have fired.
+      scheduler.setRemoveOnCancelPolicy(true);
+      return scheduler;
     }
   }
 }
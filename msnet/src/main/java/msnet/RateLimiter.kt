@@ -0,0 +1,74 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import msnet.annotation.RateLimit
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.math.max
+
+/**
+ * The lock-free token bucket of a [RateLimit]ed service method.
+ *
+ * The bucket is kept as the time at which it will be full again (the generic cell rate
+ * algorithm): each call moves that time one interval forward, and waits for however much it ends
+ * up more than a period ahead. Reserving a permit is a single compare-and-set.
+ */
+internal class RateLimiter(rateLimit: RateLimit) {
+    private val periodNanos = rateLimit.unit.toNanos(rateLimit.per)
+    private val intervalNanos = max(1L, periodNanos / rateLimit.permits)
+    val failFast = rateLimit.failFast
+
+    // When the bucket is full again, if no more calls are made.
+    private val fullAtNanos = AtomicLong(System.nanoTime())
+
+    /**
+     * Reserves a permit and returns how long to wait before using it, or -1 when the method fails
+     * fast and there is no permit left now.
+     */
+    fun reserve(): Long {
+        while (true) {
+            val now = System.nanoTime()
+            val fullAt = fullAtNanos.get()
+            val next = max(fullAt, now) + intervalNanos
+            // Positive when the bucket, holding one period of permits, is empty.
+            val waitNanos = max(0L, next - now - periodNanos)
+            if (waitNanos > 0L && failFast) return -1L
+            if (fullAtNanos.compareAndSet(fullAt, next)) return waitNanos
+        }
+    }
+
+    /**
+     * Gives back a permit of a call that was canceled before it was sent, so the calls after it
+     * do not wait for it.
+     */
+    fun refund() {
+        while (true) {
+            val now = System.nanoTime()
+            val fullAt = fullAtNanos.get()
+            // The bucket refilled in the meantime, there is nothing to give back.
+            if (fullAt <= now) return
+            if (fullAtNanos.compareAndSet(fullAt, max(fullAt - intervalNanos, now))) return
+        }
+    }
+}
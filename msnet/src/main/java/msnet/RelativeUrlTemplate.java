@@ -0,0 +1,212 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A relative URL split into literal chunks and {@code {name}} parameter slots. It is compiled once
+ * per service method so that each request fills the path parameters in a single pass instead of
+ * searching and replacing the URL string once per parameter.
+ */
+final class RelativeUrlTemplate {
+  /**
+   * Matches strings that contain {@code .} or {@code ..} as a complete path segment. This also
+   * matches dots in their percent-encoded form, {@code %2E}.
+   *
+   * <p>It is okay to have these strings within a larger path segment (like {@code a..z} or {@code
+   * index.html}) but when alone they have a special meaning. A single dot resolves to no path
+   * segment so {@code /one/./three/} becomes {@code /one/three/}. A double-dot pops the preceding
+   * directory, so {@code /one/../three/} becomes {@code /three/}.
+   *
+   * <p>We forbid these in Retrofit paths because they're likely to have the unintended effect. For
+   * example, passing {@code ..} to {@code DELETE /account/book/{isbn}/} yields {@code DELETE
+   * /account/}.
+   */
+  private static final Pattern PATH_TRAVERSAL = Pattern.compile("(.*/)?(\\.|%2e|%2E){1,2}(/.*)?");
+
+  /** Buffers larger than this are not kept for the next URL of the thread. */
+  private static final int MAX_BUFFER_CAPACITY = 8 * 1024;
+
+  /** The buffer each thread expands URLs into, so requests only allocate the resulting string. */
+  private static final ThreadLocal<StringBuilder> URL_BUFFER = new ThreadLocal<>();
+
+  /** The text around the slots. There is always one more literal than there are slots. */
+  private final String[] literals;
+  /** For each slot, the index of its parameter in {@link #names}. */
+  private final int[] slots;
+  /** The unique parameter names, in order of first appearance. */
+  private final String[] names;
+  private final int literalLength;
+  /**
+   * True when a literal may be part of a dot segment, so the whole URL is checked for path
+   * traversal as soon as it has a parameter, as {@code /a/../{id}} always was.
+   */
+  private final boolean literalsMayTraverse;
+
+  private RelativeUrlTemplate(String[] literals, int[] slots, String[] names) {
+    this.literals = literals;
+    this.slots = slots;
+    this.names = names;
+    int literalLength = 0;
+    boolean literalsMayTraverse = false;
+    for (String literal : literals) {
+      literalLength += literal.length();
+      literalsMayTraverse |= literal.indexOf('.') != -1 || literal.indexOf('%') != -1;
+    }
+    this.literalLength = literalLength;
+    this.literalsMayTraverse = literalsMayTraverse && slots.length > 0;
+  }
+
+  /**
+   * Splits {@code relativeUrl} on the parameter blocks matched by {@code paramPattern}, whose
+   * first group is the parameter name.
+   */
+  static RelativeUrlTemplate compile(String relativeUrl, Pattern paramPattern) {
+    List<String> literals = new ArrayList<>();
+    List<String> names = new ArrayList<>();
+    List<Integer> slots = new ArrayList<>();
+
+    Matcher m = paramPattern.matcher(relativeUrl);
+    int literalStart = 0;
+    while (m.find()) {
+      literals.add(relativeUrl.substring(literalStart, m.start()));
+      String name = m.group(1);
+      int index = names.indexOf(name);
+      if (index == -1) {
+        index = names.size();
+        names.add(name);
+      }
+      slots.add(index);
+      literalStart = m.end();
+    }
+    literals.add(relativeUrl.substring(literalStart));
+
+    int[] slotArray = new int[slots.size()];
+    for (int i = 0; i < slotArray.length; i++) {
+      slotArray[i] = slots.get(i);
+    }
+    return new RelativeUrlTemplate(
+        literals.toArray(new String[0]), slotArray, names.toArray(new String[0]));
+  }
+
+  /** The number of unique parameters. Values passed to {@link #expand} are indexed the same way. */
+  int parameterCount() {
+    return names.length;
+  }
+
+  /** Returns the index of the parameter called {@code name}, or -1 if the URL has no such block. */
+  int indexOf(String name) {
+    for (int i = 0; i < names.length; i++) {
+      if (names[i].equals(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Fills each slot with its value, percent-encoded as a path segment straight into the URL.
+   * {@code encoded[i]} tells whether {@code values[i]} is already percent-encoded. Slots without a
+   * value keep their {@code {name}} block. Unless a literal has a dot, only the path segments
+   * touched by a substituted value are checked for path traversal.
+   */
+  String expand(@Nullable String[] values, boolean[] encoded) {
+    StringBuilder url = URL_BUFFER.get();
+    if (url == null) {
+      url = new StringBuilder(literalLength + 16 * slots.length);
+      URL_BUFFER.set(url);
+    }
+    url.setLength(0);
+    int[] checkRanges = null; // Lazily allocated, most values cannot form a dot segment.
+    for (int i = 0; i < slots.length; i++) {
+      url.append(literals[i]);
+      String value = values[slots[i]];
+      if (value == null) {
+        url.append('{').append(names[slots[i]]).append('}');
+        continue;
+      }
+      int start = url.length();
+      boolean alreadyEncoded = encoded[slots[i]];
+      PercentEncoding.encode(
+          url,
+          value,
+          alreadyEncoded ? PercentEncoding.PATH_SEGMENT_ENCODED : PercentEncoding.PATH_SEGMENT,
+          alreadyEncoded);
+      if (!literalsMayTraverse && (value.indexOf('.') != -1 || value.indexOf('%') != -1)) {
+        if (checkRanges == null) {
+          checkRanges = new int[slots.length * 2];
+        }
+        checkRanges[i * 2] = start;
+        checkRanges[i * 2 + 1] = url.length();
+      }
+    }
+    url.append(literals[slots.length]);
+
+    if (literalsMayTraverse) {
+      checkPathTraversal(url, values);
+    } else if (checkRanges != null) {
+      for (int i = 0; i < slots.length; i++) {
+        int start = checkRanges[i * 2];
+        int end = checkRanges[i * 2 + 1];
+        if (start == end) continue;
+        checkPathTraversal(url, start, end, values[slots[i]]);
+      }
+    }
+    String result = url.toString();
+    if (url.capacity() > MAX_BUFFER_CAPACITY) {
+      URL_BUFFER.remove();
+    }
+    return result;
+  }
+
+  private void checkPathTraversal(StringBuilder url, @Nullable String[] values) {
+    if (PATH_TRAVERSAL.matcher(url).matches()) {
+      String value = null;
+      for (int i = 0; i < slots.length && value == null; i++) {
+        value = values[slots[i]];
+      }
+      throw new IllegalArgumentException(
+          "@Path parameters shouldn't perform path traversal ('.' or '..'): " + value);
+    }
+  }
+
+  private static void checkPathTraversal(
+      StringBuilder url, int start, int end, @Nullable String value) {
+    int segmentStart = start == 0 ? 0 : url.lastIndexOf("/", start - 1) + 1;
+    int segmentEnd = url.indexOf("/", end);
+    if (segmentEnd == -1) {
+      segmentEnd = url.length();
+    }
+    if (PATH_TRAVERSAL.matcher(url).region(segmentStart, segmentEnd).matches()) {
+      throw new IllegalArgumentException(
+          "@Path parameters shouldn't perform path traversal ('.' or '..'): " + value);
+    }
+  }
+}
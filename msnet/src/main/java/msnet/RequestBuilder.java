@@ -26,9 +26,7 @@ package msnet;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.EOFException;
 import java.io.IOException;
-import java.util.regex.Pattern;
 
 import okcronet.http.FormBody;
 import okcronet.http.Headers;
@@ -37,34 +35,16 @@ import okcronet.http.MediaType;
 import okcronet.http.MultipartBody;
 import okcronet.http.Request;
 import okcronet.http.RequestBody;
-import okio.Buffer;
 import okio.BufferedSink;
 
 final class RequestBuilder {
-    private static final char[] HEX_DIGITS = {
-            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
-    };
-    private static final String PATH_SEGMENT_ALWAYS_ENCODE_SET = " \"<>^`{}|\\?#";
-
-    /**
-     * Matches strings that contain {@code .} or {@code ..} as a complete path segment. This also
-     * matches dots in their percent-encoded form, {@code %2E}.
-     *
-     * <p>It is okay to have these strings within a larger path segment (like {@code a..z} or {@code
-     * index.html}) but when alone they have a special meaning. A single dot resolves to no path
-     * segment so {@code /one/./three/} becomes {@code /one/three/}. A double-dot pops the preceding
-     * directory, so {@code /one/../three/} becomes {@code /three/}.
-     *
-     * <p>We forbid these in Retrofit paths because they're likely to have the unintended effect. For
-     * example, passing {@code ..} to {@code DELETE /account/book/{isbn}/} yields {@code DELETE
-     * /account/}.
-     */
-    private static final Pattern PATH_TRAVERSAL = Pattern.compile("(.*/)?(\\.|%2e|%2E){1,2}(/.*)?");
-
     private final String method;
 
     private final HttpUrl baseUrl;
     private @Nullable String relativeUrl;
+    private @Nullable RelativeUrlTemplate relativeUrlTemplate;
+    private @Nullable String[] pathValues;
+    private @Nullable boolean[] pathEncoded;
     private @Nullable HttpUrl.Builder urlBuilder;
 
     private final Request.Builder requestBuilder = new Request.Builder();
@@ -86,6 +66,7 @@ final class RequestBuilder {
             boolean disableCache,
             HttpUrl baseUrl,
             @Nullable String relativeUrl,
+            @Nullable RelativeUrlTemplate relativeUrlTemplate,
             @Nullable Headers headers,
             @Nullable MediaType contentType,
             boolean hasBody,
@@ -96,6 +77,12 @@ final class RequestBuilder {
         this.disableCache = disableCache;
         this.baseUrl = baseUrl;
         this.relativeUrl = relativeUrl;
+        if (relativeUrlTemplate != null) {
+            // Expanded into 'relativeUrl' once all path parameters are set.
+            this.relativeUrlTemplate = relativeUrlTemplate;
+            this.pathValues = new String[relativeUrlTemplate.parameterCount()];
+            this.pathEncoded = new boolean[relativeUrlTemplate.parameterCount()];
+        }
         this.contentType = contentType;
         this.hasBody = hasBody;
 
@@ -137,77 +124,29 @@ final class RequestBuilder {
         headersBuilder.addAll(headers);
     }
 
-    void addPathParam(String name, String value, boolean encoded) {
-        if (relativeUrl == null) {
-            // The relative URL is cleared when the first query parameter is set.
+    void addPathParam(int index, String value, boolean encoded) {
+        if (pathValues == null || pathEncoded == null) {
+            // The template is expanded when the first query parameter is set.
             throw new AssertionError();
         }
-        String replacement = canonicalizeForPath(value, encoded);
-        String newRelativeUrl = relativeUrl.replace("{" + name + "}", replacement);
-        if (PATH_TRAVERSAL.matcher(newRelativeUrl).matches()) {
-            throw new IllegalArgumentException(
-                    "@Path parameters shouldn't perform path traversal ('.' or '..'): " + value);
-        }
-        relativeUrl = newRelativeUrl;
-    }
-
-    private static String canonicalizeForPath(String input, boolean alreadyEncoded) {
-        int codePoint;
-        for (int i = 0, limit = input.length(); i < limit; i += Character.charCount(codePoint)) {
-            codePoint = input.codePointAt(i);
-            if (codePoint < 0x20
-                    || codePoint >= 0x7f
-                    || PATH_SEGMENT_ALWAYS_ENCODE_SET.indexOf(codePoint) != -1
-                    || (!alreadyEncoded && (codePoint == '/' || codePoint == '%'))) {
-                // Slow path: the character at i requires encoding!
-                Buffer out = new Buffer();
-                out.writeUtf8(input, 0, i);
-                canonicalizeForPath(out, input, i, limit, alreadyEncoded);
-                return out.readUtf8();
-            }
-        }
-
-        // Fast path: no characters required encoding.
-        return input;
+        // Encoded while the template is expanded, directly into the URL.
+        pathValues[index] = value;
+        pathEncoded[index] = encoded;
     }
 
-    private static void canonicalizeForPath(
-            Buffer out, String input, int pos, int limit, boolean alreadyEncoded) {
-        Buffer utf8Buffer = null; // Lazily allocated.
-        int codePoint;
-        for (int i = pos; i < limit; i += Character.charCount(codePoint)) {
-            codePoint = input.codePointAt(i);
-            if (alreadyEncoded
-                    && (codePoint == '\t' || codePoint == '\n' || codePoint == '\f' || codePoint == '\r')) {
-                // Skip this character.
-            } else if (codePoint < 0x20
-                    || codePoint >= 0x7f
-                    || PATH_SEGMENT_ALWAYS_ENCODE_SET.indexOf(codePoint) != -1
-                    || (!alreadyEncoded && (codePoint == '/' || codePoint == '%'))) {
-                // Percent encode this character.
-                if (utf8Buffer == null) {
-                    utf8Buffer = new Buffer();
-                }
-                utf8Buffer.writeUtf8CodePoint(codePoint);
-                while (!utf8Buffer.exhausted()) {
-                    int b;
-                    try {
-                        b = utf8Buffer.readByte() & 0xff;
-                    } catch (EOFException e) {
-                        throw new RuntimeException(e);
-                    }
-                    out.writeByte('%');
-                    out.writeByte(HEX_DIGITS[(b >> 4) & 0xf]);
-                    out.writeByte(HEX_DIGITS[b & 0xf]);
-                }
-            } else {
-                // This character doesn't need encoding. Just copy it over.
-                out.writeUtf8CodePoint(codePoint);
-            }
+    private void expandRelativeUrl() {
+        RelativeUrlTemplate template = relativeUrlTemplate;
+        if (template != null) {
+            //noinspection ConstantConditions Allocated together with the template.
+            relativeUrl = template.expand(pathValues, pathEncoded);
+            relativeUrlTemplate = null;
+            pathValues = null;
+            pathEncoded = null;
         }
     }
 
     void addQueryParam(String name, @Nullable String value, boolean encoded) {
+        expandRelativeUrl();
         if (relativeUrl != null) {
             // Do a one-time combination of the built relative URL and the base URL.
             urlBuilder = baseUrl.newBuilder(relativeUrl);
@@ -260,6 +199,7 @@ final class RequestBuilder {
     }
 
     Request.Builder get() {
+        expandRelativeUrl();
         HttpUrl url;
         HttpUrl.Builder urlBuilder = this.urlBuilder;
         if (urlBuilder != null) {
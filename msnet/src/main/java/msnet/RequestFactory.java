@@ -29,6 +29,7 @@ import static msnet.Utils.parameterError;
 import org.chromium.net.UrlRequest;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
@@ -36,8 +37,8 @@ import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.net.URI;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.LinkedHashSet;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -46,14 +47,17 @@ import java.util.regex.Pattern;
 
 import kotlin.coroutines.Continuation;
 import msnet.annotation.Body;
+import msnet.annotation.Coalesce;
 import msnet.annotation.DELETE;
 import msnet.annotation.DisableCache;
+import msnet.annotation.Download;
 import msnet.annotation.Field;
 import msnet.annotation.FieldMap;
 import msnet.annotation.FormUrlEncoded;
 import msnet.annotation.GET;
 import msnet.annotation.HEAD;
 import msnet.annotation.HTTP;
+import msnet.annotation.Hedge;
 import msnet.annotation.Header;
 import msnet.annotation.HeaderMap;
 import msnet.annotation.Multipart;
@@ -68,7 +72,11 @@ import msnet.annotation.Path;
 import msnet.annotation.Query;
 import msnet.annotation.QueryMap;
 import msnet.annotation.QueryName;
+import msnet.annotation.RateLimit;
+import msnet.annotation.Retry;
+import msnet.annotation.Streaming;
 import msnet.annotation.Tag;
+import msnet.annotation.Timeout;
 import msnet.annotation.Url;
 import okcronet.http.Headers;
 import okcronet.http.HttpUrl;
@@ -81,10 +89,11 @@ final class RequestFactory {
     return new Builder(MSNet, method).build();
   }
 
-  private final Method method;
+  final Method method;
   private final HttpUrl baseUrl;
   final String httpMethod;
   private final @Nullable String relativeUrl;
+  private final @Nullable RelativeUrlTemplate relativeUrlTemplate;
   private final @Nullable Headers headers;
   private final @Nullable MediaType contentType;
   private final boolean hasBody;
@@ -93,15 +102,37 @@ final class RequestFactory {
   private final ParameterHandler<?>[] parameterHandlers;
   final boolean isKotlinSuspendFunction;
 
-  private final int priority;
+  final int priority;
 
   private final boolean disableCache;
 
+  /** Share one network call between identical requests in flight at the same time. */
+  final boolean coalesce;
+
+  /** Non-null when slow calls are raced against duplicates. */
+  final @Nullable HedgePolicy hedgePolicy;
+
+  /** Non-null when failed calls are retried. */
+  final @Nullable RetryPolicy retryPolicy;
+
+  /** Non-null when the calls of the method are rate limited. */
+  final @Nullable RateLimiter rateLimiter;
+
+  /** The {@link Timeout} values of the method, 0 for none. */
+  final long callTimeoutMillis;
+  final long connectTimeoutMillis;
+  final long readTimeoutMillis;
+
+  /** The index of the {@link Download} parameter, or -1 when the body is converted. */
+  final int downloadParameter;
+
   RequestFactory(Builder builder) {
     method = builder.method;
     baseUrl = builder.MSNet.getBaseUrl();
     httpMethod = builder.httpMethod;
     relativeUrl = builder.relativeUrl;
+    RelativeUrlTemplate template = builder.relativeUrlTemplate;
+    relativeUrlTemplate = template != null && template.parameterCount() > 0 ? template : null;
     headers = builder.headers;
     contentType = builder.contentType;
     hasBody = builder.hasBody;
@@ -111,6 +142,15 @@ final class RequestFactory {
     isKotlinSuspendFunction = builder.isKotlinSuspendFunction;
     priority = builder.priority;
     disableCache = builder.disableCache;
+    coalesce = builder.coalesce;
+    hedgePolicy = builder.hedge != null ? new HedgePolicy(builder.hedge) : null;
+    retryPolicy = builder.retryPolicy;
+    rateLimiter = builder.rateLimit != null ? new RateLimiter(builder.rateLimit) : null;
+    Timeout timeout = builder.timeout;
+    callTimeoutMillis = timeout != null ? timeout.callMs() : 0;
+    connectTimeoutMillis = timeout != null ? timeout.connectMs() : 0;
+    readTimeoutMillis = timeout != null ? timeout.readMs() : 0;
+    downloadParameter = builder.downloadParameter;
   }
 
   okcronet.http.Request create(Object[] args) throws IOException {
@@ -132,7 +172,8 @@ final class RequestFactory {
             priority,
             disableCache,
             baseUrl,
-            relativeUrl,
+            relativeUrlTemplate != null ? null : relativeUrl,
+            relativeUrlTemplate,
             headers,
             contentType,
             hasBody,
@@ -163,6 +204,8 @@ final class RequestFactory {
     private static final String PARAM = "[a-zA-Z][a-zA-Z0-9_-]*";
     private static final Pattern PARAM_URL_REGEX = Pattern.compile("\\{(" + PARAM + ")\\}");
     private static final Pattern PARAM_NAME_REGEX = Pattern.compile(PARAM);
+    private static final Set<String> IDEMPOTENT_METHODS =
+        new HashSet<>(Arrays.asList("GET", "HEAD", "OPTIONS", "PUT", "DELETE"));
 
     final MSNet MSNet;
     final Method method;
@@ -178,14 +221,15 @@ final class RequestFactory {
     boolean gotQueryName;
     boolean gotQueryMap;
     boolean gotUrl;
+    int downloadParameter = -1;
     @Nullable String httpMethod;
     boolean hasBody;
     boolean isFormEncoded;
     boolean isMultipart;
     @Nullable String relativeUrl;
+    @Nullable RelativeUrlTemplate relativeUrlTemplate;
     @Nullable Headers headers;
     @Nullable MediaType contentType;
-    Set<String> relativeUrlParamNames = Collections.emptySet();
     @Nullable ParameterHandler<?>[] parameterHandlers;
     boolean isKotlinSuspendFunction;
 
@@ -194,6 +238,16 @@ final class RequestFactory {
 
     private boolean disableCache = false;
 
+    private boolean coalesce = false;
+
+    private @Nullable Hedge hedge;
+
+    private @Nullable Retry retry;
+    private @Nullable RetryPolicy retryPolicy;
+
+    private @Nullable RateLimit rateLimit;
+
+    private @Nullable Timeout timeout;
 
     Builder(MSNet MSNet, Method method) {
       this.MSNet = MSNet;
@@ -226,6 +280,65 @@ final class RequestFactory {
         }
       }
 
+      if (hedge != null) {
+        if (!IDEMPOTENT_METHODS.contains(httpMethod)) {
+          throw methodError(
+              method, "@Hedge can only be used with idempotent HTTP methods, not %s.", httpMethod);
+        }
+        if (hedge.delayMs() < 0) {
+          throw methodError(method, "@Hedge delayMs must not be negative.");
+        }
+        if (hedge.maxExtra() < 1) {
+          throw methodError(method, "@Hedge maxExtra must be at least 1.");
+        }
+        if (coalesce) {
+          throw methodError(method, "@Hedge cannot be combined with @Coalesce.");
+        }
+      }
+
+      if (coalesce) {
+        if (!"GET".equals(httpMethod)) {
+          throw methodError(method, "@Coalesce can only be used with GET requests.");
+        }
+        if (Utils.isAnnotationPresent(methodAnnotations, Streaming.class)) {
+          throw methodError(method, "@Coalesce cannot be combined with @Streaming.");
+        }
+      } else if (MSNet.getCoalesceGetRequests()
+          && "GET".equals(httpMethod)
+          && hedge == null
+          && !Utils.isAnnotationPresent(methodAnnotations, Streaming.class)) {
+        coalesce = true;
+      }
+
+      RetryPolicy defaultRetryPolicy = MSNet.getRetryPolicy();
+      if (retry != null) {
+        if (retry.maxAttempts() < 0) {
+          throw methodError(method, "@Retry maxAttempts must not be negative.");
+        }
+        if (retry.initialBackoffMs() < 0) {
+          throw methodError(method, "@Retry initialBackoffMs must not be negative.");
+        }
+        // Annotated methods are retried whatever their HTTP method.
+        retryPolicy =
+            (defaultRetryPolicy != null ? defaultRetryPolicy : new RetryPolicy()).overriddenBy(retry);
+      } else if (defaultRetryPolicy != null && IDEMPOTENT_METHODS.contains(httpMethod)) {
+        retryPolicy = defaultRetryPolicy;
+      }
+
+      if (rateLimit != null) {
+        if (rateLimit.permits() < 1) {
+          throw methodError(method, "@RateLimit permits must be at least 1.");
+        }
+        if (rateLimit.per() < 1) {
+          throw methodError(method, "@RateLimit per must be at least 1.");
+        }
+      }
+
+      if (timeout != null
+          && (timeout.callMs() < 0 || timeout.connectMs() < 0 || timeout.readMs() < 0)) {
+        throw methodError(method, "@Timeout values must not be negative.");
+      }
+
       int parameterCount = parameterAnnotationsArray.length;
       parameterHandlers = new ParameterHandler<?>[parameterCount];
       for (int p = 0, lastParameter = parameterCount - 1; p < parameterCount; p++) {
@@ -233,6 +346,14 @@ final class RequestFactory {
             parseParameter(p, parameterTypes[p], parameterAnnotationsArray[p], p == lastParameter);
       }
 
+      if (downloadParameter >= 0) {
+        if (Utils.isAnnotationPresent(methodAnnotations, Coalesce.class)) {
+          throw methodError(method, "@Coalesce cannot be combined with @Download.");
+        }
+        // Each call writes its own file, so it cannot share the body of another call.
+        coalesce = false;
+      }
+
       if (relativeUrl == null && !gotUrl) {
         throw methodError(method, "Missing either @%s URL or @Url parameter.", httpMethod);
       }
@@ -288,6 +409,16 @@ final class RequestFactory {
         priority = ((PRIORITY) annotation).value();
       } else if (annotation instanceof DisableCache) {
         disableCache = true;
+      } else if (annotation instanceof Coalesce) {
+        coalesce = true;
+      } else if (annotation instanceof Hedge) {
+        hedge = (Hedge) annotation;
+      } else if (annotation instanceof Retry) {
+        retry = (Retry) annotation;
+      } else if (annotation instanceof RateLimit) {
+        rateLimit = (RateLimit) annotation;
+      } else if (annotation instanceof Timeout) {
+        timeout = (Timeout) annotation;
       }
     }
 
@@ -322,7 +453,7 @@ final class RequestFactory {
       }
 
       this.relativeUrl = value;
-      this.relativeUrlParamNames = parsePathParameters(value);
+      this.relativeUrlTemplate = RelativeUrlTemplate.compile(value, PARAM_URL_REGEX);
     }
 
     private Headers parseHeaders(String[] headers, boolean allowUnsafeNonAsciiValues) {
@@ -448,10 +579,10 @@ final class RequestFactory {
 
         Path path = (Path) annotation;
         String name = path.value();
-        validatePathName(p, name);
+        int index = validatePathName(p, name);
 
         Converter<?, String> converter = MSNet.stringConverter(type, annotations);
-        return new ParameterHandler.Path<>(method, p, name, converter, path.encoded());
+        return new ParameterHandler.Path<>(method, p, name, index, converter, path.encoded());
 
       } else if (annotation instanceof Query) {
         validateResolvableType(p, type);
@@ -821,6 +952,19 @@ final class RequestFactory {
         gotBody = true;
         return new ParameterHandler.Body<>(method, p, converter);
 
+      } else if (annotation instanceof Download) {
+        validateResolvableType(p, type);
+        if (downloadParameter >= 0) {
+          throw parameterError(method, p, "Multiple @Download parameters found.");
+        }
+        Class<?> targetType = Utils.getRawType(type);
+        // Compared by name as java.nio.file.Path is missing before Android API 26.
+        if (targetType != File.class && !"java.nio.file.Path".equals(targetType.getName())) {
+          throw parameterError(method, p, "@Download parameter type must be File or Path.");
+        }
+        downloadParameter = p;
+        return new ParameterHandler.Download<>();
+
       } else if (annotation instanceof Tag) {
         validateResolvableType(p, type);
 
@@ -853,7 +997,8 @@ final class RequestFactory {
       }
     }
 
-    private void validatePathName(int p, String name) {
+    /** Returns the index of {@code name} in the relative URL template. */
+    private int validatePathName(int p, String name) {
       if (!PARAM_NAME_REGEX.matcher(name).matches()) {
         throw parameterError(
             method,
@@ -863,22 +1008,12 @@ final class RequestFactory {
             name);
       }
       // Verify URL replacement name is actually present in the URL path.
-      if (!relativeUrlParamNames.contains(name)) {
+      //noinspection ConstantConditions Non-null when relativeUrl is set.
+      int index = relativeUrlTemplate.indexOf(name);
+      if (index == -1) {
         throw parameterError(method, p, "URL \"%s\" does not contain \"{%s}\".", relativeUrl, name);
       }
-    }
-
-    /**
-     * Gets the set of unique path parameters used in the given URI. If a parameter is used twice in
-     * the URI, it will only show up once in the set.
-     */
-    static Set<String> parsePathParameters(String path) {
-      Matcher m = PARAM_URL_REGEX.matcher(path);
-      Set<String> patterns = new LinkedHashSet<>();
-      while (m.find()) {
-        patterns.add(m.group(1));
-      }
-      return patterns;
+      return index;
     }
 
     private static Class<?> boxIfPrimitive(Class<?> type) {
@@ -24,12 +24,15 @@
 package msnet
 
 import okcronet.http.ResponseBody
+import java.util.TreeMap
 
 /** An HTTP response.  */
 class Response<T> private constructor(
     private val rawResponse: okcronet.http.Response,
     private val body: T?,
-    private val errorBody: ResponseBody?
+    private val errorBody: ResponseBody?,
+    /** Headers replacing those of `rawResponse`, as refreshed by a cache revalidation. */
+    private val headers: List<Map.Entry<String, String>>? = null
 ) {
     /** The raw response from the HTTP client. */
     fun raw(): okcronet.http.Response {
@@ -48,10 +51,17 @@ class Response<T> private constructor(
 
     val allHeadersAsList: List<Map.Entry<String, String>>
         /** HTTP headers.  */
-        get() = rawResponse.urlResponseInfo.allHeadersAsList
+        get() = headers ?: rawResponse.urlResponseInfo.allHeadersAsList
 
     val allHeaders: Map<String, List<String>>
-        get() = rawResponse.urlResponseInfo.allHeaders
+        get() {
+            val headers = headers ?: return rawResponse.urlResponseInfo.allHeaders
+            val map = TreeMap<String, MutableList<String>>(String.CASE_INSENSITIVE_ORDER)
+            for ((name, value) in headers) {
+                map.getOrPut(name) { ArrayList() }.add(value)
+            }
+            return map
+        }
 
     val isSuccessful: Boolean
         /** Returns true if [.code] is in the range [200..300).  */
@@ -81,6 +91,11 @@ class Response<T> private constructor(
             return Response(rawResponse, body, null)
         }
 
+        /** Create a successful response served from `entry` of the [ResponseCache]. */
+        internal fun <T> cached(body: T?, entry: ResponseCache.Entry): Response<T> {
+            return Response(entry.rawResponse, body, null, entry.headers)
+        }
+
         /** Create an error response from `rawResponse` with `body` as the error body.  */
         fun <T> error(body: ResponseBody, rawResponse: okcronet.http.Response): Response<T> {
             require(!rawResponse.isSuccessful) { "rawResponse should not be successful response" }
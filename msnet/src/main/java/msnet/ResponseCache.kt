@@ -0,0 +1,367 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import okcronet.http.HttpUrl.Companion.toHttpUrl
+import okcronet.http.MediaType
+import okcronet.http.Request
+import okcronet.http.ResponseBody
+import okcronet.http.ResponseBody.Companion.asResponseBody
+import okio.Buffer
+import okio.ByteString
+import java.lang.reflect.Method
+import java.util.Locale
+import java.util.concurrent.TimeUnit
+
+/**
+ * An in-memory cache of converted responses, in front of Cronet.
+ *
+ * Successful `GET` responses are stored with the body their converter produced, keyed by service
+ * method, URL and the `Authorization` and `Cookie` request headers, so a hit skips both the network
+ * round trip and the conversion. Hits share the stored body instance, use response types that are
+ * not mutated by callers, or annotate the method with [msnet.annotation.DisableCache]. A call whose
+ * converter is not the one that produced the entry, such as one of another [MSNet] sharing the
+ * cache, converts the stored bytes again. Two service methods with different response types never
+ * read each other's entries. An entry is only used for requests whose headers named by the
+ * response `Vary` header match those it was stored for, and a response with `Vary: *` is never
+ * stored.
+ *
+ * The response `Cache-Control` header decides how long an entry is fresh: `max-age`, less the
+ * response `Age` header, sets its lifetime and `no-store` keeps it out of the cache. Once stale, an
+ * entry with an `ETag` or `Last-Modified` validator turns the next request into a conditional one.
+ * A `304 Not Modified` answer reuses the cached body and updates the stored validators, headers and
+ * lifetime from the headers it carries.
+ *
+ * Entries are evicted least recently used first, once there are more than [maxEntries] of them or
+ * their size exceeds [maxSize] bytes.
+ *
+ * Methods annotated with [msnet.annotation.DisableCache] or [msnet.annotation.Streaming], and
+ * methods returning a raw [okcronet.http.ResponseBody], never use the cache.
+ *
+ *
+ * 进程内的响应缓存，按接口方法、URL 及 `Authorization`、`Cookie` 请求头缓存转换后的响应体，
+ * 命中时既不请求网络也不再转换，调用方共享同一个对象，响应类型应当不可变，否则请使用
+ * [msnet.annotation.DisableCache]。遵循响应头 `Vary`、`Cache-Control` 的 `max-age`（减去 `Age`）、
+ * `no-store`，过期后使用 `ETag`/`Last-Modified` 发起条件请求，`304` 响应会更新缓存的校验值和响应头。
+ */
+class ResponseCache(val maxEntries: Int, val maxSize: Long) {
+    // Access ordered, the eldest entry is the least recently used. Guarded by this.
+    private val entries = LinkedHashMap<Key, Entry>(16, 0.75f, true)
+    private var size = 0L
+    private var hitCount = 0
+    private var conditionalHitCount = 0
+    private var missCount = 0
+
+    init {
+        require(maxEntries > 0) { "maxEntries <= 0" }
+        require(maxSize > 0) { "maxSize <= 0" }
+    }
+
+    /** The size in bytes of the cached response bodies. */
+    @Synchronized
+    fun size(): Long = size
+
+    @Synchronized
+    fun entryCount(): Int = entries.size
+
+    /** The number of requests answered from the cache without a network round trip. */
+    @Synchronized
+    fun hitCount(): Int = hitCount
+
+    /** The number of conditional requests answered by the server with `304 Not Modified`. */
+    @Synchronized
+    fun conditionalHitCount(): Int = conditionalHitCount
+
+    /** The number of requests that found no usable entry. */
+    @Synchronized
+    fun missCount(): Int = missCount
+
+    @Synchronized
+    fun evictAll() {
+        entries.clear()
+        size = 0L
+    }
+
+    /** Removes the entries of `GET url`, for every service method and credentials. */
+    @Synchronized
+    fun remove(url: String) {
+        val httpUrl = url.toHttpUrl().toString()
+        val iterator = entries.entries.iterator()
+        while (iterator.hasNext()) {
+            val (key, entry) = iterator.next()
+            if (key.httpMethod == "GET" && key.url == httpUrl) {
+                size -= entry.size
+                iterator.remove()
+            }
+        }
+    }
+
+    /**
+     * Returns the entry of `method` for `request`, fresh or not, or null if there is none or it was
+     * stored for other values of the request headers its response varies by.
+     */
+    @Synchronized
+    internal fun get(method: Method, request: Request): Entry? {
+        val entry = entries[Key.of(method, request)]?.takeIf { it.matches(request) }
+        if (entry == null || !entry.isFresh()) {
+            missCount++
+        } else {
+            hitCount++
+        }
+        return entry
+    }
+
+    /**
+     * Returns whether `rawResponse` may be stored, so that callers only buffer the bodies the cache
+     * would keep. A response that may not be stored also removes the entry it would replace.
+     */
+    internal fun isCacheable(
+        method: Method,
+        request: Request,
+        rawResponse: okcronet.http.Response
+    ): Boolean {
+        val cacheControl = CacheControl.parse(rawResponse)
+        val cacheable = !cacheControl.noStore &&
+                "*" !in varyFields(rawResponse) &&
+                rawResponse.body.let { it == null || it.contentLength() <= maxSize } &&
+                (freshnessSeconds(cacheControl, rawResponse) > 0 ||
+                        Utils.header(rawResponse, "ETag") != null ||
+                        Utils.header(rawResponse, "Last-Modified") != null)
+        if (!cacheable) {
+            synchronized(this) {
+                entries.remove(Key.of(method, request))?.let { size -= it.size }
+            }
+        }
+        return cacheable
+    }
+
+    /**
+     * Stores `body`, converted by `converter` from `bytes`, as the response of `method` to
+     * `request`.
+     */
+    internal fun put(
+        method: Method,
+        request: Request,
+        rawResponse: okcronet.http.Response,
+        bytes: ByteString,
+        contentType: MediaType?,
+        body: Any?,
+        converter: Converter<ResponseBody, *>
+    ) {
+        if (bytes.size > maxSize) return
+
+        val varyHeaders = varyFields(rawResponse).associateWith { request.headers[it] }
+        val entry = Entry(
+            bytes,
+            contentType,
+            body,
+            converter,
+            rawResponse,
+            varyHeaders,
+            expiresAtNanos(freshnessSeconds(CacheControl.parse(rawResponse), rawResponse))
+        )
+        synchronized(this) {
+            entries.put(Key.of(method, request), entry)?.let { this.size -= it.size }
+            this.size += entry.size
+            trimToSize()
+        }
+    }
+
+    /**
+     * Refreshes `entry` after the server confirmed it with `304 Not Modified`: the headers of
+     * `notModified` replace the stored ones of the same name, and its `Cache-Control` and `Age`
+     * headers set the new lifetime.
+     */
+    internal fun revalidated(entry: Entry, notModified: okcronet.http.Response) {
+        entry.update(notModified.urlResponseInfo.allHeadersAsList)
+        entry.expiresAtNanos =
+            expiresAtNanos(freshnessSeconds(CacheControl.parse(notModified), notModified))
+        synchronized(this) {
+            conditionalHitCount++
+        }
+    }
+
+    private fun trimToSize() {
+        val iterator = entries.values.iterator()
+        while (iterator.hasNext() && (entries.size > maxEntries || size > maxSize)) {
+            size -= iterator.next().size
+            iterator.remove()
+        }
+    }
+
+    /**
+     * Entries of different service methods are kept apart, as their bodies convert to different
+     * types, and so are entries of different credentials.
+     */
+    private data class Key(
+        val method: Method,
+        val httpMethod: String,
+        val url: String,
+        val credentials: List<String?>
+    ) {
+        companion object {
+            fun of(method: Method, request: Request): Key {
+                val credentials = CREDENTIAL_HEADERS.map { request.headers[it] }
+                return Key(method, request.method, request.url.toString(), credentials)
+            }
+        }
+    }
+
+    internal class Entry(
+        private val bytes: ByteString,
+        private val contentType: MediaType?,
+        /** The body `converter` produced from the cached bytes. */
+        private val body: Any?,
+        private val converter: Converter<ResponseBody, *>,
+        /** The successful response the body was read from, without its body. */
+        val rawResponse: okcronet.http.Response,
+        /** The request headers named by the response `Vary` header, and their values. */
+        private val varyHeaders: Map<String, String?>,
+        @Volatile var expiresAtNanos: Long
+    ) {
+        /** The response headers, as refreshed by the latest `304 Not Modified`. */
+        @Volatile
+        var headers: List<Map.Entry<String, String>> = rawResponse.urlResponseInfo.allHeadersAsList
+            private set
+
+        val etag: String? get() = header("ETag")
+
+        val lastModified: String? get() = header("Last-Modified")
+
+        val size: Long get() = bytes.size.toLong()
+
+        fun isFresh(): Boolean = System.nanoTime() - expiresAtNanos < 0
+
+        fun matches(request: Request): Boolean {
+            return varyHeaders.all { (name, value) -> request.headers[name] == value }
+        }
+
+        /**
+         * Returns the cached body for a call converting with `converter`, the stored instance if
+         * it produced this entry and a new conversion of the cached bytes otherwise.
+         */
+        @Suppress("UNCHECKED_CAST")
+        fun <T> body(converter: Converter<ResponseBody, T>): T? {
+            if (converter === this.converter) return body as T?
+            return converter.convert(
+                Buffer().write(bytes).asResponseBody(contentType, bytes.size.toLong())
+            )
+        }
+
+        /** Adds the validators of this entry to `request`, or returns null if it has none. */
+        fun conditionalRequest(request: Request): Request? {
+            val etag = etag
+            val lastModified = lastModified
+            if (etag == null && lastModified == null) return null
+            val builder = request.newBuilder()
+            if (etag != null) builder.header("If-None-Match", etag)
+            if (lastModified != null) builder.header("If-Modified-Since", lastModified)
+            return builder.build()
+        }
+
+        /** Replaces the stored headers named in `notModified`, except those describing the body. */
+        @Synchronized
+        fun update(notModified: List<Map.Entry<String, String>>) {
+            val updated = notModified.filter { (name, _) ->
+                BODY_HEADERS.none { it.equals(name, ignoreCase = true) }
+            }
+            if (updated.isEmpty()) return
+            headers = headers.filter { (name, _) ->
+                updated.none { it.key.equals(name, ignoreCase = true) }
+            } + updated
+        }
+
+        private fun header(name: String): String? {
+            return headers.firstOrNull { it.key.equals(name, ignoreCase = true) }?.value
+        }
+    }
+
+    private class CacheControl(
+        val noStore: Boolean,
+        val noCache: Boolean,
+        val maxAgeSeconds: Long
+    ) {
+        companion object {
+            fun parse(response: okcronet.http.Response): CacheControl {
+                var noStore = false
+                var noCache = false
+                var maxAgeSeconds = -1L
+                for ((name, value) in response.urlResponseInfo.allHeadersAsList) {
+                    if (!name.equals("Cache-Control", ignoreCase = true)) continue
+                    for (directive in value.split(',')) {
+                        val trimmed = directive.trim()
+                        when {
+                            trimmed.equals("no-store", ignoreCase = true) -> noStore = true
+                            trimmed.startsWith("no-cache", ignoreCase = true) -> noCache = true
+                            trimmed.startsWith("max-age=", ignoreCase = true) -> {
+                                maxAgeSeconds = trimmed.substring("max-age=".length)
+                                    .trim('"', ' ')
+                                    .toLongOrNull() ?: maxAgeSeconds
+                            }
+                        }
+                    }
+                }
+                return CacheControl(noStore, noCache, maxAgeSeconds)
+            }
+        }
+    }
+
+    private companion object {
+        /** Caps max-age so that the expiry time cannot overflow. */
+        const val MAX_AGE_SECONDS = 100L * 365 * 24 * 60 * 60
+
+        /** Request headers that identify the user, responses to different values are never shared. */
+        val CREDENTIAL_HEADERS = listOf("Authorization", "Cookie")
+
+        /** Headers of a `304 Not Modified` that describe its own empty body, never stored. */
+        val BODY_HEADERS = listOf("Content-Length", "Content-Encoding", "Transfer-Encoding")
+
+        /**
+         * Returns how long `response` stays fresh from now, its `max-age` less the time it already
+         * spent in caches on the way, as told by its `Age` header.
+         */
+        fun freshnessSeconds(cacheControl: CacheControl, response: okcronet.http.Response): Long {
+            if (cacheControl.noCache || cacheControl.maxAgeSeconds <= 0) return 0
+            val ageSeconds = Utils.header(response, "Age")?.trim()?.toLongOrNull() ?: 0L
+            return cacheControl.maxAgeSeconds - ageSeconds.coerceAtLeast(0L)
+        }
+
+        /** Returns the lower-cased names of the `Vary` header of `response`. */
+        fun varyFields(response: okcronet.http.Response): Set<String> {
+            val fields = LinkedHashSet<String>()
+            for ((name, value) in response.urlResponseInfo.allHeadersAsList) {
+                if (!name.equals("Vary", ignoreCase = true)) continue
+                for (field in value.split(',')) {
+                    val trimmed = field.trim()
+                    if (trimmed.isNotEmpty()) fields.add(trimmed.lowercase(Locale.US))
+                }
+            }
+            return fields
+        }
+
+        fun expiresAtNanos(maxAgeSeconds: Long): Long {
+            return System.nanoTime() + TimeUnit.SECONDS.toNanos(maxAgeSeconds.coerceIn(0L, MAX_AGE_SECONDS))
+        }
+    }
+}
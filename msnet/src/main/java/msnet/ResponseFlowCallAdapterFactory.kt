@@ -0,0 +1,94 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.flow
+import java.lang.reflect.ParameterizedType
+import java.lang.reflect.Type
+
+/**
+ * Adapts service methods returning `Flow<Response<T>>` into a stale-while-revalidate stream.
+ *
+ * Collecting the flow first emits the response held by the [ResponseCache], if there is one, even
+ * when it is stale. It then asks the network, conditionally on the cached `ETag`/`Last-Modified`,
+ * and emits the network response unless the server answered `304 Not Modified` or returned the
+ * same `ETag`. Without a cache entry only the network response is emitted.
+ *
+ * Every collection sends its own request. Cronet does not expose an only-if-cached mode, so the
+ * cached response comes from the msnet [ResponseCache] configured on [MSNet.Builder.responseCache].
+ */
+internal class ResponseFlowCallAdapterFactory : CallAdapter.Factory() {
+    override fun get(
+        returnType: Type,
+        annotations: Array<Annotation>,
+        msNet: MSNet
+    ): CallAdapter<*, *>? {
+        if (getRawType(returnType) != Flow::class.java) {
+            return null
+        }
+        require(returnType is ParameterizedType) {
+            "Flow return type must be parameterized as Flow<Response<Foo>>"
+        }
+        val innerType = getParameterUpperBound(0, returnType)
+        require(getRawType(innerType) == Response::class.java && innerType is ParameterizedType) {
+            "Flow return type must be parameterized as Flow<Response<Foo>> or Flow<Response<out Foo>>"
+        }
+        return ResponseFlowCallAdapter<Any?>(getParameterUpperBound(0, innerType))
+    }
+
+    private class ResponseFlowCallAdapter<R>(
+        private val responseType: Type
+    ) : CallAdapter<R, Flow<Response<R>>> {
+        override fun responseType(): Type = responseType
+
+        override fun adapt(call: Call<R>): Flow<Response<R>> = flow {
+            // A call runs once, each collection gets its own.
+            val collected = call.clone()
+            val cached = (collected as? MsCall<R>)?.revalidateCachedResponse()
+            if (cached != null) {
+                emit(cached)
+            }
+
+            val network = collected.awaitResponse()
+            if (cached == null || !isNotModified(cached, network)) {
+                emit(network)
+            }
+        }
+
+        private fun isNotModified(cached: Response<R>, network: Response<R>): Boolean {
+            // A 304 answer is returned as the cached response itself.
+            if (network.raw() === cached.raw()) return true
+            val etag = etag(cached) ?: return false
+            return network.isSuccessful && etag == etag(network)
+        }
+
+        /** Reads the headers of `response`, which a revalidated cache entry may have refreshed. */
+        private fun etag(response: Response<R>): String? {
+            return response.allHeadersAsList
+                .firstOrNull { it.key.equals("ETag", ignoreCase = true) }
+                ?.value
+        }
+    }
+}
@@ -0,0 +1,466 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import msnet.annotation.Body
+import msnet.annotation.HEAD
+import msnet.annotation.Header
+import msnet.annotation.HeaderMap
+import msnet.annotation.PATCH
+import msnet.annotation.POST
+import msnet.annotation.Url
+import okcronet.http.HttpUrl
+import okcronet.http.MediaType.Companion.toMediaType
+import okcronet.http.RequestBody
+import okio.ByteString.Companion.encodeUtf8
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.net.ProtocolException
+import java.util.Properties
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.math.min
+
+/**
+ * An upload started by [MSNet.resumableUpload], using the [tus](https://tus.io) resumable upload
+ * protocol so that a broken connection, or the process dying, costs at most one chunk.
+ *
+ * The file is sent in chunks of a fixed size, each a `PATCH` carrying its `Upload-Offset`. The
+ * upload URLs and the offsets reached are saved to a state file after every chunk. Started again
+ * with the same state file, the upload asks the server how far it got with a `HEAD` and goes on
+ * from there, unless the file changed in between.
+ *
+ * With a parallelism above 1 the file is split into that many partial uploads, sent at the same
+ * time and joined by a final upload at the end, which needs the server to support the tus
+ * `concatenation` extension.
+ */
+class ResumableUpload internal constructor(
+    private val service: Service,
+    private val endpoint: HttpUrl,
+    /** The file being uploaded. */
+    val file: File,
+    private val stateFile: File,
+    private val chunkSize: Long,
+    private val parallelism: Int,
+    private val metadata: Map<String, String>,
+    private val listener: Listener?
+) {
+    private val done = CountDownLatch(1)
+    // Counted down by cancel(), so that waits between attempts end early.
+    private val canceledLatch = CountDownLatch(1)
+    private val source = FileRequestBody.create(file, OFFSET_OCTET_STREAM)
+    private val fingerprint = "${file.length()}:${file.lastModified()}"
+
+    @Volatile
+    private var canceled = false
+
+    @Volatile
+    private var failure: IOException? = null
+
+    @Volatile
+    private var parts: List<Part> = emptyList()
+
+    /** The URL of the complete upload, once it is done. */
+    @Volatile
+    var uploadUrl: String? = null
+        private set
+
+    /** The size of the file. */
+    val totalBytes: Long = source.length()
+
+    /** The number of bytes the server confirmed so far. */
+    val bytesUploaded: Long
+        get() = parts.sumOf { it.offset }
+
+    /** True once the upload completed, failed, or was canceled. */
+    val isDone: Boolean
+        get() = done.count == 0L
+
+    internal fun start(executor: Executor) {
+        try {
+            executor.execute { run(executor) }
+        } catch (e: RejectedExecutionException) {
+            finish(IOException("Executor rejected the upload", e))
+        }
+    }
+
+    /**
+     * Stops the upload once the chunks in flight are sent, and fails it. Its state is kept to
+     * resume it later.
+     */
+    fun cancel() {
+        canceled = true
+        canceledLatch.countDown()
+    }
+
+    /** Blocks until the upload is done and returns its [uploadUrl]. */
+    @Throws(IOException::class, InterruptedException::class)
+    fun await(): String {
+        done.await()
+        failure?.let { throw it }
+        return uploadUrl!!
+    }
+
+    /** Blocks until [isDone] or `timeout` elapses, returning whether the upload is done. */
+    @Throws(InterruptedException::class)
+    fun await(timeout: Long, unit: TimeUnit): Boolean {
+        return done.await(timeout, unit)
+    }
+
+    private fun run(executor: Executor) {
+        try {
+            loadState()?.let {
+                // Joined before the state could be deleted.
+                finish(null, it)
+                return
+            }
+            if (parts.isEmpty()) {
+                parts = split()
+                saveState(null)
+            }
+        } catch (e: IOException) {
+            finish(e)
+            return
+        } catch (t: Throwable) {
+            Utils.throwIfFatal(t)
+            finish(IOException(t))
+            return
+        }
+        uploadParts(executor)
+    }
+
+    private fun split(): List<Part> {
+        // Whole chunks per part, so that only the last chunk of each part is short.
+        val chunks = maxOf(1L, (totalBytes + chunkSize - 1) / chunkSize)
+        val chunksPerPart = (chunks + parallelism - 1) / parallelism
+        val count = ((chunks + chunksPerPart - 1) / chunksPerPart).toInt()
+        val partSize = chunksPerPart * chunkSize
+        return List(count) { i ->
+            val start = i * partSize
+            Part(start, min(start + partSize, totalBytes) - start)
+        }
+    }
+
+    /**
+     * Uploads every part, the first one on this thread and the others on `executor`. No thread
+     * waits for the others, which could starve a small executor: the last part to end completes
+     * the upload.
+     */
+    private fun uploadParts(executor: Executor) {
+        val remaining = AtomicInteger(parts.size)
+        for (part in parts.drop(1)) {
+            try {
+                executor.execute { uploadPart(part, remaining) }
+            } catch (e: RejectedExecutionException) {
+                fail(IOException("Executor rejected the upload", e))
+                partEnded(remaining)
+            }
+        }
+        uploadPart(parts[0], remaining)
+    }
+
+    private fun uploadPart(part: Part, remaining: AtomicInteger) {
+        try {
+            upload(part)
+        } catch (e: IOException) {
+            fail(e)
+        } catch (t: Throwable) {
+            Utils.throwIfFatal(t)
+            fail(IOException(t))
+        } finally {
+            partEnded(remaining)
+        }
+    }
+
+    /** Joins the parts and reports the outcome once the last of them ended. */
+    private fun partEnded(remaining: AtomicInteger) {
+        if (remaining.decrementAndGet() != 0) return
+        try {
+            failure?.let { throw it }
+            val url = if (parts.size == 1) parts[0].url!! else concatenate()
+            saveState(url)
+            stateFile.delete()
+            finish(null, url)
+        } catch (e: IOException) {
+            finish(e)
+        } catch (t: Throwable) {
+            Utils.throwIfFatal(t)
+            finish(IOException(t))
+        }
+    }
+
+    /** Sends the rest of `part`, asking the server where to continue after every failure. */
+    @Throws(IOException::class)
+    private fun upload(part: Part) {
+        var failures = 0
+        while (true) {
+            if (canceled) throw IOException("Canceled")
+            failure?.let { throw it }
+            val offsetBefore = part.offset
+            try {
+                if (part.url == null) {
+                    create(part)
+                }
+                sendChunks(part, serverOffset(part))
+                return
+            } catch (e: IOException) {
+                // Only failures in a row count, a flaky link that makes progress is kept going.
+                // A 409 that made no progress counts too, so that a stuck offset cannot spin.
+                if (part.offset > offsetBefore) failures = 0
+                if (canceled || !isRetryable(e) || ++failures >= MAX_ATTEMPTS) {
+                    throw e
+                }
+                val backoffMillis = INITIAL_BACKOFF_MILLIS shl (failures - 1)
+                if (canceledLatch.await(backoffMillis, TimeUnit.MILLISECONDS)) {
+                    throw IOException("Canceled")
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends `part` from `offset` chunk by chunk until it is complete. A `409 Conflict`, when
+     * another client or an earlier attempt the server did finish moved the offset, fails with a
+     * retryable [StatusException] so that the server is asked again.
+     */
+    @Throws(IOException::class)
+    private fun sendChunks(part: Part, offset: Long) {
+        var next = offset
+        while (next < part.length) {
+            if (canceled) throw IOException("Canceled")
+            val count = min(chunkSize, part.length - next)
+            val body = source.slice(part.start + next, count)
+            val response = service.patch(part.url!!, TUS_VERSION, next, body).execute()
+            if (!response.isSuccessful) throw StatusException(response)
+            val reached = uploadOffset(response)
+            if (reached <= next || reached > part.length) {
+                throw ProtocolException("Upload-Offset $reached does not advance from $next")
+            }
+            next = reached
+            part.offset = next
+            saveState(null)
+            reportProgress()
+        }
+    }
+
+    /** Returns how much of `part` the server has, creating it again if the server forgot it. */
+    @Throws(IOException::class)
+    private fun serverOffset(part: Part): Long {
+        val response = service.offset(part.url!!, TUS_VERSION).execute()
+        if (response.code() == 404 || response.code() == 410) {
+            create(part)
+            return 0L
+        }
+        if (!response.isSuccessful) throw StatusException(response)
+        val offset = uploadOffset(response)
+        if (offset < 0L || offset > part.length) {
+            throw ProtocolException("Upload-Offset $offset out of range for ${part.length} bytes")
+        }
+        part.offset = offset
+        return offset
+    }
+
+    @Throws(IOException::class)
+    private fun create(part: Part) {
+        val headers = LinkedHashMap<String, String>()
+        headers["Tus-Resumable"] = TUS_VERSION
+        headers["Upload-Length"] = part.length.toString()
+        if (parts.size > 1) {
+            headers["Upload-Concat"] = "partial"
+        } else {
+            metadataHeader()?.let { headers["Upload-Metadata"] = it }
+        }
+        part.url = location(service.create(endpoint.toString(), headers).execute())
+        part.offset = 0L
+        saveState(null)
+    }
+
+    /** Joins the partial uploads into the final one, and returns its URL. */
+    @Throws(IOException::class)
+    private fun concatenate(): String {
+        val headers = LinkedHashMap<String, String>()
+        headers["Tus-Resumable"] = TUS_VERSION
+        headers["Upload-Concat"] = "final;" + parts.joinToString(" ") { it.url!! }
+        metadataHeader()?.let { headers["Upload-Metadata"] = it }
+        return location(service.create(endpoint.toString(), headers).execute())
+    }
+
+    @Throws(IOException::class)
+    private fun location(response: Response<*>): String {
+        if (!response.isSuccessful) throw StatusException(response)
+        val location = Utils.header(response.raw(), "Location")
+            ?: throw ProtocolException("Missing Location header from $endpoint")
+        val url = endpoint.resolve(location)
+            ?: throw ProtocolException("Invalid Location header $location from $endpoint")
+        return url.toString()
+    }
+
+    @Throws(IOException::class)
+    private fun uploadOffset(response: Response<*>): Long {
+        return Utils.header(response.raw(), "Upload-Offset")?.toLongOrNull()
+            ?: throw ProtocolException("Missing Upload-Offset header from $endpoint")
+    }
+
+    private fun metadataHeader(): String? {
+        if (metadata.isEmpty()) return null
+        return metadata.entries.joinToString(",") { (key, value) ->
+            key + " " + value.encodeUtf8().base64()
+        }
+    }
+
+    /**
+     * Restores the parts of an earlier run from the state file, and returns the URL of the upload
+     * if it was already complete.
+     */
+    private fun loadState(): String? {
+        if (!stateFile.exists()) return null
+        val properties = Properties()
+        try {
+            stateFile.inputStream().use { properties.load(it) }
+        } catch (e: IOException) {
+            return null
+        }
+        if (properties.getProperty(KEY_FINGERPRINT) != fingerprint) return null
+        properties.getProperty(KEY_URL)?.let { return it }
+        val count = properties.getProperty(KEY_PARTS)?.toIntOrNull() ?: return null
+        val restored = ArrayList<Part>(count)
+        for (i in 0 until count) {
+            val start = properties.getProperty("part.$i.start")?.toLongOrNull() ?: return null
+            val length = properties.getProperty("part.$i.length")?.toLongOrNull() ?: return null
+            restored += Part(start, length).apply {
+                url = properties.getProperty("part.$i.url")
+                offset = properties.getProperty("part.$i.offset")?.toLongOrNull() ?: 0L
+            }
+        }
+        parts = restored
+        return null
+    }
+
+    /** Saves the parts, replacing the state file atomically so a crash leaves a whole one. */
+    @Synchronized
+    @Throws(IOException::class)
+    private fun saveState(url: String?) {
+        val properties = Properties()
+        properties.setProperty(KEY_FINGERPRINT, fingerprint)
+        properties.setProperty(KEY_PARTS, parts.size.toString())
+        parts.forEachIndexed { i, part ->
+            properties.setProperty("part.$i.start", part.start.toString())
+            properties.setProperty("part.$i.length", part.length.toString())
+            part.url?.let { properties.setProperty("part.$i.url", it) }
+            properties.setProperty("part.$i.offset", part.offset.toString())
+        }
+        url?.let { properties.setProperty(KEY_URL, it) }
+        stateFile.parentFile?.mkdirs()
+        val next = File(stateFile.path + ".tmp")
+        FileOutputStream(next).use {
+            properties.store(it, null)
+            it.fd.sync()
+        }
+        Utils.moveReplacing(next, stateFile)
+    }
+
+    private fun fail(e: IOException) {
+        synchronized(this) {
+            if (failure == null) failure = e
+        }
+    }
+
+    private fun finish(e: IOException?, url: String? = null) {
+        synchronized(this) {
+            if (failure == null) failure = e
+        }
+        uploadUrl = url
+        reportProgress()
+        done.countDown()
+    }
+
+    private fun reportProgress() {
+        val listener = listener ?: return
+        try {
+            listener.onProgress(this, bytesUploaded, totalBytes)
+        } catch (t: Throwable) {
+            Utils.throwIfFatal(t)
+            t.printStackTrace()
+        }
+    }
+
+    private fun isRetryable(e: IOException): Boolean {
+        // The server broke the protocol, sending the same request again will not help.
+        if (e is ProtocolException) return false
+        if (e !is StatusException) return true
+        return e.code >= 500 || e.code == 408 || e.code == 409 || e.code == 423 || e.code == 429
+    }
+
+    /** The bytes from [start] of the file that one tus upload holds, [offset] of them sent. */
+    private class Part(val start: Long, val length: Long) {
+        @Volatile
+        var url: String? = null
+
+        @Volatile
+        var offset = 0L
+    }
+
+    /** A response the protocol did not expect. */
+    private class StatusException(response: Response<*>) :
+        IOException("HTTP ${response.code()} ${response.message()}") {
+        val code = response.code()
+    }
+
+    /** Receives the progress of the upload, on the thread of the chunk that was sent. */
+    fun interface Listener {
+        /** Invoked after every chunk the server confirmed, and once more when it is done. */
+        fun onProgress(upload: ResumableUpload, bytesUploaded: Long, totalBytes: Long)
+    }
+
+    /** The tus requests, sent through [MSNet] like those of any other service. */
+    internal interface Service {
+        @POST
+        fun create(@Url url: String, @HeaderMap headers: Map<String, String>): Call<Unit>
+
+        @HEAD
+        fun offset(@Url url: String, @Header("Tus-Resumable") version: String): Call<Void>
+
+        @PATCH
+        fun patch(
+            @Url url: String,
+            @Header("Tus-Resumable") version: String,
+            @Header("Upload-Offset") offset: Long,
+            @Body body: RequestBody
+        ): Call<Unit>
+    }
+
+    private companion object {
+        const val TUS_VERSION = "1.0.0"
+        const val MAX_ATTEMPTS = 5
+        const val INITIAL_BACKOFF_MILLIS = 1_000L
+        const val KEY_FINGERPRINT = "fingerprint"
+        const val KEY_PARTS = "parts"
+        const val KEY_URL = "url"
+        val OFFSET_OCTET_STREAM = "application/offset+octet-stream".toMediaType()
+    }
+}
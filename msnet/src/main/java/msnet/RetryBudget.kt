@@ -0,0 +1,50 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Throttles the retries of an [MSNet], so that an outage does not turn into a retry storm.
+ *
+ * A token bucket starts full with `maxTokens`. Every failed attempt takes a token and every
+ * successful one gives back `tokenRatio` of a token. Retries are only allowed while the bucket is
+ * more than half full, so when most calls fail, most are not retried.
+ */
+internal class RetryBudget(private val maxTokens: Double, private val tokenRatio: Double) {
+    private var tokens = maxTokens // Guarded by this.
+
+    @Synchronized
+    fun onSuccess() {
+        tokens = min(maxTokens, tokens + tokenRatio)
+    }
+
+    /** Records a failed attempt and returns whether it may be retried. */
+    @Synchronized
+    fun tryRetry(): Boolean {
+        tokens = max(0.0, tokens - 1.0)
+        return tokens > maxTokens / 2
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import msnet.annotation.Retry
+import java.io.IOException
+import java.text.ParseException
+import java.text.SimpleDateFormat
+import java.util.Locale
+import java.util.TimeZone
+import java.util.concurrent.ThreadLocalRandom
+import kotlin.math.min
+import kotlin.math.pow
+
+/**
+ * When and how to retry failed calls.
+ *
+ * A call is retried when its response has one of [retryableStatusCodes], or when it fails with an
+ * instance of one of [retryableExceptions], until [maxAttempts] attempts were made. Before retry
+ * `n` the call waits a random time between half and all of `initialBackoffMillis *
+ * backoffMultiplier^(n - 1)`, capped at [maxBackoffMillis]. A `Retry-After` response header
+ * replaces that wait, unless it asks for more than [maxRetryAfterMillis], in which case the
+ * response is returned as is.
+ *
+ * Retries reuse the request that was already built. Set on [MSNet.Builder.retryPolicy] the policy
+ * applies to idempotent methods (`GET`, `HEAD`, `OPTIONS`, `PUT`, `DELETE`). A method annotated
+ * with [Retry] is retried whatever its HTTP method, with the annotation values overriding the
+ * policy.
+ *
+ *
+ * 重试策略：最多尝试次数、可重试的状态码与异常、带抖动的指数退避以及 `Retry-After` 的处理。
+ */
+class RetryPolicy @JvmOverloads constructor(
+    val maxAttempts: Int = 3,
+    val initialBackoffMillis: Long = 100L,
+    val maxBackoffMillis: Long = 10_000L,
+    val backoffMultiplier: Double = 2.0,
+    val retryableStatusCodes: Set<Int> = DEFAULT_RETRYABLE_STATUS_CODES,
+    val retryableExceptions: List<Class<out IOException>> = listOf(IOException::class.java),
+    val maxRetryAfterMillis: Long = 60_000L
+) {
+    init {
+        require(maxAttempts >= 1) { "maxAttempts < 1: $maxAttempts" }
+        require(initialBackoffMillis >= 0L) { "initialBackoffMillis < 0: $initialBackoffMillis" }
+        require(maxBackoffMillis >= initialBackoffMillis) { "maxBackoffMillis < initialBackoffMillis" }
+        require(backoffMultiplier >= 1.0) { "backoffMultiplier < 1: $backoffMultiplier" }
+        require(maxRetryAfterMillis >= 0L) { "maxRetryAfterMillis < 0: $maxRetryAfterMillis" }
+    }
+
+    /** Returns this policy with the values set on `retry`. */
+    fun overriddenBy(retry: Retry): RetryPolicy {
+        return RetryPolicy(
+            if (retry.maxAttempts > 0) retry.maxAttempts else maxAttempts,
+            if (retry.initialBackoffMs > 0L) retry.initialBackoffMs else initialBackoffMillis,
+            maxOf(maxBackoffMillis, retry.initialBackoffMs),
+            backoffMultiplier,
+            if (retry.statusCodes.isNotEmpty()) retry.statusCodes.toSet() else retryableStatusCodes,
+            retryableExceptions,
+            maxRetryAfterMillis
+        )
+    }
+
+    internal fun isRetryable(e: IOException): Boolean {
+        return retryableExceptions.any { it.isInstance(e) }
+    }
+
+    /**
+     * Returns how long to wait before attempt `attempt + 1` after `response`, or -1 if the response
+     * should be returned as is.
+     */
+    internal fun retryDelayMillis(attempt: Int, response: okcronet.http.Response): Long {
+        if (response.code !in retryableStatusCodes || attempt >= maxAttempts) return -1L
+        val retryAfterMillis = Utils.header(response, "Retry-After")
+            ?.let { parseRetryAfterMillis(it) }
+            ?: return retryDelayMillis(attempt)
+        return if (retryAfterMillis > maxRetryAfterMillis) -1L else retryAfterMillis
+    }
+
+    /** Returns how long to wait before attempt `attempt + 1`, or -1 if there is none left. */
+    internal fun retryDelayMillis(attempt: Int): Long {
+        if (attempt >= maxAttempts) return -1L
+        val backoff = min(
+            maxBackoffMillis.toDouble(),
+            initialBackoffMillis * backoffMultiplier.pow(attempt - 1)
+        ).toLong()
+        // Jitter spreads the retries of clients that failed together.
+        val half = backoff / 2
+        return half + ThreadLocalRandom.current().nextLong(backoff - half + 1)
+    }
+
+    companion object {
+        /** Request timeout, too many requests, and the 5xx codes of transient server failures. */
+        @JvmField
+        val DEFAULT_RETRYABLE_STATUS_CODES: Set<Int> = setOf(408, 429, 500, 502, 503, 504)
+
+        /** Parses the delay seconds or HTTP date of a `Retry-After` header. */
+        private fun parseRetryAfterMillis(value: String): Long? {
+            value.trim().toLongOrNull()?.let { return maxOf(0L, it) * 1000L }
+            val format = SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US)
+            format.timeZone = TimeZone.getTimeZone("GMT")
+            return try {
+                maxOf(0L, format.parse(value.trim())!!.time - System.currentTimeMillis())
+            } catch (e: ParseException) {
+                null
+            }
+        }
+    }
+}
@@ -0,0 +1,462 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import okcronet.http.HttpUrl
+import okcronet.http.Request
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.net.ProtocolException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.util.ArrayDeque
+import java.util.Collections
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.math.min
+
+/**
+ * A download started by [MSNet.segmentedDownload], which fetches byte ranges of one resource
+ * concurrently to fill links that a single stream cannot, such as fast links with a long round
+ * trip time. Cronet multiplexes the ranges over one HTTP/2 or QUIC connection where it can.
+ *
+ * The resource is split into segments that each worker fetches with its own `Range` request and
+ * writes at its offset of a temporary file sized up front, with positional [FileChannel] writes.
+ * A worker that runs out of segments takes the second half of the largest one still in progress,
+ * so that a slow stream does not hold up the end of the download. The temporary file is renamed
+ * to the target once every byte is written.
+ *
+ * Servers that do not advertise `Accept-Ranges: bytes` and a length are downloaded as one stream.
+ */
+class SegmentedDownload internal constructor(
+    private val callFactory: okcronet.Call.Factory,
+    private val url: HttpUrl,
+    /** The file the resource is written to. */
+    val target: File,
+    private val segmentCount: Int,
+    private val listener: Listener?
+) {
+    private val temp = File(target.path + TEMP_SUFFIX)
+    private val done = CountDownLatch(1)
+    private val written = AtomicLong()
+    private val startNanos = System.nanoTime()
+    private val lastProgressNanos = AtomicLong(startNanos)
+    private val calls: MutableSet<okcronet.Call> = Collections.newSetFromMap(ConcurrentHashMap())
+
+    @Volatile
+    private var canceled = false
+
+    @Volatile
+    private var failure: IOException? = null
+
+    // The outcome reported by await(), set before done is counted down.
+    @Volatile
+    private var result: IOException? = null
+
+    // Set once the length of the resource is known, before the workers start.
+    private var validator: String? = null
+    private var ranged = false
+    private lateinit var file: RandomAccessFile
+    private lateinit var channel: FileChannel
+
+    // Guarded by this.
+    private val pending = ArrayDeque<Segment>()
+    private val active = ArrayList<Segment>()
+    private var workers = 0
+
+    /** The length of the resource, or -1 until it is known or if the server does not say. */
+    @Volatile
+    var contentLength = -1L
+        private set
+
+    /** The number of bytes written to the file so far. */
+    val bytesWritten: Long
+        get() = written.get()
+
+    /** The average rate of the download so far, across every segment. */
+    val bytesPerSecond: Long
+        get() {
+            val elapsedNanos = System.nanoTime() - startNanos
+            if (elapsedNanos <= 0L) return 0L
+            return (written.get() * 1_000_000_000.0 / elapsedNanos).toLong()
+        }
+
+    /** True once the download completed, failed, or was canceled. */
+    val isDone: Boolean
+        get() = done.count == 0L
+
+    internal fun start(executor: Executor) {
+        try {
+            executor.execute { open(executor) }
+        } catch (e: RejectedExecutionException) {
+            failure = IOException("Executor rejected the download", e)
+            finish()
+        }
+    }
+
+    /** Stops the download, which then fails with an [IOException]. */
+    fun cancel() {
+        canceled = true
+        for (call in calls) {
+            call.cancel()
+        }
+    }
+
+    /** Blocks until the download is done and returns [target]. */
+    @Throws(IOException::class, InterruptedException::class)
+    fun await(): File {
+        done.await()
+        result?.let { throw it }
+        return target
+    }
+
+    /** Blocks until [isDone] or `timeout` elapses, returning whether the download is done. */
+    @Throws(InterruptedException::class)
+    fun await(timeout: Long, unit: TimeUnit): Boolean {
+        return done.await(timeout, unit)
+    }
+
+    /** Asks for the length of the resource, then splits it and starts the workers. */
+    private fun open(executor: Executor) {
+        val segments: List<Segment>
+        try {
+            probe()
+            target.parentFile?.mkdirs()
+            file = RandomAccessFile(temp, "rw")
+            channel = file.channel
+            val length = contentLength
+            if (ranged) {
+                file.setLength(length)
+                segments = split(length)
+            } else {
+                file.setLength(if (length > 0L) length else 0L)
+                segments = listOf(Segment(0L, if (length >= 0L) length else Long.MAX_VALUE))
+            }
+        } catch (e: IOException) {
+            failure = e
+            finish()
+            return
+        }
+
+        synchronized(this) {
+            pending.addAll(segments)
+            workers = segments.size
+        }
+        repeat(segments.size) {
+            try {
+                executor.execute { work() }
+            } catch (e: RejectedExecutionException) {
+                // The other workers take its segment.
+                workerFinished()
+            }
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun probe() {
+        val request = Request.Builder()
+            .url(url)
+            .method("HEAD", null)
+            .build()
+        exchange(request) { response ->
+            if (response.code !in 200..299) {
+                throw IOException("HTTP ${response.code} for $url")
+            }
+            contentLength = Utils.header(response, "Content-Length")?.toLongOrNull() ?: -1L
+            ranged = contentLength > 0L
+                    && Utils.header(response, "Accept-Ranges").equals("bytes", ignoreCase = true)
+            validator = Utils.header(response, "ETag")?.takeUnless { it.startsWith("W/") }
+                ?: Utils.header(response, "Last-Modified")
+        }
+    }
+
+    private fun split(length: Long): List<Segment> {
+        val count = min(segmentCount.toLong(), maxOf(1L, length / MIN_SEGMENT_BYTES)).toInt()
+        val size = length / count
+        return List(count) { i ->
+            Segment(i * size, if (i == count - 1) length else (i + 1) * size)
+        }
+    }
+
+    private fun work() {
+        try {
+            while (true) {
+                val segment = nextSegment() ?: break
+                fetch(segment)
+                synchronized(this) { active.remove(segment) }
+            }
+        } catch (e: IOException) {
+            fail(e)
+        } catch (t: Throwable) {
+            Utils.throwIfFatal(t)
+            fail(IOException(t))
+        } finally {
+            workerFinished()
+        }
+    }
+
+    /** Returns a segment nobody fetches yet, stealing half of the largest one if there is none. */
+    @Synchronized
+    private fun nextSegment(): Segment? {
+        if (canceled || failure != null) return null
+        pending.pollFirst()?.let {
+            active.add(it)
+            return it
+        }
+        if (!ranged) return null
+        val largest = active.maxByOrNull { it.end - it.position } ?: return null
+        val remaining = largest.end - largest.position
+        if (remaining < 2 * MIN_SEGMENT_BYTES) return null
+        val stolen = Segment(largest.position + remaining / 2, largest.end)
+        largest.end = stolen.position
+        active.add(stolen)
+        return stolen
+    }
+
+    /** Fetches what is left of `segment`, starting over from where a failed stream ended. */
+    @Throws(IOException::class)
+    private fun fetch(segment: Segment) {
+        var attempt = 1
+        while (true) {
+            try {
+                transfer(segment)
+                return
+            } catch (e: IOException) {
+                if (canceled || failure != null || !ranged || attempt >= MAX_ATTEMPTS) throw e
+                attempt++
+            }
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun transfer(segment: Segment) {
+        val start: Long
+        val end: Long
+        synchronized(this) {
+            start = segment.position
+            end = segment.end
+        }
+        if (start >= end) return
+
+        val builder = Request.Builder()
+            .url(url)
+            .method("GET", null)
+            .disableCache()
+        if (ranged) {
+            builder.header("Range", "bytes=$start-${end - 1}")
+            validator?.let { builder.header("If-Range", it) }
+        }
+        exchange(builder.build()) { response ->
+            val expected = if (ranged) 206 else 200
+            if (response.code != expected) {
+                throw ProtocolException("Expected HTTP $expected but was ${response.code} for $url")
+            }
+            if (ranged) {
+                val contentRange = Utils.header(response, "Content-Range")
+                if (contentRange == null || !contentRange.startsWith("bytes $start-")) {
+                    throw ProtocolException("Unexpected Content-Range $contentRange from $start")
+                }
+            }
+            val body = response.body ?: throw ProtocolException("Response body is null")
+            copy(body.source(), segment)
+        }
+    }
+
+    /**
+     * Writes the body to `segment` until its end, which moves back when another worker steals
+     * part of it, or until the body is exhausted.
+     */
+    @Throws(IOException::class)
+    private fun copy(source: okio.BufferedSource, segment: Segment) {
+        val buffer = ByteBuffer.allocateDirect(BUFFER_SIZE)
+        while (true) {
+            // Stops between reads too, a call canceled mid-body may not fail the read at once.
+            if (canceled) throw IOException("Canceled")
+            failure?.let { throw IOException("Another segment failed", it) }
+
+            // Fills the buffer first, the source hands out one segment per read.
+            var exhausted = false
+            while (buffer.hasRemaining()) {
+                if (source.read(buffer) == -1) {
+                    exhausted = true
+                    break
+                }
+            }
+            buffer.flip()
+
+            // Claims the bytes first, so that a steal never splits the segment below them.
+            var position: Long
+            val count: Int
+            val reachedEnd: Boolean
+            synchronized(this) {
+                position = segment.position
+                count = min(buffer.remaining().toLong(), segment.end - position).toInt()
+                segment.position += count
+                reachedEnd = segment.position >= segment.end
+            }
+            buffer.limit(count)
+            try {
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position)
+                }
+            } catch (e: IOException) {
+                // Not worth another attempt, the claimed bytes are lost.
+                fail(e)
+                throw e
+            }
+            written.addAndGet(count.toLong())
+            reportProgress(false)
+            buffer.clear()
+
+            // The rest of the stream belongs to the segment that was stolen, if any.
+            if (reachedEnd) return
+            if (exhausted) {
+                if (ranged || contentLength >= 0L) {
+                    throw ProtocolException("Unexpected end of stream at ${segment.position}")
+                }
+                synchronized(this) { segment.end = segment.position }
+                return
+            }
+        }
+    }
+
+    /**
+     * Sends `request` and hands the response to `block`. The call stays registered until its body
+     * is closed, so that [cancel] and [fail] also stop a body being copied.
+     */
+    @Throws(IOException::class)
+    private inline fun exchange(request: Request, block: (okcronet.http.Response) -> Unit) {
+        val call = callFactory.newCall(request)
+        calls.add(call)
+        try {
+            if (canceled || failure != null) {
+                call.cancel()
+            }
+            val response = call.execute()
+            try {
+                block(response)
+            } finally {
+                response.body?.close()
+            }
+        } finally {
+            calls.remove(call)
+        }
+    }
+
+    private fun fail(e: IOException) {
+        synchronized(this) {
+            if (failure == null) failure = e
+        }
+        // Stops the other workers.
+        for (call in calls) {
+            call.cancel()
+        }
+    }
+
+    private fun workerFinished() {
+        val last = synchronized(this) { --workers == 0 }
+        if (last) {
+            finish()
+        }
+    }
+
+    /** Moves the file to the target when every byte is written, and reports the outcome. */
+    private fun finish() {
+        var error = failure ?: if (canceled) IOException("Canceled") else null
+        try {
+            if (::file.isInitialized) {
+                file.use {
+                    if (error == null) {
+                        val length = contentLength
+                        val bytes = written.get()
+                        if (length >= 0L && bytes != length) {
+                            throw ProtocolException("Expected $length bytes but wrote $bytes")
+                        }
+                        // Drops the size set up front when the length was not known.
+                        it.setLength(bytes)
+                        it.channel.force(false)
+                    }
+                }
+            }
+            if (error == null) {
+                Utils.moveReplacing(temp, target)
+            }
+        } catch (e: IOException) {
+            if (error == null) error = e
+        }
+        if (error != null) {
+            temp.delete()
+        }
+        result = error
+        reportProgress(true)
+        done.countDown()
+    }
+
+    /** Reports the progress, at most every [PROGRESS_INTERVAL_NANOS] unless `force`. */
+    private fun reportProgress(force: Boolean) {
+        val listener = listener ?: return
+        val now = System.nanoTime()
+        val last = lastProgressNanos.get()
+        if (!force && (now - last < PROGRESS_INTERVAL_NANOS
+                    || !lastProgressNanos.compareAndSet(last, now))) {
+            return
+        }
+        try {
+            listener.onProgress(this, written.get(), contentLength, bytesPerSecond)
+        } catch (t: Throwable) {
+            Utils.throwIfFatal(t)
+            t.printStackTrace()
+        }
+    }
+
+    /** The bytes from [position] to [end], exclusive, which are still to be written. */
+    private class Segment(var position: Long, var end: Long)
+
+    /** Receives the progress of the download on its worker threads. */
+    fun interface Listener {
+        /**
+         * Invoked every few hundred milliseconds while bytes arrive, and once more when the
+         * download is done. `contentLength` is -1 when the server did not say.
+         */
+        fun onProgress(
+            download: SegmentedDownload,
+            bytesWritten: Long,
+            contentLength: Long,
+            bytesPerSecond: Long
+        )
+    }
+
+    private companion object {
+        const val TEMP_SUFFIX = ".part"
+        const val BUFFER_SIZE = 64 * 1024
+        const val MIN_SEGMENT_BYTES = 512L * 1024
+        const val MAX_ATTEMPTS = 3
+        val PROGRESS_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(250)
+    }
+}
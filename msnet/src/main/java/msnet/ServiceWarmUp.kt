@@ -0,0 +1,129 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import java.lang.reflect.Method
+import java.util.Collections
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit
+
+/**
+ * A background parse of service methods started by [MSNet.warmUp].
+ */
+class ServiceWarmUp internal constructor(
+    private val methods: List<Method>,
+    private val listener: Listener?
+) {
+    private val remaining = CountDownLatch(methods.size)
+    private val parseTimes: MutableMap<Method, Long> = ConcurrentHashMap()
+    private val failures: MutableMap<Method, Throwable> = ConcurrentHashMap()
+
+    @Volatile
+    private var canceled = false
+
+    internal fun start(executor: Executor, loader: (Method) -> Unit) {
+        for (method in methods) {
+            try {
+                executor.execute { parse(method, loader) }
+            } catch (e: RuntimeException) {
+                // Most likely a RejectedExecutionException, report it like a failed parse.
+                finish(method, 0L, e)
+            }
+        }
+    }
+
+    private fun parse(method: Method, loader: (Method) -> Unit) {
+        if (canceled) {
+            remaining.countDown()
+            return
+        }
+        val start = System.nanoTime()
+        var error: Throwable? = null
+        try {
+            loader(method)
+        } catch (t: Throwable) {
+            Utils.throwIfFatal(t)
+            error = t
+        }
+        finish(method, System.nanoTime() - start, error)
+    }
+
+    private fun finish(method: Method, tookNanos: Long, error: Throwable?) {
+        if (error == null) {
+            parseTimes[method] = tookNanos
+        } else {
+            failures[method] = error
+        }
+        try {
+            listener?.onMethodParsed(method, tookNanos, error)
+        } catch (t: Throwable) {
+            Utils.throwIfFatal(t)
+            t.printStackTrace()
+        } finally {
+            remaining.countDown()
+        }
+    }
+
+    /** True once every method has been parsed, has failed, or was skipped by [cancel]. */
+    val isDone: Boolean
+        get() = remaining.count == 0L
+
+    /** Skip the methods whose parse has not started yet. */
+    fun cancel() {
+        canceled = true
+    }
+
+    /** Block until [isDone]. */
+    @Throws(InterruptedException::class)
+    fun await() {
+        remaining.await()
+    }
+
+    /** Block until [isDone] or `timeout` elapses, returning whether the warm-up finished. */
+    @Throws(InterruptedException::class)
+    fun await(timeout: Long, unit: TimeUnit): Boolean {
+        return remaining.await(timeout, unit)
+    }
+
+    /** Parse time in nanoseconds of every method parsed so far. */
+    fun parseTimesNanos(): Map<Method, Long> {
+        return Collections.unmodifiableMap(parseTimes)
+    }
+
+    /** Methods whose parse failed so far, with the error calling them would throw. */
+    fun failures(): Map<Method, Throwable> {
+        return Collections.unmodifiableMap(failures)
+    }
+
+    /** Receives the outcome of each method as soon as it is parsed, on the parsing thread. */
+    fun interface Listener {
+        /**
+         * Invoked once per method. `error` is null when the parse succeeded. A method already
+         * parsed by an earlier call reports the short time of its cache lookup.
+         */
+        fun onMethodParsed(method: Method, tookNanos: Long, error: Throwable?)
+    }
+}
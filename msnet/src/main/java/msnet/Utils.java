@@ -26,6 +26,7 @@ package msnet;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Array;
@@ -36,7 +37,11 @@ import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.lang.reflect.TypeVariable;
 import java.lang.reflect.WildcardType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Objects;
 
@@ -331,6 +336,16 @@ final class Utils {
     return false;
   }
 
+  /** Returns the first value of the response header {@code name}, or null if there is none. */
+  static @Nullable String header(okcronet.http.Response response, String name) {
+    for (Map.Entry<String, String> header : response.getUrlResponseInfo().getAllHeadersAsList()) {
+      if (header.getKey().equalsIgnoreCase(name)) {
+        return header.getValue();
+      }
+    }
+    return null;
+  }
+
   static ResponseBody buffer(final ResponseBody body) throws IOException {
     Buffer buffer = new Buffer();
     body.source().readAll(buffer);
@@ -550,6 +565,37 @@ final class Utils {
     }
   }
 
+  private static final boolean HAS_NIO_FILES = hasNioFiles();
+
+  private static boolean hasNioFiles() {
+    try {
+      Class.forName("java.nio.file.Files");
+      return true;
+    } catch (ClassNotFoundException ignored) {
+      return false; // Android before API 26.
+    }
+  }
+
+  /**
+   * Moves {@code source} to {@code target}, a {@link File} or a {@code java.nio.file.Path}, in one
+   * step that replaces an existing target. {@link File#renameTo} does not replace on Windows, so it
+   * is only used before Android API 26, where {@code java.nio.file} is missing and targets are
+   * always files.
+   */
+  @SuppressWarnings("NewApi") // Guarded by HAS_NIO_FILES.
+  static void moveReplacing(File source, Object target) throws IOException {
+    if (HAS_NIO_FILES) {
+      Path targetPath = target instanceof File ? ((File) target).toPath() : (Path) target;
+      Files.move(
+          source.toPath(),
+          targetPath,
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } else if (!source.renameTo((File) target)) {
+      throw new IOException("Failed to rename " + source + " to " + target);
+    }
+  }
+
   /** Not volatile because we don't mind multiple threads discovering this. */
   private static boolean checkForKotlinUnit = true;
 
@@ -0,0 +1,55 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet.annotation;
+
+import static java.lang.annotation.ElementType.PARAMETER;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * Streams the response body into the {@link java.io.File} or {@link java.nio.file.Path} argument
+ * instead of converting it, so that large downloads use a small, fixed amount of memory.
+ *
+ * <pre><code>
+ * &#64;GET("apk/{version}")
+ * Call&lt;File&gt; download(@Path("version") String version, @Download File target);
+ * </code></pre>
+ *
+ * The body is written to a temporary file next to the target, which is renamed to the target once
+ * complete, so the target is never seen half-written. The temporary file is sized to the response
+ * length up front; on most file systems that makes a sparse file and does not reserve disk space.
+ * The response type must be {@code File}, {@code Path}, {@code Void} or {@code Unit}; the target
+ * is returned for the first two.
+ * <p>
+ * 将响应体直接写入 {@link java.io.File} 或 {@link java.nio.file.Path} 参数，而不经过转换器，大文件下载只占用固定大小的内存。
+ * 响应体先写入目标旁的临时文件（预先设置为响应长度，多数文件系统上为稀疏文件，并不预留磁盘空间），完成后原子地重命名为目标文件，因此不会出现写了一半的目标文件。
+ * 响应类型必须为 {@code File}、{@code Path}、{@code Void} 或 {@code Unit}，前两者返回目标文件。
+ */
+@Documented
+@Target(PARAMETER)
+@Retention(RUNTIME)
+public @interface Download {}
@@ -0,0 +1,59 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet.annotation;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * Send a duplicate request when the response is slow, and keep whichever response arrives first.
+ * The other requests are canceled. Only idempotent HTTP methods ({@code GET}, {@code HEAD},
+ * {@code OPTIONS}, {@code PUT} and {@code DELETE}) can be hedged, and only asynchronous calls are.
+ * Duplicates are limited by a budget shared by the whole {@code MSNet}, about 5% extra requests
+ * by default.
+ * <p>
+ * 响应较慢时发送重复请求，采用最先返回的响应并取消其余请求。仅支持幂等的 HTTP 方法与异步调用，额外请求数受
+ * {@code MSNet} 全局预算限制（默认约 5%）。
+ */
+@Target(METHOD)
+@Retention(RUNTIME)
+public @interface Hedge {
+    /**
+     * How long to wait for a response before sending a duplicate, in milliseconds. With the default
+     * of 0 the method's observed 95th percentile latency is used, once enough calls completed.
+     * <p>
+     * 发送重复请求前等待的毫秒数。默认 0 表示使用该方法观测到的 P95 耗时。
+     */
+    long delayMs() default 0;
+
+    /**
+     * The maximum number of duplicates sent for one call, each after another delay.
+     * <p>
+     * 每次调用最多发送的重复请求数。
+     */
+    int maxExtra() default 1;
+}
@@ -0,0 +1,69 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet.annotation;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Send at most {@link #permits()} calls of this method every {@link #per()} {@link #unit()}, to
+ * stay within a server quota instead of being answered {@code 429}. Up to {@code permits} calls
+ * may go out at once, after which they are spaced evenly. Calls over the limit wait for their
+ * turn, without blocking a thread when asynchronous or suspending, or fail with
+ * {@code RateLimitExceededException} when {@link #failFast()} is set. Each retry attempt counts
+ * as a call.
+ * <p>
+ * 客户端限流：每 {@code per} 个时间单位最多发送 {@code permits} 个该方法的请求。超出的请求异步等待（不阻塞线程），
+ * 或在 {@code failFast} 为 true 时直接以 {@code RateLimitExceededException} 失败。
+ */
+@Target(METHOD)
+@Retention(RUNTIME)
+public @interface RateLimit {
+    /**
+     * The number of calls allowed per period.
+     * <p>
+     * 每个周期允许的请求数。
+     */
+    int permits();
+
+    /**
+     * The length of the period, in {@link #unit()}.
+     * <p>
+     * 周期长度。
+     */
+    long per() default 1;
+
+    TimeUnit unit() default TimeUnit.SECONDS;
+
+    /**
+     * Fail calls over the limit instead of making them wait.
+     * <p>
+     * 超出限制时直接失败，而不是等待。
+     */
+    boolean failFast() default false;
+}
@@ -0,0 +1,64 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet.annotation;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * Retry the call when it fails with a retryable status code or exception, waiting with jittered
+ * exponential backoff, or as long as the {@code Retry-After} header asks, between attempts. The
+ * values set here override the {@code RetryPolicy} of the {@code MSNet}, which supplies the rest.
+ * Retries are also limited by a budget shared by the whole {@code MSNet}.
+ * <p>
+ * 请求失败（可重试的状态码或异常）时自动重试，两次尝试之间按带抖动的指数退避或 {@code Retry-After} 等待。
+ * 这里的设置会覆盖 {@code MSNet} 的 {@code RetryPolicy}。重试次数同时受 {@code MSNet} 全局预算限制。
+ */
+@Target(METHOD)
+@Retention(RUNTIME)
+public @interface Retry {
+    /**
+     * The maximum number of attempts, the first one included. 0 uses the {@code RetryPolicy} value.
+     * <p>
+     * 最多尝试次数（包含第一次）。0 表示使用 {@code RetryPolicy} 的值。
+     */
+    int maxAttempts() default 0;
+
+    /**
+     * The HTTP status codes to retry. Empty uses the {@code RetryPolicy} value.
+     * <p>
+     * 需要重试的 HTTP 状态码。为空表示使用 {@code RetryPolicy} 的值。
+     */
+    int[] statusCodes() default {};
+
+    /**
+     * The backoff before the first retry, in milliseconds. 0 uses the {@code RetryPolicy} value.
+     * <p>
+     * 第一次重试前的退避毫秒数。0 表示使用 {@code RetryPolicy} 的值。
+     */
+    long initialBackoffMs() default 0;
+}
@@ -0,0 +1,69 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet.annotation;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * Deadlines for the calls of this method, in milliseconds, so that slow calls of little value
+ * release their resources early. 0 means no limit. A call that runs out of time fails with an
+ * {@link java.io.InterruptedIOException}.
+ * <p>
+ * The call deadline can be changed for one call with {@code Call.timeout()}. Suspend functions
+ * also stop, and cancel their Cronet request, when the coroutine is canceled, as by
+ * {@code withTimeout}.
+ * <p>
+ * 为该方法的请求设置超时（毫秒），0 表示不限制。超时后请求以 {@link java.io.InterruptedIOException} 失败。
+ * 单个请求可通过 {@code Call.timeout()} 修改整体超时；挂起函数被取消（例如 {@code withTimeout}）时同样会取消 Cronet 请求。
+ */
+@Target(METHOD)
+@Retention(RUNTIME)
+public @interface Timeout {
+    /**
+     * The deadline of the whole call, including retries and reading a converted body.
+     * <p>
+     * 整个请求的超时，包括重试与响应体转换。
+     */
+    long callMs() default 0;
+
+    /**
+     * The time each attempt may take to receive the response headers, including any wait for a
+     * dispatcher slot. Cronet does not report connection setup on its own, so this bounds
+     * connecting and waiting for the server together. A timed out attempt can be retried.
+     * <p>
+     * 每次尝试收到响应头的超时，包括建立连接与等待服务端处理。超时的尝试可以被重试。
+     */
+    long connectMs() default 0;
+
+    /**
+     * The time each read of the response body may take.
+     * <p>
+     * 读取响应体时每次读取的超时。
+     */
+    long readMs() default 0;
+}
@@ -0,0 +1,166 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+
+class AdaptiveLimitTest {
+    private val rtt = TimeUnit.MILLISECONDS.toNanos(10L)
+
+    @Test
+    fun growsByAboutOnePerRoundTripWhenInUse() {
+        val hostLimit = AdaptiveLimit(initialLimit = 4).newHostLimit()
+        repeat(4) {
+            assertFalse(hostLimit.onSample(rtt, inFlight = 4, dropped = false))
+        }
+        assertTrue(hostLimit.onSample(rtt, inFlight = 4, dropped = false))
+        assertEquals(5, hostLimit.limit)
+    }
+
+    @Test
+    fun doesNotGrowWhenUnused() {
+        val hostLimit = AdaptiveLimit(initialLimit = 4).newHostLimit()
+        repeat(20) {
+            hostLimit.onSample(rtt, inFlight = 1, dropped = false)
+        }
+        assertEquals(4, hostLimit.limit)
+    }
+
+    @Test
+    fun staysWithinMaxLimit() {
+        val hostLimit = AdaptiveLimit(initialLimit = 4, maxLimit = 4).newHostLimit()
+        repeat(20) {
+            hostLimit.onSample(rtt, inFlight = 4, dropped = false)
+        }
+        assertEquals(4, hostLimit.limit)
+    }
+
+    @Test
+    fun backsOffOnDroppedCall() {
+        val hostLimit = AdaptiveLimit(initialLimit = 4, backoffRatio = 0.5).newHostLimit()
+        assertTrue(hostLimit.onSample(rtt, inFlight = 4, dropped = true))
+        assertEquals(2, hostLimit.limit)
+        hostLimit.onSample(rtt, inFlight = 2, dropped = true)
+        hostLimit.onSample(rtt, inFlight = 1, dropped = true)
+        assertEquals(1, hostLimit.limit)
+    }
+
+    @Test
+    fun backsOffOnSlowRoundTrip() {
+        val hostLimit = AdaptiveLimit(initialLimit = 4, rttTolerance = 2.0).newHostLimit()
+        hostLimit.onSample(rtt, inFlight = 1, dropped = false)
+        hostLimit.onSample(rtt * 2, inFlight = 1, dropped = false)
+        assertEquals(4, hostLimit.limit)
+
+        assertTrue(hostLimit.onSample(rtt * 3, inFlight = 1, dropped = false))
+        assertEquals(3, hostLimit.limit)
+    }
+
+    @Test
+    fun baselineFollowsSlowerRouteAfterWindows() {
+        val hostLimit = AdaptiveLimit(initialLimit = 4, rttWindowMillis = 20L).newHostLimit()
+        hostLimit.onSample(rtt / 10, inFlight = 1, dropped = false)
+        // Two windows without samples, the fast sample no longer counts.
+        Thread.sleep(50L)
+
+        hostLimit.onSample(rtt, inFlight = 1, dropped = false)
+        hostLimit.onSample(rtt * 3 / 2, inFlight = 1, dropped = false)
+        assertEquals(4, hostLimit.limit)
+    }
+
+    @Test
+    fun fastSampleStaysBaselineWithinWindow() {
+        val hostLimit = AdaptiveLimit(initialLimit = 4, rttWindowMillis = 60_000L).newHostLimit()
+        hostLimit.onSample(rtt / 10, inFlight = 1, dropped = false)
+        repeat(10) {
+            hostLimit.onSample(rtt / 10, inFlight = 1, dropped = false)
+        }
+
+        assertTrue(hostLimit.onSample(rtt, inFlight = 1, dropped = false))
+        assertEquals(3, hostLimit.limit)
+    }
+
+    @Test
+    fun dispatcherRunsUpToAdaptiveLimit() {
+        val dispatcher = Dispatcher(maxRequestsPerHost = 5)
+        dispatcher.adaptiveLimit = AdaptiveLimit(initialLimit = 2)
+        repeat(3) {
+            dispatcher.enqueue("a.example", FakeCall("call $it"))
+        }
+        assertEquals(2, dispatcher.hostLimit("a.example"))
+        assertEquals(2, dispatcher.runningCallsCount("a.example"))
+        assertEquals(1, dispatcher.queuedCallsCount("a.example"))
+    }
+
+    @Test
+    fun dispatcherReportsLimitChanges() {
+        val changes = ArrayList<Int>()
+        val listener = object : EventListener() {
+            override fun concurrencyLimitChanged(
+                host: String,
+                limit: Int,
+                inFlight: Int,
+                queued: Int
+            ) {
+                changes.add(limit)
+            }
+        }
+        val dispatcher = Dispatcher()
+        dispatcher.adaptiveLimit = AdaptiveLimit(initialLimit = 4, backoffRatio = 0.5)
+        val fake = FakeCall()
+        dispatcher.enqueue("a.example", fake, listener)
+
+        fake.respond(rawResponse(503))
+        assertEquals(listOf(2), changes)
+        assertEquals(2, dispatcher.hostLimit("a.example"))
+    }
+
+    @Test
+    fun dispatcherForgetsIdleHosts() {
+        val dispatcher = Dispatcher()
+        dispatcher.adaptiveLimit = AdaptiveLimit(initialLimit = 4, idleTimeoutMillis = 50L)
+        val a = FakeCall("a")
+        dispatcher.enqueue("a.example", a)
+        a.fail()
+        assertEquals(3, dispatcher.hostLimit("a.example"))
+
+        Thread.sleep(100L)
+        val b = FakeCall("b")
+        dispatcher.enqueue("b.example", b)
+        b.respond(rawResponse(200))
+        assertEquals(4, dispatcher.hostLimit("a.example"))
+    }
+
+    private fun Dispatcher.enqueue(
+        host: String,
+        fake: FakeCall,
+        eventListener: EventListener = EventListener.NONE
+    ) {
+        enqueue(AsyncCall(host, 3, fake.call, RecordingCallback(), eventListener))
+    }
+}
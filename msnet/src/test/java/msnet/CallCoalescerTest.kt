@@ -0,0 +1,217 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import okcronet.http.HttpUrl.Companion.toHttpUrl
+import okcronet.http.Request
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.Executor
+import java.util.concurrent.RejectedExecutionException
+
+class CallCoalescerTest {
+    private val coalescer = CallCoalescer()
+    private val dispatcher = Dispatcher()
+    private val calls = ArrayList<FakeCall>()
+    private val callFactory = callFactory<okcronet.Call.Factory> { request ->
+        FakeCall("call ${calls.size}", request = request).also { calls.add(it) }.call
+    }
+
+    private fun request(path: String = "/") =
+        Request.Builder().url("https://a.example$path".toHttpUrl()).build()
+
+    private fun join(
+        callback: okcronet.Callback,
+        request: Request = request(),
+        conversionExecutor: Executor = Executor { it.run() },
+        permit: CircuitBreaker.Permit? = null
+    ): CallCoalescer.Waiter {
+        return coalescer.join(
+            callFactory,
+            dispatcher,
+            conversionExecutor,
+            3,
+            EventListener.NONE,
+            request,
+            permit,
+            callback
+        )
+    }
+
+    @Test
+    fun identicalRequestsShareOneCall() {
+        val first = RecordingCallback()
+        val second = RecordingCallback()
+        join(first)
+        join(second)
+        assertEquals(1, calls.size)
+
+        calls[0].respond(rawResponse(200, body = "hello".toResponseBody()))
+        // Each waiter reads its own copy of the body.
+        assertEquals("hello", first.takeResponse().body!!.source().readUtf8())
+        assertEquals("hello", second.takeResponse().body!!.source().readUtf8())
+    }
+
+    @Test
+    fun differentRequestsDoNotShare() {
+        join(RecordingCallback(), request("/a"))
+        join(RecordingCallback(), request("/b"))
+        assertEquals(2, calls.size)
+    }
+
+    @Test
+    fun completedCallIsNotJoined() {
+        join(RecordingCallback())
+        calls[0].respond(rawResponse(200))
+
+        join(RecordingCallback())
+        assertEquals(2, calls.size)
+    }
+
+    @Test
+    fun failureReachesEveryWaiter() {
+        val first = RecordingCallback()
+        val second = RecordingCallback()
+        join(first)
+        join(second)
+
+        calls[0].fail()
+        assertEquals("call 0 failed", first.takeFailure().message)
+        assertEquals("call 0 failed", second.takeFailure().message)
+    }
+
+    @Test
+    fun cancelingOneWaiterKeepsTheCall() {
+        val canceled = RecordingCallback()
+        val waiting = RecordingCallback()
+        val waiter = join(canceled)
+        join(waiting)
+
+        waiter.cancel()
+        assertEquals("Canceled", canceled.takeFailure().message)
+        assertFalse(calls[0].canceled)
+
+        calls[0].respond(rawResponse(200))
+        assertEquals(200, waiting.takeResponse().code)
+        canceled.assertNoEvent()
+    }
+
+    @Test
+    fun cancelingEveryWaiterCancelsTheCall() {
+        val first = join(RecordingCallback())
+        val second = join(RecordingCallback())
+
+        first.cancel()
+        second.cancel()
+        assertTrue(calls[0].canceled)
+
+        // A new request does not join the canceled call.
+        join(RecordingCallback())
+        assertEquals(2, calls.size)
+    }
+
+    @Test
+    fun bodyIsReadOnConversionExecutor() {
+        val tasks = ArrayList<Runnable>()
+        val callback = RecordingCallback()
+        join(callback, conversionExecutor = Executor { tasks.add(it) })
+
+        calls[0].respond(rawResponse(200, body = "hello".toResponseBody()))
+        callback.assertNoEvent()
+        assertEquals(1, tasks.size)
+
+        tasks[0].run()
+        assertEquals("hello", callback.takeResponse().body!!.source().readUtf8())
+    }
+
+    @Test
+    fun rejectedConversionFailsEveryWaiter() {
+        val rejection = RejectedExecutionException()
+        val rejecting = Executor { throw rejection }
+        val first = RecordingCallback()
+        val second = RecordingCallback()
+        join(first, conversionExecutor = rejecting)
+        join(second, conversionExecutor = rejecting)
+
+        calls[0].respond(rawResponse(200))
+        assertSame(rejection, first.takeFailure().cause)
+        assertSame(rejection, second.takeFailure().cause)
+        assertEquals(0, dispatcher.runningCallsCount())
+    }
+
+    @Test
+    fun outcomeIsRecordedOncePerNetworkCall() {
+        val breaker = CircuitBreaker(
+            failureRateThreshold = 1.0,
+            windowSize = 2,
+            minimumCalls = 2,
+            openDurationMillis = 60_000L
+        )
+        val callbacks = List(3) { RecordingCallback() }
+        for (callback in callbacks) {
+            join(callback, permit = breaker.acquire("a.example", "a.example", EventListener.NONE))
+        }
+
+        calls[0].fail()
+        for (callback in callbacks) {
+            assertEquals("call 0 failed", callback.takeFailure().message)
+        }
+        // One failure of the two needed, not one per waiter.
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.state("a.example"))
+        breaker.acquire("a.example", "a.example", EventListener.NONE).onFailure()
+        assertEquals(CircuitBreaker.State.OPEN, breaker.state("a.example"))
+    }
+
+    @Test
+    fun canceledNetworkCallIsNotRecorded() {
+        val breaker = CircuitBreaker(
+            failureRateThreshold = 1.0,
+            windowSize = 1,
+            minimumCalls = 1,
+            openDurationMillis = 60_000L
+        )
+        val waiter = join(
+            RecordingCallback(),
+            permit = breaker.acquire("a.example", "a.example", EventListener.NONE)
+        )
+
+        waiter.cancel()
+        assertTrue(calls[0].canceled)
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.state("a.example"))
+    }
+
+    @Test
+    fun executeWaitsForTheSharedResponse() {
+        val future = CallCoalescer.ResponseFuture()
+        join(future)
+        val thread = Thread { calls[0].respond(rawResponse(204)) }
+        thread.start()
+
+        assertEquals(204, future.await().code)
+        thread.join()
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import msnet.CircuitBreaker.State
+import msnet.annotation.GET
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertThrows
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.IOException
+import java.util.concurrent.atomic.AtomicInteger
+
+class CircuitBreakerTest {
+    interface Service {
+        @GET("/a")
+        fun a(): Call<Unit>
+
+        @GET("/b")
+        fun b(): Call<Unit>
+    }
+
+    private val transitions = ArrayList<String>()
+    private val listener = object : EventListener() {
+        override fun circuitBreakerStateChanged(key: String, from: State, to: State) {
+            transitions.add("$key $from -> $to")
+        }
+    }
+
+    /** A breaker opened by one failure, which goes half-open on the next call. */
+    private fun trippingBreaker(halfOpenCalls: Int = 1, openDurationMillis: Long = 0L) =
+        CircuitBreaker(
+            failureRateThreshold = 1.0,
+            windowSize = 1,
+            minimumCalls = 1,
+            openDurationMillis = openDurationMillis,
+            halfOpenCalls = halfOpenCalls
+        )
+
+    private fun CircuitBreaker.acquire(host: String = "a.example") = acquire(host, host, listener)
+
+    @Test
+    fun opensAtFailureRateThreshold() {
+        val breaker = CircuitBreaker(
+            failureRateThreshold = 0.5,
+            windowSize = 4,
+            minimumCalls = 4,
+            openDurationMillis = 60_000L
+        )
+        breaker.acquire().onResponse(200)
+        breaker.acquire().onFailure()
+        breaker.acquire().onResponse(200)
+        assertEquals(State.CLOSED, breaker.state("a.example"))
+
+        // A 5xx response is a failure too, 2 of 4 reaches the threshold.
+        breaker.acquire().onResponse(503)
+        assertEquals(State.OPEN, breaker.state("a.example"))
+        val e = assertThrows(CircuitBreakerOpenException::class.java) { breaker.acquire() }
+        assertEquals("a.example", e.key)
+        assertTrue(e.retryAfterMillis in 1L..60_000L)
+        assertEquals(listOf("a.example CLOSED -> OPEN"), transitions)
+    }
+
+    @Test
+    fun closesAfterSuccessfulTrials() {
+        val breaker = trippingBreaker(halfOpenCalls = 2)
+        breaker.acquire().onFailure()
+
+        val first = breaker.acquire()
+        val second = breaker.acquire()
+        assertEquals(State.HALF_OPEN, breaker.state("a.example"))
+        // Both trials are in flight.
+        assertThrows(CircuitBreakerOpenException::class.java) { breaker.acquire() }
+
+        first.onResponse(200)
+        assertEquals(State.HALF_OPEN, breaker.state("a.example"))
+        second.onResponse(204)
+        assertEquals(State.CLOSED, breaker.state("a.example"))
+        assertEquals(
+            listOf(
+                "a.example CLOSED -> OPEN",
+                "a.example OPEN -> HALF_OPEN",
+                "a.example HALF_OPEN -> CLOSED"
+            ),
+            transitions
+        )
+    }
+
+    @Test
+    fun failedTrialOpensAgain() {
+        val breaker = trippingBreaker(halfOpenCalls = 2, openDurationMillis = 50L)
+        breaker.acquire().onFailure()
+        Thread.sleep(100L)
+
+        breaker.acquire().onFailure()
+        assertEquals(State.OPEN, breaker.state("a.example"))
+        assertThrows(CircuitBreakerOpenException::class.java) { breaker.acquire() }
+    }
+
+    @Test
+    fun releasedTrialLetsAnotherCallThrough() {
+        val breaker = trippingBreaker()
+        breaker.acquire().onFailure()
+
+        val trial = breaker.acquire()
+        assertThrows(CircuitBreakerOpenException::class.java) { breaker.acquire() }
+        trial.release()
+        // Releasing again, or after an outcome, does nothing.
+        trial.release()
+        breaker.acquire().onResponse(200)
+        assertEquals(State.CLOSED, breaker.state("a.example"))
+    }
+
+    @Test
+    fun outcomeOfEarlierStateIsIgnored() {
+        val breaker = trippingBreaker()
+        val stale = breaker.acquire()
+        breaker.acquire().onFailure()
+        breaker.acquire()
+        assertEquals(State.HALF_OPEN, breaker.state("a.example"))
+
+        stale.onFailure()
+        assertEquals(State.HALF_OPEN, breaker.state("a.example"))
+    }
+
+    @Test
+    fun callFailingWithoutOutcomeReleasesItsTrial() {
+        val attempts = AtomicInteger()
+        val breaker = trippingBreaker()
+        val service = service(breaker) {
+            FakeCall().apply {
+                onExecute = {
+                    if (attempts.incrementAndGet() == 1) throw IOException("Connection reset")
+                    throw IllegalStateException("Engine shut down")
+                }
+            }.call
+        }
+
+        assertThrows(IOException::class.java) { service.a().execute() }
+        assertEquals(State.OPEN, breaker.state("a.example"))
+        // The trial fails with neither a response nor an IOException.
+        assertThrows(IllegalStateException::class.java) { service.a().execute() }
+        assertEquals(State.HALF_OPEN, breaker.state("a.example"))
+        // Not CircuitBreakerOpenException, the trial was given back.
+        assertThrows(IllegalStateException::class.java) { service.a().execute() }
+        assertEquals(3, attempts.get())
+    }
+
+    @Test
+    fun asyncCallFailingToStartReleasesItsTrial() {
+        val calls = AtomicInteger()
+        val breaker = trippingBreaker()
+        val service = service(breaker) {
+            if (calls.incrementAndGet() > 1) throw IllegalStateException("Engine shut down")
+            FakeCall().apply { onExecute = { throw IOException("Connection reset") } }.call
+        }
+        assertThrows(IOException::class.java) { service.a().execute() }
+
+        val failures = ArrayList<Throwable>()
+        val callback = object : Callback<Unit> {
+            override fun onResponse(call: Call<Unit>, response: Response<Unit>) {
+                throw AssertionError()
+            }
+
+            override fun onFailure(call: Call<Unit>, t: Throwable) {
+                failures.add(t)
+            }
+        }
+        service.a().enqueue(callback)
+        service.a().enqueue(callback)
+        assertEquals(2, failures.size)
+        assertTrue(failures.all { it is IllegalStateException })
+        assertEquals(3, calls.get())
+    }
+
+    @Test
+    fun leastRecentlyUsedClosedCircuitIsForgotten() {
+        val breaker = CircuitBreaker(
+            failureRateThreshold = 1.0,
+            windowSize = 2,
+            minimumCalls = 2,
+            openDurationMillis = 60_000L,
+            maxCircuits = 2
+        )
+        breaker.acquire("a.example").onFailure()
+        breaker.acquire("a.example").onFailure()
+        breaker.acquire("b.example").onFailure()
+        breaker.acquire("c.example").onResponse(200)
+        breaker.acquire("b.example").onFailure()
+
+        // The open circuit is kept even though it was used first.
+        assertEquals(State.OPEN, breaker.state("a.example"))
+        // b.example was forgotten with its first failure, so one more does not open it.
+        assertEquals(State.CLOSED, breaker.state("b.example"))
+    }
+
+    @Test
+    fun methodScopeKeepsACircuitPerMethod() {
+        val breaker = CircuitBreaker(
+            scope = CircuitBreaker.Scope.METHOD,
+            failureRateThreshold = 1.0,
+            windowSize = 1,
+            minimumCalls = 1,
+            openDurationMillis = 60_000L
+        )
+        val calls = AtomicInteger()
+        val service = service(breaker) { request ->
+            calls.incrementAndGet()
+            FakeCall().apply {
+                onExecute = {
+                    if (request.url.toString().endsWith("/a")) throw IOException("Connection reset")
+                    rawResponse(200)
+                }
+            }.call
+        }
+
+        assertThrows(IOException::class.java) { service.a().execute() }
+        val e = assertThrows(CircuitBreakerOpenException::class.java) { service.a().execute() }
+        assertEquals("msnet.CircuitBreakerTest\$Service.a", e.key)
+        assertEquals(200, service.b().execute().code())
+        assertEquals(2, calls.get())
+
+        val a = Service::class.java.getMethod("a")
+        val b = Service::class.java.getMethod("b")
+        assertEquals(State.OPEN, breaker.state(a))
+        assertEquals(State.CLOSED, breaker.state(b))
+        assertEquals(State.CLOSED, breaker.state("a.example"))
+    }
+
+    private fun service(
+        breaker: CircuitBreaker,
+        newCall: (okcronet.http.Request) -> okcronet.Call
+    ): Service {
+        val msNet = msNet(newCall) {
+            circuitBreaker(breaker)
+            dispatchExecutor { it.run() }
+        }
+        return msNet.create(Service::class.java)
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import org.chromium.net.UrlRequest.Builder.REQUEST_PRIORITY_HIGHEST
+import org.chromium.net.UrlRequest.Builder.REQUEST_PRIORITY_IDLE
+import org.chromium.net.UrlRequest.Builder.REQUEST_PRIORITY_LOW
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class DispatcherTest {
+    private val started = ArrayList<FakeCall>()
+
+    private fun Dispatcher.enqueue(
+        name: String,
+        host: String = "a.example",
+        priority: Int = REQUEST_PRIORITY_LOW,
+        callback: okcronet.Callback = RecordingCallback(),
+        enqueueFailure: Throwable? = null
+    ): Pair<FakeCall, Dispatcher.AsyncCall> {
+        val fake = FakeCall(name, started)
+        fake.enqueueFailure = enqueueFailure
+        val asyncCall = AsyncCall(host, priority, fake.call, callback, EventListener.NONE)
+        enqueue(asyncCall)
+        return fake to asyncCall
+    }
+
+    @Test
+    fun higherPriorityRunsFirst() {
+        val dispatcher = Dispatcher(maxRequests = 1)
+        val (blocker, _) = dispatcher.enqueue("blocker")
+        dispatcher.enqueue("low", priority = REQUEST_PRIORITY_IDLE)
+        dispatcher.enqueue("high", priority = REQUEST_PRIORITY_HIGHEST)
+        assertEquals(listOf("blocker"), started.map { it.name })
+
+        blocker.respond(rawResponse(200))
+        assertEquals(listOf("blocker", "high"), started.map { it.name })
+    }
+
+    @Test
+    fun waitingCallsAge() {
+        val dispatcher = Dispatcher(maxRequests = 1)
+        dispatcher.agingMillis = 1L
+        val (blocker, _) = dispatcher.enqueue("blocker")
+        dispatcher.enqueue("old", priority = REQUEST_PRIORITY_IDLE)
+        // Raises the old call well above the highest priority.
+        Thread.sleep(50L)
+        dispatcher.enqueue("new", priority = REQUEST_PRIORITY_HIGHEST)
+
+        blocker.respond(rawResponse(200))
+        assertEquals(listOf("blocker", "old"), started.map { it.name })
+    }
+
+    @Test
+    fun samePriorityRunsInEnqueueOrder() {
+        val dispatcher = Dispatcher(maxRequests = 1)
+        val (blocker, _) = dispatcher.enqueue("blocker")
+        dispatcher.enqueue("first")
+        dispatcher.enqueue("second")
+
+        blocker.respond(rawResponse(200))
+        started.last().respond(rawResponse(200))
+        assertEquals(listOf("blocker", "first", "second"), started.map { it.name })
+    }
+
+    @Test
+    fun slotsAreCountedPerHost() {
+        val dispatcher = Dispatcher(maxRequests = 10, maxRequestsPerHost = 2)
+        val (a1, _) = dispatcher.enqueue("a1", host = "a.example")
+        dispatcher.enqueue("a2", host = "a.example")
+        dispatcher.enqueue("a3", host = "a.example")
+        dispatcher.enqueue("b1", host = "b.example")
+
+        assertEquals(listOf("a1", "a2", "b1"), started.map { it.name })
+        assertEquals(3, dispatcher.runningCallsCount())
+        assertEquals(1, dispatcher.queuedCallsCount())
+        assertEquals(2, dispatcher.runningCallsCount("a.example"))
+        assertEquals(1, dispatcher.queuedCallsCount("a.example"))
+        assertEquals(1, dispatcher.runningCallsCount("b.example"))
+        assertEquals(0, dispatcher.queuedCallsCount("b.example"))
+
+        a1.respond(rawResponse(200))
+        assertEquals("a3", started.last().name)
+        assertEquals(2, dispatcher.runningCallsCount("a.example"))
+        assertEquals(0, dispatcher.queuedCallsCount("a.example"))
+        assertEquals(0, dispatcher.queuedCallsCount())
+    }
+
+    @Test
+    fun hostsAreNotLimitedByDefault() {
+        val dispatcher = Dispatcher(maxRequests = 10)
+        repeat(10) {
+            dispatcher.enqueue("a$it", host = "a.example")
+        }
+        assertEquals(10, dispatcher.runningCallsCount("a.example"))
+        assertEquals(0, dispatcher.queuedCallsCount())
+    }
+
+    @Test
+    fun fullHostDoesNotHoldBackOtherHosts() {
+        val dispatcher = Dispatcher(maxRequests = 2, maxRequestsPerHost = 1)
+        val (a1, _) = dispatcher.enqueue("a1", host = "a.example")
+        val (b1, _) = dispatcher.enqueue("b1", host = "b.example")
+        dispatcher.enqueue("a2", host = "a.example", priority = REQUEST_PRIORITY_HIGHEST)
+        dispatcher.enqueue("b2", host = "b.example", priority = REQUEST_PRIORITY_IDLE)
+
+        // a.example is full, so its higher priority call waits behind the one of b.example.
+        b1.respond(rawResponse(200))
+        assertEquals(listOf("a1", "b1", "b2"), started.map { it.name })
+
+        a1.respond(rawResponse(200))
+        assertEquals("a2", started.last().name)
+    }
+
+    @Test
+    fun raisingTheHostLimitStartsWaitingCalls() {
+        val dispatcher = Dispatcher(maxRequests = 10, maxRequestsPerHost = 1)
+        dispatcher.enqueue("a1", host = "a.example")
+        dispatcher.enqueue("a2", host = "a.example")
+        dispatcher.enqueue("a3", host = "a.example")
+        assertEquals(listOf("a1"), started.map { it.name })
+
+        dispatcher.maxRequestsPerHost = 3
+        assertEquals(listOf("a1", "a2", "a3"), started.map { it.name })
+    }
+
+    @Test
+    fun failureReleasesSlot() {
+        val dispatcher = Dispatcher(maxRequests = 1)
+        val callback = RecordingCallback()
+        val (first, _) = dispatcher.enqueue("first", callback = callback)
+        dispatcher.enqueue("second")
+
+        first.fail()
+        assertEquals("first failed", callback.takeFailure().message)
+        assertEquals(listOf("first", "second"), started.map { it.name })
+        assertEquals(1, dispatcher.runningCallsCount())
+        assertEquals(0, dispatcher.queuedCallsCount())
+    }
+
+    @Test
+    fun callThatFailsToStartReleasesSlot() {
+        val dispatcher = Dispatcher(maxRequests = 1)
+        val failure = IllegalStateException("Engine shut down")
+        val callback = RecordingCallback()
+        dispatcher.enqueue("broken", callback = callback, enqueueFailure = failure)
+
+        assertSame(failure, callback.takeFailure().cause)
+        assertEquals(0, dispatcher.runningCallsCount())
+
+        dispatcher.enqueue("next")
+        assertEquals(listOf("next"), started.map { it.name })
+        assertEquals(1, dispatcher.runningCallsCount())
+    }
+
+    @Test
+    fun callThatFailsToStartDoesNotFailThePromotingCall() {
+        val dispatcher = Dispatcher(maxRequests = 1)
+        val blockerCallback = RecordingCallback()
+        val (blocker, _) = dispatcher.enqueue("blocker", callback = blockerCallback)
+        val brokenCallback = RecordingCallback()
+        dispatcher.enqueue(
+            "broken",
+            callback = brokenCallback,
+            enqueueFailure = IllegalStateException("Engine shut down")
+        )
+
+        blocker.respond(rawResponse(200))
+        assertEquals(200, blockerCallback.takeResponse().code)
+        blockerCallback.assertNoEvent()
+        assertTrue(brokenCallback.takeFailure().cause is IllegalStateException)
+        assertEquals(0, dispatcher.runningCallsCount())
+        assertEquals(0, dispatcher.queuedCallsCount())
+    }
+
+    @Test
+    fun cancelQueuedCall() {
+        val dispatcher = Dispatcher(maxRequests = 1)
+        dispatcher.enqueue("blocker")
+        val callback = RecordingCallback()
+        val (queued, asyncCall) = dispatcher.enqueue("queued", callback = callback)
+
+        dispatcher.cancel(asyncCall)
+        assertEquals("Canceled", callback.takeFailure().message)
+        assertEquals(0, dispatcher.queuedCallsCount())
+        assertEquals(listOf("blocker"), started.map { it.name })
+        assertNull(queued.callback)
+    }
+
+    @Test
+    fun canceledCallFailsWhenPromoted() {
+        val dispatcher = Dispatcher(maxRequests = 1)
+        val (blocker, _) = dispatcher.enqueue("blocker")
+        val callback = RecordingCallback()
+        val (queued, _) = dispatcher.enqueue("queued", callback = callback)
+        queued.call.cancel()
+
+        blocker.respond(rawResponse(200))
+        assertEquals("Canceled", callback.takeFailure().message)
+        assertEquals(0, dispatcher.runningCallsCount())
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import msnet.annotation.Download
+import msnet.annotation.GET
+import okcronet.http.Request
+import okcronet.http.ResponseBody
+import okcronet.http.ResponseBody.Companion.asResponseBody
+import okio.Buffer
+import okio.Source
+import okio.buffer
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertThrows
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.io.IOException
+import java.net.ProtocolException
+import kotlin.random.Random
+
+class DownloadTest {
+    interface Service {
+        @GET("/file")
+        fun file(@Download target: File): Call<File>
+
+        @GET("/file")
+        fun unit(@Download target: File): Call<Unit>
+
+        @GET("/file")
+        fun text(@Download target: File): Call<String>
+    }
+
+    @get:Rule
+    val temporaryFolder = TemporaryFolder()
+
+    // Spans several copy buffers.
+    private val content = Random(1).nextBytes(200_000)
+    private val requests = ArrayList<Request>()
+    private val responses = ArrayDeque<okcronet.http.Response>()
+    private val service = msNet({ request ->
+        requests.add(request)
+        FakeCall(request = request).apply { onExecute = { responses.removeFirst() } }.call
+    }).create(Service::class.java)
+
+    private val target: File by lazy { File(temporaryFolder.root, "download.bin") }
+    private val temp: File get() = File(target.path + ".part")
+    private val metadata: File get() = File(target.path + ".part.meta")
+
+    @Test
+    fun bodyIsWrittenToTheTarget() {
+        responses.addLast(rawResponse(200, body = content.toResponseBody()))
+
+        val response = service.file(target).execute()
+        assertSame(target, response.body())
+        assertArrayEquals(content, target.readBytes())
+        assertFalse(temp.exists())
+        assertFalse(metadata.exists())
+    }
+
+    @Test
+    fun targetIsReplacedWhole() {
+        target.writeText("old version")
+        responses.addLast(rawResponse(200, body = content.toResponseBody()))
+
+        assertEquals(Unit, service.unit(target).execute().body())
+        assertArrayEquals(content, target.readBytes())
+    }
+
+    @Test
+    fun errorResponseLeavesTheTargetAlone() {
+        target.writeText("old version")
+        responses.addLast(rawResponse(404, body = "missing".toResponseBody()))
+
+        val response = service.file(target).execute()
+        assertEquals(404, response.code())
+        assertEquals("missing", response.errorBody()!!.source().readUtf8())
+        assertEquals("old version", target.readText())
+        assertFalse(temp.exists())
+    }
+
+    /** Sends `bytes`, then fails as a dropped connection. */
+    private fun interruptedBody(bytes: ByteArray): ResponseBody {
+        val data = Buffer().write(bytes)
+        val source = object : Source by data {
+            override fun read(sink: Buffer, byteCount: Long): Long {
+                if (data.exhausted()) throw IOException("Connection reset")
+                return data.read(sink, byteCount)
+            }
+        }
+        return source.buffer().asResponseBody(null, -1L)
+    }
+
+    /** Fails a download of [content] after 150,000 bytes, of which 131,072 reach the disk. */
+    private fun interruptDownload(vararg headers: Pair<String, String>) {
+        responses.addLast(
+            rawResponse(200, headers.toList(), interruptedBody(content.copyOf(150_000)))
+        )
+        val e = assertThrows(IOException::class.java) { service.file(target).execute() }
+        assertEquals("Connection reset", e.message)
+        assertFalse(target.exists())
+    }
+
+    private fun rest(from: Int) = content.copyOfRange(from, content.size).toResponseBody()
+
+    @Test
+    fun interruptedDownloadResumesWithRange() {
+        interruptDownload("ETag" to "\"v1\"")
+        assertTrue(temp.exists())
+        assertTrue(metadata.exists())
+
+        responses.addLast(
+            rawResponse(
+                206,
+                listOf("ETag" to "\"v1\"", "Content-Range" to "bytes 131072-199999/200000"),
+                rest(131_072)
+            )
+        )
+        service.file(target).execute()
+        assertEquals("bytes=131072-", requests[1].headers["Range"])
+        assertEquals("\"v1\"", requests[1].headers["If-Range"])
+        assertArrayEquals(content, target.readBytes())
+        assertFalse(temp.exists())
+        assertFalse(metadata.exists())
+    }
+
+    @Test
+    fun lastModifiedIsAValidatorToo() {
+        interruptDownload("Last-Modified" to "Wed, 21 Oct 2015 07:28:00 GMT")
+
+        responses.addLast(rawResponse(200, body = content.toResponseBody()))
+        service.file(target).execute()
+        assertEquals("Wed, 21 Oct 2015 07:28:00 GMT", requests[1].headers["If-Range"])
+    }
+
+    @Test
+    fun wholeResourceInsteadOfTheRangeStartsOver() {
+        interruptDownload("ETag" to "\"v1\"")
+
+        // The resource changed, so the server ignores If-Range.
+        val changed = Random(2).nextBytes(50_000)
+        responses.addLast(rawResponse(200, listOf("ETag" to "\"v2\""), changed.toResponseBody()))
+        service.file(target).execute()
+        assertEquals("bytes=131072-", requests[1].headers["Range"])
+        assertArrayEquals(changed, target.readBytes())
+        assertFalse(temp.exists())
+        assertFalse(metadata.exists())
+    }
+
+    @Test
+    fun unexpectedContentRangeDiscardsThePartialFile() {
+        interruptDownload("ETag" to "\"v1\"")
+
+        responses.addLast(
+            rawResponse(
+                206,
+                listOf("ETag" to "\"v1\"", "Content-Range" to "bytes 0-199999/200000"),
+                content.toResponseBody()
+            )
+        )
+        val e = assertThrows(ProtocolException::class.java) { service.file(target).execute() }
+        assertEquals(
+            "Unexpected Content-Range bytes 0-199999/200000 for a partial file of 131072 bytes",
+            e.message
+        )
+        assertFalse(target.exists())
+        assertFalse(temp.exists())
+        assertFalse(metadata.exists())
+
+        // The next call asks for all of it.
+        responses.addLast(rawResponse(200, body = content.toResponseBody()))
+        service.file(target).execute()
+        assertNull(requests[2].headers["Range"])
+        assertArrayEquals(content, target.readBytes())
+    }
+
+    @Test
+    fun weakValidatorIsNotResumed() {
+        interruptDownload("ETag" to "W/\"v1\"")
+        assertFalse(temp.exists())
+        assertFalse(metadata.exists())
+
+        responses.addLast(rawResponse(200, body = content.toResponseBody()))
+        service.file(target).execute()
+        assertNull(requests[1].headers["Range"])
+        assertArrayEquals(content, target.readBytes())
+    }
+
+    @Test
+    fun rangeNotSatisfiableDiscardsThePartialFile() {
+        interruptDownload("ETag" to "\"v1\"")
+
+        responses.addLast(rawResponse(416))
+        assertEquals(416, service.file(target).execute().code())
+        assertFalse(temp.exists())
+        assertFalse(metadata.exists())
+    }
+
+    @Test
+    fun responseTypeMustBeAFile() {
+        val e = assertThrows(IllegalArgumentException::class.java) { service.text(target) }
+        assertTrue(
+            e.message!!.startsWith(
+                "@Download methods must use File, Path, Void or Unit as response type."
+            )
+        )
+    }
+}
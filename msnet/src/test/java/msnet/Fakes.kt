@@ -0,0 +1,213 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import okcronet.CronetClient
+import okcronet.http.Response
+import okcronet.http.ResponseBody
+import okcronet.http.ResponseBody.Companion.asResponseBody
+import okio.Buffer
+import org.chromium.net.UrlResponseInfo
+import org.mockito.Mockito.RETURNS_DEFAULTS
+import org.mockito.Mockito.mock
+import org.mockito.stubbing.Answer
+import java.io.IOException
+import java.util.AbstractMap
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * A Cronet call that does nothing until the test completes it. Calls started by [enqueue] are
+ * added to `started`, so tests can check the order the dispatcher started them in.
+ */
+internal class FakeCall(
+    val name: String = "call",
+    private val started: MutableList<FakeCall>? = null,
+    private val request: okcronet.http.Request? = null
+) {
+    @Volatile
+    var callback: okcronet.Callback? = null
+        private set
+
+    @Volatile
+    var canceled = false
+        private set
+
+    /** Thrown by `enqueue` instead of starting the call. */
+    var enqueueFailure: Throwable? = null
+
+    /** Answers `execute`. */
+    var onExecute: () -> Response = { throw IOException("No response for $name") }
+
+    val call: okcronet.Call = mock(okcronet.Call::class.java, Answer<Any?> { invocation ->
+        when (invocation.method.name) {
+            "enqueue" -> {
+                enqueueFailure?.let { throw it }
+                callback = invocation.getArgument(0)
+                started?.let { synchronized(it) { it.add(this) } }
+                null
+            }
+            "execute" -> {
+                if (canceled) throw IOException("Canceled")
+                onExecute()
+            }
+            "cancel" -> {
+                canceled = true
+                null
+            }
+            "isCanceled" -> canceled
+            "request" -> request
+            "toString" -> name
+            else -> RETURNS_DEFAULTS.answer(invocation)
+        }
+    })
+
+    /** Waits for the dispatcher to start this call. */
+    fun awaitStarted(): FakeCall {
+        val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5L)
+        while (callback == null) {
+            if (System.nanoTime() > deadline) throw AssertionError("$name was not started")
+            Thread.sleep(5L)
+        }
+        return this
+    }
+
+    fun respond(response: Response) {
+        checkNotNull(callback) { "$name was not started" }.onResponse(call, response)
+    }
+
+    fun fail(e: IOException = IOException("$name failed")) {
+        checkNotNull(callback) { "$name was not started" }.onFailure(call, e)
+    }
+
+    override fun toString() = name
+}
+
+/** A call factory, or [okcronet.CronetClient], whose calls are created by `newCall`. */
+internal inline fun <reified T : Any> callFactory(
+    crossinline newCall: (okcronet.http.Request) -> okcronet.Call
+): T = mock(T::class.java, Answer<Any?> { invocation ->
+    if (invocation.method.name == "newCall") {
+        newCall(invocation.getArgument(0))
+    } else {
+        RETURNS_DEFAULTS.answer(invocation)
+    }
+})
+
+/** An [MSNet] for `https://a.example/` that calls back and converts on the calling thread. */
+internal fun msNet(
+    newCall: (okcronet.http.Request) -> okcronet.Call,
+    configure: MSNet.Builder.() -> Unit = {}
+): MSNet = MSNet.Builder()
+    .baseUrl("https://a.example/")
+    .cronet(callFactory<CronetClient> { newCall(it) })
+    .callbackExecutor { it.run() }
+    .conversionExecutor { it.run() }
+    .apply(configure)
+    .build()
+
+/** A Cronet response with `headers` and `body`. */
+internal fun rawResponse(
+    code: Int,
+    headers: List<Pair<String, String>> = emptyList(),
+    body: ResponseBody? = "".toResponseBody()
+): Response {
+    val info = mock(UrlResponseInfo::class.java, Answer<Any?> { invocation ->
+        when (invocation.method.name) {
+            "getHttpStatusCode" -> code
+            "getHttpStatusText" -> "HTTP $code"
+            "getAllHeadersAsList" -> headers.map { (name, value) ->
+                AbstractMap.SimpleImmutableEntry(name, value)
+            }
+            "getAllHeaders" -> headers.groupBy({ it.first }, { it.second })
+            else -> RETURNS_DEFAULTS.answer(invocation)
+        }
+    })
+    return mock(Response::class.java, Answer<Any?> { invocation ->
+        when (invocation.method.name) {
+            "getCode" -> code
+            "getMessage" -> "HTTP $code"
+            "isSuccessful" -> code in 200..299
+            "getBody" -> body
+            "getUrlResponseInfo" -> info
+            "newBuilder" -> responseBuilder(code, headers, body)
+            "close" -> body?.close()
+            "toString" -> "Response{code=$code}"
+            else -> RETURNS_DEFAULTS.answer(invocation)
+        }
+    })
+}
+
+/** A builder whose only effective change is the body. */
+private fun responseBuilder(
+    code: Int,
+    headers: List<Pair<String, String>>,
+    body: ResponseBody?
+): Response.Builder {
+    var newBody = body
+    return mock(Response.Builder::class.java, Answer<Any?> { invocation ->
+        when {
+            invocation.method.name == "build" -> rawResponse(code, headers, newBody)
+            invocation.method.name == "body" -> {
+                newBody = invocation.getArgument(0)
+                invocation.mock
+            }
+            invocation.method.returnType == Response.Builder::class.java -> invocation.mock
+            else -> RETURNS_DEFAULTS.answer(invocation)
+        }
+    })
+}
+
+internal fun String.toResponseBody(): ResponseBody {
+    val buffer = Buffer().writeUtf8(this)
+    return buffer.asResponseBody(null, buffer.size)
+}
+
+internal fun ByteArray.toResponseBody(): ResponseBody {
+    val buffer = Buffer().write(this)
+    return buffer.asResponseBody(null, buffer.size)
+}
+
+/** Records what a Cronet callback received, a [Response] or an [IOException]. */
+internal class RecordingCallback : okcronet.Callback {
+    private val events = LinkedBlockingQueue<Any>()
+
+    override fun onResponse(call: okcronet.Call, response: Response) {
+        events.add(response)
+    }
+
+    override fun onFailure(call: okcronet.Call, e: IOException) {
+        events.add(e)
+    }
+
+    fun take(): Any = events.poll(5, TimeUnit.SECONDS) ?: throw AssertionError("No event")
+
+    fun takeResponse(): Response = take() as? Response ?: throw AssertionError("Not a response")
+
+    fun takeFailure(): IOException = take() as? IOException ?: throw AssertionError("Not a failure")
+
+    fun assertNoEvent() {
+        events.peek()?.let { throw AssertionError("Unexpected event: $it") }
+    }
+}
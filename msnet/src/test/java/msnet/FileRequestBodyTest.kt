@@ -0,0 +1,133 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import okio.Buffer
+import okio.ByteString.Companion.toByteString
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertThrows
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.EOFException
+import java.io.File
+import java.io.RandomAccessFile
+import kotlin.random.Random
+
+class FileRequestBodyTest {
+    @get:Rule
+    val temporaryFolder = TemporaryFolder()
+
+    // Spans several okio segments.
+    private val content = Random(1).nextBytes(100_000)
+
+    private fun file(): File = temporaryFolder.newFile().apply { writeBytes(content) }
+
+    private fun FileRequestBody.bytes(): ByteArray {
+        val sink = Buffer()
+        writeTo(sink)
+        return sink.readByteArray()
+    }
+
+    @Test
+    fun wholeFile() {
+        val body = FileRequestBody.create(file())
+        assertEquals(content.size.toLong(), body.length())
+        assertArrayEquals(content, body.bytes())
+    }
+
+    @Test
+    fun window() {
+        val body = FileRequestBody.create(file(), offset = 10_000L, byteCount = 50_000L)
+        assertEquals(50_000L, body.length())
+        assertArrayEquals(content.copyOfRange(10_000, 60_000), body.bytes())
+    }
+
+    @Test
+    fun sliceIsRelativeToItsBody() {
+        val body = FileRequestBody.create(file(), offset = 10_000L)
+        val slice = body.slice(5_000L, 20_000L)
+        assertEquals(15_000L, slice.offset)
+        assertEquals(20_000L, slice.length())
+        assertArrayEquals(content.copyOfRange(15_000, 35_000), slice.bytes())
+    }
+
+    @Test
+    fun slicesCoverTheFile() {
+        val body = FileRequestBody.create(file())
+        val sink = Buffer()
+        var offset = 0L
+        while (offset < body.length()) {
+            val byteCount = minOf(30_000L, body.length() - offset)
+            body.slice(offset, byteCount).writeTo(sink)
+            offset += byteCount
+        }
+        assertEquals(content.toByteString(), sink.readByteString())
+    }
+
+    @Test
+    fun emptyWindow() {
+        val body = FileRequestBody.create(file(), offset = 100L, byteCount = 0L)
+        assertEquals(0L, body.length())
+        assertEquals(0, body.bytes().size)
+    }
+
+    @Test
+    fun windowOutOfBounds() {
+        val file = file()
+        assertThrows(IllegalArgumentException::class.java) {
+            FileRequestBody.create(file, offset = 1L, byteCount = content.size.toLong())
+        }
+        val body = FileRequestBody.create(file)
+        assertThrows(IllegalArgumentException::class.java) {
+            body.slice(-1L, 10L)
+        }
+    }
+
+    @Test
+    fun bodyCanBeWrittenAgain() {
+        val body = FileRequestBody.create(file(), offset = 1L, byteCount = 10L)
+        assertArrayEquals(body.bytes(), body.bytes())
+    }
+
+    @Test
+    fun channelPositionIsLeftAlone() {
+        RandomAccessFile(file(), "r").channel.use { channel ->
+            channel.position(42L)
+            val body = FileRequestBody.create(channel, offset = 100L, byteCount = 1_000L)
+            assertArrayEquals(content.copyOfRange(100, 1_100), body.bytes())
+            assertEquals(42L, channel.position())
+            assertEquals(true, channel.isOpen)
+        }
+    }
+
+    @Test
+    fun truncatedFileThrows() {
+        val file = file()
+        val body = FileRequestBody.create(file)
+        file.writeBytes(content.copyOf(1_000))
+        assertThrows(EOFException::class.java) { body.bytes() }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import msnet.annotation.Hedge
+import okcronet.http.HttpUrl.Companion.toHttpUrl
+import okcronet.http.Request
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+class HedgedCallTest {
+    private interface Service {
+        @Hedge(delayMs = 20L)
+        fun fast()
+
+        @Hedge(delayMs = 60_000L)
+        fun slow()
+
+        @Hedge
+        fun observed()
+    }
+
+    private val request = Request.Builder().url("https://a.example/".toHttpUrl()).build()
+    private val hedges = LinkedBlockingQueue<FakeCall>()
+    private val primary = FakeCall("primary")
+    private val callback = RecordingCallback()
+
+    private fun policy(name: String): HedgePolicy {
+        return HedgePolicy(Service::class.java.getMethod(name).getAnnotation(Hedge::class.java)!!)
+    }
+
+    private fun hedgedCall(
+        policy: HedgePolicy,
+        budgetRatio: Double = 1.0,
+        primary: FakeCall = this.primary
+    ): HedgedCall {
+        val msNet = msNet({ FakeCall("hedge").also { hedges.add(it) }.call }) {
+            hedgeBudget(budgetRatio)
+        }
+        msNet.hedgeBudget.onRequest()
+        return HedgedCall(msNet, msNet.cronetClient, policy, request, 3, primary.call, callback)
+    }
+
+    private fun awaitHedge(): FakeCall {
+        val hedge = hedges.poll(5, TimeUnit.SECONDS) ?: throw AssertionError("No hedge sent")
+        return hedge.awaitStarted()
+    }
+
+    @Test
+    fun firstResponseWinsAndCancelsTheOthers() {
+        hedgedCall(policy("fast")).start()
+        primary.awaitStarted()
+        val hedge = awaitHedge()
+
+        hedge.respond(rawResponse(200))
+        assertEquals(200, callback.takeResponse().code)
+        assertTrue(primary.canceled)
+
+        // The loser's late response is dropped.
+        primary.respond(rawResponse(200))
+        callback.assertNoEvent()
+    }
+
+    @Test
+    fun noHedgeWhenPrimaryAnswersInTime() {
+        hedgedCall(policy("slow")).start()
+        primary.awaitStarted().respond(rawResponse(200))
+
+        assertEquals(200, callback.takeResponse().code)
+        assertNull(hedges.poll(100, TimeUnit.MILLISECONDS))
+    }
+
+    @Test
+    fun failsOnlyOnceEveryAttemptFailed() {
+        hedgedCall(policy("fast")).start()
+        primary.awaitStarted()
+        val hedge = awaitHedge()
+
+        primary.fail()
+        callback.assertNoEvent()
+        hedge.fail()
+        assertEquals("hedge failed", callback.takeFailure().message)
+    }
+
+    @Test
+    fun noHedgeOverBudget() {
+        hedgedCall(policy("fast"), budgetRatio = 0.0).start()
+        primary.awaitStarted()
+
+        assertNull(hedges.poll(200, TimeUnit.MILLISECONDS))
+        primary.respond(rawResponse(200))
+        assertEquals(200, callback.takeResponse().code)
+    }
+
+    @Test
+    fun cancelCancelsEveryAttempt() {
+        val hedgedCall = hedgedCall(policy("fast"))
+        hedgedCall.start()
+        primary.awaitStarted()
+        val hedge = awaitHedge()
+
+        hedgedCall.cancel()
+        assertTrue(primary.canceled)
+        assertTrue(hedge.canceled)
+    }
+
+    @Test
+    fun noHedgeUntilLatenciesAreObserved() {
+        val policy = policy("observed")
+        repeat(20) {
+            val primary = FakeCall("primary $it")
+            hedgedCall(policy, primary = primary).start()
+            assertEquals(-1L, policy.delayNanos())
+            primary.awaitStarted().respond(rawResponse(200))
+            callback.takeResponse()
+        }
+
+        // Every primary latency was recorded, the policy now has a delay.
+        assertTrue(policy.delayNanos() >= 0L)
+        assertTrue(hedges.isEmpty())
+    }
+
+    @Test
+    fun observedDelayIsThe95thPercentile() {
+        val policy = policy("observed")
+        for (millis in 1L..19L) {
+            policy.recordLatency(TimeUnit.MILLISECONDS.toNanos(millis))
+        }
+        assertEquals(-1L, policy.delayNanos())
+
+        policy.recordLatency(TimeUnit.MILLISECONDS.toNanos(20L))
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(19L), policy.delayNanos())
+    }
+
+    @Test
+    fun observedDelayFollowsRecentLatencies() {
+        val policy = policy("observed")
+        repeat(128) { policy.recordLatency(TimeUnit.MILLISECONDS.toNanos(1L)) }
+        repeat(128) { policy.recordLatency(TimeUnit.MILLISECONDS.toNanos(100L)) }
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100L), policy.delayNanos())
+    }
+
+    @Test
+    fun fixedDelayIgnoresLatencies() {
+        val policy = policy("slow")
+        repeat(20) { policy.recordLatency(1L) }
+        assertEquals(TimeUnit.SECONDS.toNanos(60L), policy.delayNanos())
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Test
+
+class JvmPlatformTest {
+    @Test
+    fun platformOfPlainJvm() {
+        assertEquals(JvmPlatform::class.java, Platform.get().javaClass)
+    }
+
+    @Test
+    fun jvmClassesLoadWithoutAndroid() {
+        val loader = NoAndroidClassLoader(javaClass.classLoader!!)
+        val platform = Class.forName("msnet.Platform", true, loader)
+        val get = platform.getDeclaredMethod("get").apply { isAccessible = true }
+        assertEquals("msnet.JvmPlatform", get.invoke(null)!!.javaClass.name)
+
+        for (name in JVM_CLASSES) {
+            Class.forName(name, true, loader)
+        }
+    }
+
+    @Test
+    fun jvmClassesReferenceNoAndroidTypes() {
+        for (name in JVM_CLASSES) {
+            // Annotations with class retention, like TargetApi, are in the constant pool too.
+            assertFalse(name, String(classBytes(javaClass.classLoader!!, name), Charsets.ISO_8859_1)
+                .contains("android/"))
+        }
+    }
+
+    /** Defines the msnet classes itself and has no Android classes at all. */
+    private class NoAndroidClassLoader(private val delegate: ClassLoader) : ClassLoader(null) {
+        override fun loadClass(name: String, resolve: Boolean): Class<*> {
+            synchronized(getClassLoadingLock(name)) {
+                findLoadedClass(name)?.let { return it }
+                if (name.startsWith("android.")) throw ClassNotFoundException(name)
+                if (!name.startsWith("msnet.")) return delegate.loadClass(name)
+                val bytes = classBytes(delegate, name)
+                return defineClass(name, bytes, 0, bytes.size)
+            }
+        }
+    }
+
+    private companion object {
+        val JVM_CLASSES = listOf(
+            "msnet.Platform",
+            "msnet.JvmPlatform",
+            "msnet.BuiltInConverters",
+            "msnet.FileDownload",
+            "msnet.FileRequestBody",
+        )
+
+        fun classBytes(loader: ClassLoader, name: String): ByteArray {
+            val stream = loader.getResourceAsStream(name.replace('.', '/') + ".class")
+                ?: throw ClassNotFoundException(name)
+            return stream.use { it.readBytes() }
+        }
+    }
+}
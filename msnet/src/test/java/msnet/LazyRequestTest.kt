@@ -0,0 +1,154 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import msnet.annotation.GET
+import msnet.annotation.Path
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertThrows
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.IOException
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class LazyRequestTest {
+    interface Service {
+        @GET("/{id}")
+        fun get(@Path("id") id: String): Call<Unit>
+    }
+
+    /** Records the outcome of an enqueued call. */
+    private class RecordingCallback : Callback<Unit> {
+        private val events = LinkedBlockingQueue<Any>()
+
+        override fun onResponse(call: Call<Unit>, response: Response<Unit>) {
+            events.add(response)
+        }
+
+        override fun onFailure(call: Call<Unit>, t: Throwable) {
+            events.add(t)
+        }
+
+        fun take(): Any = events.poll(5, TimeUnit.SECONDS) ?: throw AssertionError("No event")
+
+        fun takeFailure(): Throwable = take() as? Throwable ?: throw AssertionError("Not a failure")
+    }
+
+    private val newCalls = AtomicInteger()
+    private val dispatched = ArrayList<Runnable>()
+    private var newCall: (okcronet.http.Request) -> okcronet.Call = { request ->
+        FakeCall(request = request).call
+    }
+
+    private fun service(): Service {
+        return msNet({ request ->
+            newCalls.incrementAndGet()
+            newCall(request)
+        }) {
+            dispatchExecutor { dispatched.add(it) }
+        }.create(Service::class.java)
+    }
+
+    private fun runDispatched() {
+        while (dispatched.isNotEmpty()) {
+            dispatched.removeAt(0).run()
+        }
+    }
+
+    @Test
+    fun requestIsBuiltOnTheDispatchExecutor() {
+        val fake = FakeCall()
+        newCall = { fake.call }
+        val call = service().get("a")
+        val callback = RecordingCallback()
+        call.enqueue(callback)
+        assertEquals(0, newCalls.get())
+        assertEquals(1, dispatched.size)
+
+        runDispatched()
+        assertEquals(1, newCalls.get())
+        fake.awaitStarted().respond(rawResponse(200))
+        assertEquals(200, (callback.take() as Response<*>).code())
+    }
+
+    @Test
+    fun requestFailureReachesOnFailure() {
+        val call = service().get("..")
+        val callback = RecordingCallback()
+        call.enqueue(callback)
+        runDispatched()
+
+        val failure = callback.takeFailure()
+        assertTrue(failure is IllegalArgumentException)
+        assertEquals(
+            "@Path parameters shouldn't perform path traversal ('.' or '..'): ..",
+            failure.message
+        )
+        assertEquals(0, newCalls.get())
+        // The request is not built again.
+        assertSame(failure, assertThrows(IllegalArgumentException::class.java) { call.request() })
+    }
+
+    @Test
+    fun callCreationFailureReachesOnFailure() {
+        val engineShutDown = IllegalStateException("Engine shut down")
+        newCall = { throw engineShutDown }
+        val callback = RecordingCallback()
+        service().get("a").enqueue(callback)
+        runDispatched()
+
+        assertSame(engineShutDown, callback.takeFailure())
+    }
+
+    @Test
+    fun canceledCallBuildsNothing() {
+        val call = service().get("..")
+        call.cancel()
+        val callback = RecordingCallback()
+        call.enqueue(callback)
+        runDispatched()
+
+        val failure = callback.takeFailure()
+        assertTrue(failure is IOException)
+        assertEquals("Canceled", failure.message)
+        assertEquals(0, newCalls.get())
+    }
+
+    @Test
+    fun requestBuiltEarlierIsNotDispatched() {
+        val fake = FakeCall()
+        newCall = { fake.call }
+        val call = service().get("a")
+        assertEquals("https://a.example/a", call.request().url.toString())
+
+        call.enqueue(RecordingCallback())
+        // Nothing left to build off the calling thread.
+        assertTrue(dispatched.isEmpty())
+        fake.awaitStarted()
+        assertEquals(1, newCalls.get())
+    }
+}
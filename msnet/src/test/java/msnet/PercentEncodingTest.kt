@@ -0,0 +1,151 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import okio.Buffer
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class PercentEncodingTest {
+    @Test
+    fun everyAsciiCharacter() {
+        for (c in 0 until 0x80) {
+            assertParity(c.toChar().toString())
+            assertParity("a${c.toChar()}b")
+        }
+    }
+
+    @Test
+    fun percentAndPlus() {
+        assertParity("%")
+        assertParity("%25")
+        assertParity("%2e%2E")
+        assertParity("100%")
+        assertParity("a+b")
+        assertParity("+%+")
+    }
+
+    @Test
+    fun multiByteCharacters() {
+        assertParity("é")
+        assertParity("日本語")
+        assertParity("a\u07ffb\u0800c\uffff")
+        assertParity("\ud83d\ude00")
+        assertParity("emoji \ud83d\ude00 and text")
+    }
+
+    @Test
+    fun unpairedSurrogates() {
+        assertParity("\ud83d")
+        assertParity("\ude00")
+        assertParity("a\ud83db")
+        assertParity("a\ude00\ud83d")
+    }
+
+    @Test
+    fun encodedValuesDropTabsAndLineBreaks() {
+        assertEquals("ab", encode("a\tb\r\n", alreadyEncoded = true))
+        assertParity("a\tb\r\n\u000c")
+    }
+
+    private fun assertParity(input: String) {
+        for (alreadyEncoded in listOf(false, true)) {
+            assertEquals(
+                "'$input', alreadyEncoded=$alreadyEncoded",
+                LegacyPathEncoding.canonicalizeForPath(input, alreadyEncoded),
+                encode(input, alreadyEncoded)
+            )
+        }
+    }
+
+    private fun encode(input: String, alreadyEncoded: Boolean): String {
+        val out = StringBuilder()
+        val encodeSet = if (alreadyEncoded) {
+            PercentEncoding.PATH_SEGMENT_ENCODED
+        } else {
+            PercentEncoding.PATH_SEGMENT
+        }
+        PercentEncoding.encode(out, input, encodeSet, alreadyEncoded)
+        return out.toString()
+    }
+}
+
+/** The path encoding [RequestBuilder] used before [PercentEncoding], kept as a reference. */
+internal object LegacyPathEncoding {
+    private val HEX_DIGITS = "0123456789ABCDEF".toCharArray()
+    private const val PATH_SEGMENT_ALWAYS_ENCODE_SET = " \"<>^`{}|\\?#"
+
+    fun canonicalizeForPath(input: String, alreadyEncoded: Boolean): String {
+        var i = 0
+        while (i < input.length) {
+            val codePoint = input.codePointAt(i)
+            if (mustEncode(codePoint, alreadyEncoded)) {
+                // Slow path: the character at i requires encoding!
+                val out = Buffer()
+                out.writeUtf8(input, 0, i)
+                canonicalizeForPath(out, input, i, alreadyEncoded)
+                return out.readUtf8()
+            }
+            i += Character.charCount(codePoint)
+        }
+
+        // Fast path: no characters required encoding.
+        return input
+    }
+
+    private fun canonicalizeForPath(out: Buffer, input: String, pos: Int, alreadyEncoded: Boolean) {
+        var utf8Buffer: Buffer? = null // Lazily allocated.
+        var i = pos
+        while (i < input.length) {
+            val codePoint = input.codePointAt(i)
+            if (alreadyEncoded &&
+                (codePoint == '\t'.code || codePoint == '\n'.code ||
+                        codePoint == '\u000c'.code || codePoint == '\r'.code)
+            ) {
+                // Skip this character.
+            } else if (mustEncode(codePoint, alreadyEncoded)) {
+                // Percent encode this character.
+                val buffer = utf8Buffer ?: Buffer().also { utf8Buffer = it }
+                buffer.writeUtf8CodePoint(codePoint)
+                while (!buffer.exhausted()) {
+                    val b = buffer.readByte().toInt() and 0xff
+                    out.writeByte('%'.code)
+                    out.writeByte(HEX_DIGITS[(b shr 4) and 0xf].code)
+                    out.writeByte(HEX_DIGITS[b and 0xf].code)
+                }
+            } else {
+                // This character doesn't need encoding. Just copy it over.
+                out.writeUtf8CodePoint(codePoint)
+            }
+            i += Character.charCount(codePoint)
+        }
+    }
+
+    private fun mustEncode(codePoint: Int, alreadyEncoded: Boolean): Boolean {
+        return codePoint < 0x20 ||
+                codePoint >= 0x7f ||
+                PATH_SEGMENT_ALWAYS_ENCODE_SET.indexOf(codePoint.toChar()) != -1 ||
+                (!alreadyEncoded && (codePoint == '/'.code || codePoint == '%'.code))
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import msnet.annotation.GET
+import msnet.annotation.RateLimit
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertThrows
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.IOException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class RateLimiterTest {
+    interface Service {
+        @RateLimit(permits = 5)
+        @GET("/")
+        fun fivePerSecond(): Call<Unit>
+
+        @RateLimit(permits = 10, per = 100L, unit = TimeUnit.MILLISECONDS)
+        @GET("/")
+        fun tenPer100Millis(): Call<Unit>
+
+        @RateLimit(permits = 2, per = 1L, unit = TimeUnit.MINUTES, failFast = true)
+        @GET("/")
+        fun twoPerMinuteFailFast(): Call<Unit>
+
+        @RateLimit(permits = 1, per = 200L, unit = TimeUnit.MILLISECONDS)
+        @GET("/")
+        fun onePer200Millis(): Call<Unit>
+    }
+
+    private fun rateLimiter(name: String): RateLimiter {
+        val method = Service::class.java.getMethod(name)
+        return RateLimiter(method.getAnnotation(RateLimit::class.java)!!)
+    }
+
+    @Test
+    fun burstOfOnePeriodThenWaits() {
+        val rateLimiter = rateLimiter("fivePerSecond")
+        repeat(5) {
+            assertEquals(0L, rateLimiter.reserve())
+        }
+        // Each permit over the burst waits one more interval of 200ms.
+        assertWaitMillis(200L, rateLimiter.reserve())
+        assertWaitMillis(400L, rateLimiter.reserve())
+    }
+
+    @Test
+    fun refillsOverAPeriod() {
+        val rateLimiter = rateLimiter("tenPer100Millis")
+        repeat(10) { rateLimiter.reserve() }
+        assertTrue(rateLimiter.reserve() > 0L)
+
+        Thread.sleep(150L)
+        repeat(10) {
+            assertEquals(0L, rateLimiter.reserve())
+        }
+    }
+
+    @Test
+    fun failFastDoesNotReserve() {
+        val rateLimiter = rateLimiter("twoPerMinuteFailFast")
+        assertEquals(0L, rateLimiter.reserve())
+        assertEquals(0L, rateLimiter.reserve())
+        assertEquals(-1L, rateLimiter.reserve())
+        assertEquals(-1L, rateLimiter.reserve())
+    }
+
+    @Test
+    fun callOverFailFastLimitIsNotSent() {
+        val calls = AtomicInteger()
+        val service = service(calls)
+        assertEquals(200, service.twoPerMinuteFailFast().execute().code())
+        assertEquals(200, service.twoPerMinuteFailFast().execute().code())
+
+        val e = assertThrows(RateLimitExceededException::class.java) {
+            service.twoPerMinuteFailFast().execute()
+        }
+        assertEquals("Rate limit of Service.twoPerMinuteFailFast exceeded", e.message)
+        assertEquals(2, calls.get())
+    }
+
+    @Test
+    fun callOverLimitWaits() {
+        val calls = AtomicInteger()
+        val service = service(calls)
+        service.onePer200Millis().execute()
+
+        val startNanos = System.nanoTime()
+        assertEquals(200, service.onePer200Millis().execute().code())
+        val tookMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)
+        assertTrue("took $tookMillis ms", tookMillis >= 150L)
+        assertEquals(2, calls.get())
+    }
+
+    @Test
+    fun refundGivesBackAPermit() {
+        val rateLimiter = rateLimiter("fivePerSecond")
+        repeat(5) { rateLimiter.reserve() }
+        assertWaitMillis(200L, rateLimiter.reserve())
+
+        rateLimiter.refund()
+        assertWaitMillis(200L, rateLimiter.reserve())
+    }
+
+    @Test
+    fun refundOfAFullBucketDoesNothing() {
+        val rateLimiter = rateLimiter("fivePerSecond")
+        rateLimiter.refund()
+        repeat(5) {
+            assertEquals(0L, rateLimiter.reserve())
+        }
+        assertWaitMillis(200L, rateLimiter.reserve())
+    }
+
+    @Test
+    fun callCanceledWhileWaitingGivesBackItsPermit() {
+        val calls = AtomicInteger()
+        val service = service(calls)
+        service.onePer200Millis().execute()
+
+        val canceled = service.onePer200Millis()
+        Thread {
+            Thread.sleep(50L)
+            canceled.cancel()
+        }.start()
+        val e = assertThrows(IOException::class.java) { canceled.execute() }
+        assertEquals("Canceled", e.message)
+
+        // Waits for the permit of the first call only, not for the one of the canceled call.
+        val startNanos = System.nanoTime()
+        assertEquals(200, service.onePer200Millis().execute().code())
+        val tookMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)
+        assertTrue("took $tookMillis ms", tookMillis < 300L)
+        assertEquals(2, calls.get())
+    }
+
+    private fun assertWaitMillis(expectedMillis: Long, waitNanos: Long) {
+        val waitMillis = TimeUnit.NANOSECONDS.toMillis(waitNanos)
+        // Less the time elapsed since the bucket was created.
+        assertTrue("waits $waitMillis ms", waitMillis in expectedMillis - 50L..expectedMillis)
+    }
+
+    private fun service(calls: AtomicInteger): Service {
+        val msNet = msNet({
+            calls.incrementAndGet()
+            FakeCall().apply { onExecute = { rawResponse(200) } }.call
+        })
+        return msNet.create(Service::class.java)
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertThrows
+import org.junit.Test
+import java.util.regex.Pattern
+
+class RelativeUrlTemplateTest {
+    @Test
+    fun literalOnlyUrlsAreNotChecked() {
+        assertParity("/a/b")
+        assertParity("/a/../b")
+        assertParity("./a")
+        assertParity("/a/%2e%2E/b")
+        assertEquals("/a/../b", expand("/a/../b"))
+    }
+
+    @Test
+    fun dotSegmentValues() {
+        for (value in listOf(".", "..", "%2e", "%2E", "%2e%2E", ".%2e", "...", "a..", "..a", "")) {
+            for (url in listOf("/a/{id}/b", "{id}", "{id}/b", "/a/{id}", "/a/.{id}/b", "/a/x{id}")) {
+                assertParity(url, "id" to value)
+            }
+        }
+    }
+
+    @Test
+    fun encodedValuesCanSpanSegments() {
+        assertParity("/a/{path}", "path" to "b/../c", encoded = true)
+        assertParity("/a/{path}", "path" to "b/./c", encoded = true)
+        assertParity("/a/{path}", "path" to "b/%2e%2e/c", encoded = true)
+        assertParity("/a/{path}", "path" to "b/.../c", encoded = true)
+        assertParity("/a/{path}", "path" to "b/../c")
+    }
+
+    @Test
+    fun repeatedNames() {
+        assertParity("/{id}/{id}", "id" to "..")
+        assertParity("/{id}/x/{id}", "id" to "a.b")
+        assertEquals("/7/x/7", expand("/{id}/x/{id}", "id" to "7"))
+    }
+
+    @Test
+    fun adjacentPlaceholders() {
+        assertParity("/{a}{b}/c", "a" to ".", "b" to ".")
+        assertParity("/{a}{b}/c", "a" to "%2e", "b" to ".")
+        assertParity("/{a}{b}/c", "a" to ".", "b" to "")
+        assertParity("/{a}{b}/c", "a" to "x", "b" to "..")
+        assertParity("/{a}{b}", "a" to "", "b" to "..")
+        assertEquals("/12/c", expand("/{a}{b}/c", "a" to "1", "b" to "2"))
+    }
+
+    @Test
+    fun dotLiteralsNextToParameters() {
+        // Checked on the whole URL as before, even though the value has no dot.
+        assertParity("/a/../{id}", "id" to "b")
+        assertParity("/a/.{id}/b", "id" to "")
+        assertParity("/a/{id}./b", "id" to "")
+        assertParity("/v1.0/{id}", "id" to "b")
+        assertParity("/files/{name}.json", "name" to "a")
+    }
+
+    @Test
+    fun traversalMessageNamesTheValue() {
+        val e = assertThrows(IllegalArgumentException::class.java) {
+            expand("/a/{id}/b", "id" to "%2E.", encoded = true)
+        }
+        assertEquals("@Path parameters shouldn't perform path traversal ('.' or '..'): %2E.", e.message)
+    }
+
+    private fun assertParity(url: String, vararg params: Pair<String, String>, encoded: Boolean = false) {
+        val expected = runCatching { legacyExpand(url, *params, encoded = encoded) }
+        val actual = runCatching { expand(url, *params, encoded = encoded) }
+        val description = "$url ${params.toList()} encoded=$encoded"
+        assertEquals(description, expected.getOrNull(), actual.getOrNull())
+        assertEquals(
+            description,
+            expected.exceptionOrNull()?.javaClass,
+            actual.exceptionOrNull()?.javaClass
+        )
+        if (params.size <= 1) {
+            assertEquals(
+                description,
+                expected.exceptionOrNull()?.message,
+                actual.exceptionOrNull()?.message
+            )
+        }
+    }
+
+    private fun expand(url: String, vararg params: Pair<String, String>, encoded: Boolean = false): String {
+        val template = RelativeUrlTemplate.compile(url, PARAM_URL_REGEX)
+        val values = arrayOfNulls<String>(template.parameterCount())
+        val encodedValues = BooleanArray(template.parameterCount())
+        for ((name, value) in params) {
+            val index = template.indexOf(name)
+            values[index] = value
+            encodedValues[index] = encoded
+        }
+        return template.expand(values, encodedValues)
+    }
+
+    /** How [RequestBuilder] filled path parameters before [RelativeUrlTemplate], one at a time. */
+    private fun legacyExpand(url: String, vararg params: Pair<String, String>, encoded: Boolean = false): String {
+        var relativeUrl = url
+        for ((name, value) in params) {
+            val replacement = LegacyPathEncoding.canonicalizeForPath(value, encoded)
+            relativeUrl = relativeUrl.replace("{$name}", replacement)
+            if (PATH_TRAVERSAL.matcher(relativeUrl).matches()) {
+                throw IllegalArgumentException(
+                    "@Path parameters shouldn't perform path traversal ('.' or '..'): $value"
+                )
+            }
+        }
+        return relativeUrl
+    }
+
+    private companion object {
+        val PARAM_URL_REGEX: Pattern = Pattern.compile("\\{([a-zA-Z][a-zA-Z0-9_-]*)\\}")
+        val PATH_TRAVERSAL: Pattern = Pattern.compile("(.*/)?(\\.|%2e|%2E){1,2}(/.*)?")
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import msnet.annotation.GET
+import msnet.annotation.Streaming
+import okcronet.http.Request
+import okcronet.http.ResponseBody
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Test
+import java.lang.reflect.Type
+import java.util.concurrent.atomic.AtomicInteger
+
+class ResponseCacheTest {
+    interface Service {
+        @GET("/a")
+        fun a(): Call<Text>
+
+        @Streaming
+        @GET("/a")
+        fun streamed(): Call<Text>
+    }
+
+    class Text(val value: String)
+
+    /** Converts bodies to [Text], counting the conversions. */
+    private class TextConverterFactory : Converter.Factory() {
+        val conversions = AtomicInteger()
+
+        override fun responseBodyConverter(
+            type: Type,
+            annotations: Array<Annotation>,
+            msNet: MSNet
+        ): Converter<ResponseBody?, *>? {
+            if (type != Text::class.java) return null
+            return object : Converter<ResponseBody?, Text> {
+                override fun convert(value: ResponseBody): Text {
+                    conversions.incrementAndGet()
+                    return Text(value.source().readUtf8())
+                }
+            }
+        }
+    }
+
+    private val cache = ResponseCache(maxEntries = 10, maxSize = 1024L)
+    private val converterFactory = TextConverterFactory()
+    private val requests = ArrayList<Request>()
+    private val responses = ArrayDeque<okcronet.http.Response>()
+
+    private fun service(factory: Converter.Factory = converterFactory): Service {
+        return msNet({ request ->
+            requests.add(request)
+            FakeCall(request = request).apply { onExecute = { responses.removeFirst() } }.call
+        }) {
+            addConverterFactory(factory)
+            responseCache(cache)
+        }.create(Service::class.java)
+    }
+
+    private fun enqueue(code: Int, vararg headers: Pair<String, String>, body: String = "") {
+        responses.addLast(rawResponse(code, headers.toList(), body.toResponseBody()))
+    }
+
+    @Test
+    fun freshHitReusesTheConvertedBody() {
+        val service = service()
+        enqueue(200, "Cache-Control" to "max-age=60", body = "hello")
+
+        val first = service.a().execute().body()!!
+        val second = service.a().execute().body()!!
+        assertEquals("hello", first.value)
+        assertSame(first, second)
+        assertEquals(1, requests.size)
+        assertEquals(1, converterFactory.conversions.get())
+        assertEquals(1, cache.hitCount())
+    }
+
+    @Test
+    fun otherConverterConvertsTheBytesAgain() {
+        enqueue(200, "Cache-Control" to "max-age=60", body = "hello")
+        val first = service().a().execute().body()!!
+
+        val other = TextConverterFactory()
+        val second = service(other).a().execute().body()!!
+        assertEquals("hello", second.value)
+        assertNotSame(first, second)
+        assertEquals(1, requests.size)
+        assertEquals(1, other.conversions.get())
+    }
+
+    @Test
+    fun ageShortensFreshness() {
+        val service = service()
+        enqueue(200, "Cache-Control" to "max-age=60", "Age" to "60", "ETag" to "\"v1\"")
+        enqueue(200, "Cache-Control" to "max-age=60")
+
+        service.a().execute()
+        service.a().execute()
+        assertEquals(2, requests.size)
+        assertEquals("\"v1\"", requests[1].headers["If-None-Match"])
+    }
+
+    @Test
+    fun notModifiedRefreshesValidatorsAndHeaders() {
+        val service = service()
+        enqueue(200, "ETag" to "\"v1\"", "X-Version" to "1", body = "hello")
+        enqueue(304, "ETag" to "\"v2\"", "X-Version" to "2", "Content-Length" to "0")
+        enqueue(304, "Cache-Control" to "max-age=60")
+
+        val first = service.a().execute()
+        val revalidated = service.a().execute()
+        assertSame(first.body(), revalidated.body())
+        assertEquals(listOf("2"), revalidated.allHeaders["X-Version"])
+        assertNull(revalidated.allHeaders["Content-Length"])
+        assertEquals("\"v1\"", requests[1].headers["If-None-Match"])
+
+        service.a().execute()
+        assertEquals("\"v2\"", requests[2].headers["If-None-Match"])
+        assertEquals(2, cache.conditionalHitCount())
+
+        // The last 304 made the entry fresh.
+        service.a().execute()
+        assertEquals(3, requests.size)
+        assertEquals(1, converterFactory.conversions.get())
+    }
+
+    @Test
+    fun streamingMethodsBypassTheCache() {
+        val service = service()
+        enqueue(200, "Cache-Control" to "max-age=60", body = "hello")
+        enqueue(200, "Cache-Control" to "max-age=60", body = "hello")
+
+        service.streamed().execute()
+        service.streamed().execute()
+        assertEquals(2, requests.size)
+        assertEquals(0, cache.entryCount())
+    }
+}
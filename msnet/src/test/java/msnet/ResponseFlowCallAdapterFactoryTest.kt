@@ -0,0 +1,64 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import kotlinx.coroutines.flow.Flow
+import msnet.annotation.GET
+import org.junit.Assert.assertThrows
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class ResponseFlowCallAdapterFactoryTest {
+    interface Service {
+        @GET("/")
+        fun body(): Flow<String>
+
+        @GET("/")
+        fun list(): Flow<List<String>>
+
+        @GET("/")
+        fun response(): Flow<Response<Unit>>
+    }
+
+    private val service = msNet({ FakeCall().call }).create(Service::class.java)
+
+    @Test
+    fun flowOfBodyIsRejected() {
+        val e = assertThrows(IllegalArgumentException::class.java) { service.body() }
+        assertTrue(e.message!!, e.message!!.startsWith("Unable to create call adapter"))
+        assertTrue(e.cause is IllegalArgumentException)
+    }
+
+    @Test
+    fun flowOfOtherTypeIsRejected() {
+        val e = assertThrows(IllegalArgumentException::class.java) { service.list() }
+        assertTrue(e.cause is IllegalArgumentException)
+    }
+
+    @Test
+    fun flowOfResponseIsAdapted() {
+        // The flow is cold, creating it sends nothing.
+        service.response()
+    }
+}
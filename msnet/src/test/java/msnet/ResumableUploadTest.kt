@@ -0,0 +1,298 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import okcronet.http.HttpUrl.Companion.toHttpUrl
+import okcronet.http.RequestBody
+import okio.Buffer
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertThrows
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.mockito.Mockito.RETURNS_DEFAULTS
+import org.mockito.Mockito.mock
+import org.mockito.stubbing.Answer
+import java.io.File
+import java.io.IOException
+import java.net.ProtocolException
+import java.util.Collections
+import java.util.Random
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class ResumableUploadTest {
+    @get:Rule
+    val temporaryFolder = TemporaryFolder()
+
+    private val executor = Executors.newCachedThreadPool()
+    private val server = TusServer()
+    private val content = ByteArray(10_000).also { Random(0L).nextBytes(it) }
+    private lateinit var file: File
+    private lateinit var stateFile: File
+
+    @Before
+    fun setUp() {
+        file = temporaryFolder.newFile("file.bin").apply { writeBytes(content) }
+        stateFile = temporaryFolder.root.resolve("file.bin.tus")
+    }
+
+    @After
+    fun tearDown() {
+        executor.shutdownNow()
+    }
+
+    private fun upload(
+        parallelism: Int = 1,
+        metadata: Map<String, String> = emptyMap()
+    ): ResumableUpload {
+        return ResumableUpload(
+            server,
+            "https://a.example/files/".toHttpUrl(),
+            file,
+            stateFile,
+            1_000L,
+            parallelism,
+            metadata,
+            null
+        ).also { it.start(executor) }
+    }
+
+    @Test
+    fun uploadsInChunks() {
+        val upload = upload(metadata = mapOf("filename" to "file.bin"))
+        val url = upload.await()
+
+        assertEquals("https://a.example/files/1", url)
+        assertArrayEquals(content, server.data(url))
+        assertEquals((0L until 10_000L step 1_000L).toList(), server.patches)
+        assertEquals(10_000L, upload.bytesUploaded)
+        assertEquals(
+            mapOf(
+                "Tus-Resumable" to "1.0.0",
+                "Upload-Length" to "10000",
+                "Upload-Metadata" to "filename ZmlsZS5iaW4="
+            ),
+            server.creates.single()
+        )
+        assertFalse(stateFile.exists())
+    }
+
+    @Test
+    fun parallelPartsAreConcatenated() {
+        val url = upload(parallelism = 3).await()
+
+        assertArrayEquals(content, server.data(url))
+        // Whole chunks per part: 4000, 4000 and 2000 bytes.
+        val partials = server.creates.filter { it["Upload-Concat"] == "partial" }
+        assertEquals(listOf("2000", "4000", "4000"), partials.map { it["Upload-Length"] }.sorted())
+        assertTrue(server.creates.last().getValue("Upload-Concat").startsWith("final;"))
+        assertEquals(10, server.patches.size)
+        assertFalse(stateFile.exists())
+    }
+
+    @Test
+    fun resumesFromStateFileAfterRestart() {
+        server.patchAnswer = { offset, _ -> if (offset == 5_000L) errorResponse(400) else null }
+        val failed = upload()
+        val e = assertThrows(IOException::class.java) { failed.await() }
+        assertTrue(e.message, e.message!!.startsWith("HTTP 400"))
+        assertTrue(stateFile.exists())
+
+        // A new upload of the same file, as after the process was restarted.
+        server.patchAnswer = { _, _ -> null }
+        server.patches.clear()
+        val url = upload().await()
+
+        assertEquals("https://a.example/files/1", url)
+        assertArrayEquals(content, server.data(url))
+        assertEquals((5_000L until 10_000L step 1_000L).toList(), server.patches)
+        assertEquals(1, server.creates.size)
+        assertFalse(stateFile.exists())
+    }
+
+    @Test
+    fun changedFileStartsOver() {
+        server.patchAnswer = { offset, _ -> if (offset == 5_000L) errorResponse(400) else null }
+        assertThrows(IOException::class.java) { upload().await() }
+
+        content.reverse()
+        file.writeBytes(content)
+        file.setLastModified(file.lastModified() - 60_000L)
+        server.patchAnswer = { _, _ -> null }
+        server.patches.clear()
+        val url = upload().await()
+
+        assertEquals("https://a.example/files/2", url)
+        assertArrayEquals(content, server.data(url))
+        assertEquals(0L, server.patches.first())
+    }
+
+    @Test
+    fun uploadForgottenByServerIsCreatedAgain() {
+        server.patchAnswer = { offset, _ -> if (offset == 5_000L) errorResponse(400) else null }
+        assertThrows(IOException::class.java) { upload().await() }
+
+        server.forgetAll()
+        server.patchAnswer = { _, _ -> null }
+        server.patches.clear()
+        val url = upload().await()
+
+        assertArrayEquals(content, server.data(url))
+        assertEquals((0L until 10_000L step 1_000L).toList(), server.patches)
+    }
+
+    @Test
+    fun conflictAsksTheServerForItsOffset() {
+        var conflicted = false
+        server.patchAnswer = { offset, data ->
+            if (offset == 0L && !conflicted) {
+                // The server took the chunk, but the response was lost.
+                conflicted = true
+                data.write(content, 0, 1_000)
+                errorResponse(409)
+            } else {
+                null
+            }
+        }
+        val url = upload().await()
+
+        assertArrayEquals(content, server.data(url))
+        assertEquals(listOf(0L) + (1_000L until 10_000L step 1_000L), server.patches)
+    }
+
+    @Test
+    fun offsetThatDoesNotAdvanceIsNotRetried() {
+        server.patchAnswer = { offset, _ ->
+            successResponse(204, "Upload-Offset" to offset.toString())
+        }
+
+        assertThrows(ProtocolException::class.java) { upload().await() }
+        assertEquals(listOf(0L), server.patches)
+    }
+
+    @Test
+    fun cancelEndsTheWaitBeforeRetrying() {
+        server.patchAnswer = { _, _ -> errorResponse(503) }
+        val upload = upload()
+        while (server.patches.isEmpty()) Thread.sleep(5L)
+        // Now waiting a second before the next attempt.
+        Thread.sleep(100L)
+
+        upload.cancel()
+        assertTrue(upload.await(500L, TimeUnit.MILLISECONDS))
+        assertEquals("Canceled", assertThrows(IOException::class.java) { upload.await() }.message)
+        assertEquals(1, server.patches.size)
+        // Kept to resume later.
+        assertTrue(stateFile.exists())
+    }
+
+    @Test
+    fun serviceMethodsAreValid() {
+        val msNet = msNet({ FakeCall().call }) { validateEagerly(true) }
+        msNet.create(ResumableUpload.Service::class.java)
+    }
+
+    private fun <T> successResponse(code: Int, vararg headers: Pair<String, String>): Response<T> {
+        return Response.success(null, rawResponse(code, headers.toList()))
+    }
+
+    private fun <T> errorResponse(code: Int): Response<T> {
+        return Response.error("".toResponseBody(), rawResponse(code))
+    }
+
+    /** A tus server keeping the uploads in memory. */
+    private inner class TusServer : ResumableUpload.Service {
+        private val uploads = HashMap<String, Buffer>() // Guarded by this.
+        private var created = 0
+        val creates: MutableList<Map<String, String>> = Collections.synchronizedList(ArrayList())
+        val patches: MutableList<Long> = Collections.synchronizedList(ArrayList())
+
+        /** Answers a PATCH at `offset` of the upload holding `data`, null to answer it as usual. */
+        @Volatile
+        var patchAnswer: (offset: Long, data: Buffer) -> Response<Unit>? = { _, _ -> null }
+
+        @Synchronized
+        fun data(url: String): ByteArray = uploads.getValue(url).snapshot().toByteArray()
+
+        @Synchronized
+        fun forgetAll() {
+            uploads.clear()
+        }
+
+        override fun create(url: String, headers: Map<String, String>): Call<Unit> = call {
+            synchronized(this) {
+                creates += headers
+                val data = Buffer()
+                headers["Upload-Concat"]?.takeIf { it.startsWith("final;") }?.let { concat ->
+                    for (partUrl in concat.removePrefix("final;").split(" ")) {
+                        data.write(uploads.getValue(partUrl).snapshot())
+                    }
+                }
+                val location = "/files/${++created}"
+                uploads["https://a.example$location"] = data
+                successResponse(201, "Location" to location)
+            }
+        }
+
+        override fun offset(url: String, version: String): Call<Void> = call {
+            synchronized(this) {
+                val data = uploads[url] ?: return@call errorResponse(404)
+                successResponse(200, "Upload-Offset" to data.size.toString())
+            }
+        }
+
+        override fun patch(
+            url: String,
+            version: String,
+            offset: Long,
+            body: RequestBody
+        ): Call<Unit> = call {
+            synchronized(this) {
+                patches += offset
+                val data = uploads[url] ?: return@call errorResponse(404)
+                patchAnswer(offset, data)?.let { return@call it }
+                if (offset != data.size) return@call errorResponse(409)
+                body.writeTo(data)
+                successResponse(204, "Upload-Offset" to data.size.toString())
+            }
+        }
+
+        @Suppress("UNCHECKED_CAST")
+        private fun <T> call(execute: () -> Response<T>): Call<T> {
+            return mock(Call::class.java, Answer<Any?> { invocation ->
+                if (invocation.method.name == "execute") {
+                    execute()
+                } else {
+                    RETURNS_DEFAULTS.answer(invocation)
+                }
+            }) as Call<T>
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import msnet.annotation.GET
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.IOException
+import java.util.concurrent.atomic.AtomicInteger
+
+class RetryBudgetTest {
+    interface Service {
+        @GET("/")
+        fun get(): Call<Unit>
+    }
+
+    @Test
+    fun retriesUntilHalfTheTokensAreSpent() {
+        val budget = RetryBudget(maxTokens = 10.0, tokenRatio = 0.1)
+        repeat(4) {
+            assertTrue(budget.tryRetry())
+        }
+        assertFalse(budget.tryRetry())
+        assertFalse(budget.tryRetry())
+    }
+
+    @Test
+    fun successesRefillTheBudget() {
+        val budget = RetryBudget(maxTokens = 10.0, tokenRatio = 0.1)
+        repeat(5) { budget.tryRetry() }
+        assertFalse(budget.tryRetry())
+
+        // Back to 6 tokens.
+        repeat(20) { budget.onSuccess() }
+        assertTrue(budget.tryRetry())
+        assertFalse(budget.tryRetry())
+    }
+
+    @Test
+    fun refillStopsAtMaxTokens() {
+        val budget = RetryBudget(maxTokens = 10.0, tokenRatio = 0.1)
+        repeat(1000) { budget.onSuccess() }
+        repeat(4) {
+            assertTrue(budget.tryRetry())
+        }
+        assertFalse(budget.tryRetry())
+    }
+
+    @Test
+    fun callRetriesRetryableStatus() {
+        val attempts = AtomicInteger()
+        val service = service(attempts, maxTokens = 10) { attempt ->
+            rawResponse(if (attempt < 3) 503 else 200)
+        }
+
+        val response = service.get().execute()
+        assertEquals(200, response.code())
+        assertEquals(3, attempts.get())
+    }
+
+    @Test
+    fun callRetriesRetryableFailure() {
+        val attempts = AtomicInteger()
+        val service = service(attempts, maxTokens = 10) { attempt ->
+            if (attempt < 2) throw IOException("Connection reset")
+            rawResponse(200)
+        }
+
+        assertEquals(200, service.get().execute().code())
+        assertEquals(2, attempts.get())
+    }
+
+    @Test
+    fun exhaustedBudgetReturnsTheResponse() {
+        val attempts = AtomicInteger()
+        // The second failure leaves half the tokens, which is not enough to retry.
+        val service = service(attempts, maxTokens = 4) { rawResponse(503) }
+
+        assertEquals(503, service.get().execute().code())
+        assertEquals(2, attempts.get())
+    }
+
+    @Test
+    fun budgetIsSharedByCalls() {
+        val attempts = AtomicInteger()
+        val service = service(attempts, maxTokens = 6) { rawResponse(503) }
+
+        assertEquals(503, service.get().execute().code())
+        assertEquals(3, attempts.get())
+        // The first call spent the budget, the second is not retried.
+        assertEquals(503, service.get().execute().code())
+        assertEquals(4, attempts.get())
+    }
+
+    private fun service(
+        attempts: AtomicInteger,
+        maxTokens: Int,
+        respond: (attempt: Int) -> okcronet.http.Response
+    ): Service {
+        val msNet = msNet({
+            FakeCall().apply {
+                onExecute = { respond(attempts.incrementAndGet()) }
+            }.call
+        }) {
+            retryPolicy(
+                RetryPolicy(maxAttempts = 5, initialBackoffMillis = 0L, maxBackoffMillis = 0L)
+            )
+            retryBudget(maxTokens, tokenRatio = 0.1)
+        }
+        return msNet.create(Service::class.java)
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import okcronet.http.HttpUrl.Companion.toHttpUrl
+import okcronet.http.ResponseBody.Companion.asResponseBody
+import okio.Buffer
+import okio.Source
+import okio.Timeout
+import okio.buffer
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertThrows
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.IOException
+import java.net.ProtocolException
+import java.util.Collections
+import java.util.Random
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class SegmentedDownloadTest {
+    @get:Rule
+    val temporaryFolder = TemporaryFolder()
+
+    private val executor = Executors.newCachedThreadPool()
+    private val content = ByteArray(2 * 1024 * 1024).also { Random(0L).nextBytes(it) }
+    private val ranges: MutableList<String> = Collections.synchronizedList(ArrayList())
+    private val calls: MutableList<FakeCall> = Collections.synchronizedList(ArrayList())
+
+    /** Answers a GET from `start`, to `end` inclusive, null to answer it as usual. */
+    @Volatile
+    private var rangeAnswer: (start: Long, end: Long) -> okcronet.http.Response? = { _, _ -> null }
+
+    @Volatile
+    private var acceptRanges = true
+
+    @After
+    fun tearDown() {
+        executor.shutdownNow()
+    }
+
+    private fun download(segmentCount: Int = 4): SegmentedDownload {
+        val callFactory = callFactory<okcronet.Call.Factory> { request ->
+            val fake = FakeCall(request.method, request = request)
+            fake.onExecute = { serve(request) }
+            calls.add(fake)
+            fake.call
+        }
+        val target = temporaryFolder.root.resolve("file.bin")
+        return SegmentedDownload(
+            callFactory,
+            "https://a.example/file.bin".toHttpUrl(),
+            target,
+            segmentCount,
+            null
+        ).also { it.start(executor) }
+    }
+
+    private fun serve(request: okcronet.http.Request): okcronet.http.Response {
+        val headers = ArrayList<Pair<String, String>>()
+        headers += "ETag" to "\"v1\""
+        if (acceptRanges) headers += "Accept-Ranges" to "bytes"
+        if (request.method == "HEAD") {
+            headers += "Content-Length" to content.size.toString()
+            return rawResponse(200, headers)
+        }
+
+        val range = request.headers["Range"]
+            ?: return rawResponse(200, headers, content.toResponseBody())
+        ranges.add(range)
+        val (start, end) = range.removePrefix("bytes=").split("-").map { it.toLong() }
+        rangeAnswer(start, end)?.let { return it }
+        headers += "Content-Range" to "bytes $start-$end/${content.size}"
+        val body = content.copyOfRange(start.toInt(), end.toInt() + 1).toResponseBody()
+        return rawResponse(206, headers, body)
+    }
+
+    @Test
+    fun downloadsRangesConcurrently() {
+        val download = download()
+        val file = download.await()
+
+        assertArrayEquals(content, file.readBytes())
+        assertEquals(content.size.toLong(), download.bytesWritten)
+        assertEquals(content.size.toLong(), download.contentLength)
+        // Four segments of 512 KiB.
+        assertEquals(
+            setOf("bytes=0-524287", "bytes=524288-1048575", "bytes=1048576-1572863",
+                "bytes=1572864-2097151"),
+            ranges.toSet()
+        )
+        assertFalse(temporaryFolder.root.resolve("file.bin.part").exists())
+    }
+
+    @Test
+    fun downloadsOneStreamWithoutRanges() {
+        acceptRanges = false
+        val file = download().await()
+
+        assertArrayEquals(content, file.readBytes())
+        assertTrue(ranges.isEmpty())
+        assertEquals(listOf("HEAD", "GET"), calls.map { it.name })
+    }
+
+    @Test
+    fun failedStreamResumesWhereItStopped() {
+        val failed = CountDownLatch(1)
+        rangeAnswer = { start, end ->
+            if (start == 0L && failed.count > 0L) {
+                failed.countDown()
+                // Breaks after 100000 bytes, the 65536 of the first full buffer are kept.
+                val source = Buffer().write(content, 0, 100_000)
+                val body = FailingSource(source).buffer().asResponseBody(null, end + 1)
+                rawResponse(206, listOf("Content-Range" to "bytes 0-$end/${content.size}"), body)
+            } else {
+                null
+            }
+        }
+        val file = download().await()
+
+        assertArrayEquals(content, file.readBytes())
+        assertTrue(ranges.toString(), "bytes=65536-524287" in ranges)
+    }
+
+    @Test
+    fun wrongStatusFailsTheDownload() {
+        rangeAnswer = { start, _ ->
+            if (start == 524288L) rawResponse(200, body = content.toResponseBody()) else null
+        }
+        val download = download()
+
+        val e = assertThrows(ProtocolException::class.java) { download.await() }
+        assertEquals("Expected HTTP 206 but was 200 for https://a.example/file.bin", e.message)
+        assertFalse(download.target.exists())
+        assertFalse(temporaryFolder.root.resolve("file.bin.part").exists())
+    }
+
+    @Test
+    fun cancelStopsBodiesBeingCopied() {
+        val copying = CountDownLatch(1)
+        rangeAnswer = { start, end ->
+            // A body that never fails on its own, only the copy loop can stop it.
+            val body = SlowSource(start, end, copying).buffer()
+                .asResponseBody(null, end - start + 1)
+            rawResponse(206, listOf("Content-Range" to "bytes $start-$end/${content.size}"), body)
+        }
+        val download = download()
+        assertTrue(copying.await(5, TimeUnit.SECONDS))
+
+        download.cancel()
+        assertTrue(download.await(5, TimeUnit.SECONDS))
+        assertEquals("Canceled", assertThrows(IOException::class.java) { download.await() }.message)
+        assertTrue(calls.filter { it.name == "GET" }.all { it.canceled })
+        assertFalse(download.target.exists())
+        assertFalse(temporaryFolder.root.resolve("file.bin.part").exists())
+    }
+
+    /** Hands out `delegate`, then fails as a reset stream would. */
+    private class FailingSource(private val delegate: Buffer) : Source {
+        override fun read(sink: Buffer, byteCount: Long): Long {
+            if (delegate.exhausted()) throw IOException("Stream reset")
+            return delegate.read(sink, byteCount)
+        }
+
+        override fun timeout() = Timeout.NONE
+
+        override fun close() {
+        }
+    }
+
+    /** Hands out the range 8 KiB at a time, slowly. */
+    private inner class SlowSource(
+        private var position: Long,
+        private val end: Long,
+        private val reading: CountDownLatch
+    ) : Source {
+        override fun read(sink: Buffer, byteCount: Long): Long {
+            if (position > end) return -1L
+            reading.countDown()
+            Thread.sleep(10L)
+            val count = minOf(8192L, byteCount, end + 1 - position).toInt()
+            sink.write(content, position.toInt(), count)
+            position += count
+            return count.toLong()
+        }
+
+        override fun timeout() = Timeout.NONE
+
+        override fun close() {
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import msnet.annotation.Body
+import msnet.annotation.GET
+import okcronet.http.ResponseBody
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertThrows
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.lang.reflect.Type
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
+import kotlin.concurrent.thread
+
+class ServiceMethodCacheTest {
+    interface Service {
+        @GET("/")
+        fun text(): Call<Text>
+
+        @GET("/")
+        fun unit(): Call<Unit>
+
+        @GET("/")
+        fun body(@Body body: Text): Call<Unit>
+    }
+
+    class Text
+
+    /** Blocks the creation of [Text] converters until [release], counting them. */
+    private class BlockingConverterFactory(private val failures: Int = 0) : Converter.Factory() {
+        val created = AtomicInteger()
+        val entered = CountDownLatch(1)
+        val release = CountDownLatch(1)
+
+        override fun responseBodyConverter(
+            type: Type,
+            annotations: Array<Annotation>,
+            msNet: MSNet
+        ): Converter<ResponseBody?, *>? {
+            if (type != Text::class.java) return null
+            val count = created.incrementAndGet()
+            entered.countDown()
+            release.await(5, TimeUnit.SECONDS)
+            if (count <= failures) throw IllegalStateException("Creation $count failed")
+            return object : Converter<ResponseBody?, Text> {
+                override fun convert(value: ResponseBody): Text = Text()
+            }
+        }
+    }
+
+    private fun service(factory: Converter.Factory): Service {
+        return msNet({ FakeCall().call }) {
+            addConverterFactory(factory)
+        }.create(Service::class.java)
+    }
+
+    @Test
+    fun concurrentCallsParseAMethodOnce() {
+        val factory = BlockingConverterFactory()
+        val service = service(factory)
+
+        val first = thread { service.text() }
+        assertTrue(factory.entered.await(5, TimeUnit.SECONDS))
+        val second = thread { service.text() }
+        // Waits for the parse in flight rather than starting its own.
+        Thread.sleep(50L)
+        assertTrue(second.isAlive)
+        factory.release.countDown()
+        first.join()
+        second.join()
+
+        service.text()
+        assertEquals(1, factory.created.get())
+    }
+
+    @Test
+    fun otherMethodsAreNotHeldBack() {
+        val factory = BlockingConverterFactory()
+        val service = service(factory)
+
+        val first = thread { service.text() }
+        assertTrue(factory.entered.await(5, TimeUnit.SECONDS))
+        // Parsed on this thread while text() is still being parsed.
+        service.unit()
+        assertTrue(first.isAlive)
+        factory.release.countDown()
+        first.join()
+    }
+
+    @Test
+    fun failureReachesEveryWaiterAndIsNotCached() {
+        val factory = BlockingConverterFactory(failures = 1)
+        val service = service(factory)
+
+        val firstFailure = AtomicReference<Throwable>()
+        val secondFailure = AtomicReference<Throwable>()
+        val first = thread {
+            firstFailure.set(runCatching { service.text() }.exceptionOrNull())
+        }
+        assertTrue(factory.entered.await(5, TimeUnit.SECONDS))
+        val second = thread {
+            secondFailure.set(runCatching { service.text() }.exceptionOrNull())
+        }
+        Thread.sleep(50L)
+        factory.release.countDown()
+        first.join()
+        second.join()
+
+        val failure = firstFailure.get()
+        assertTrue(failure is IllegalArgumentException)
+        assertEquals("Creation 1 failed", failure.cause?.message)
+        // The waiter gets the error of the parse it waited for.
+        assertSame(failure, secondFailure.get())
+        assertEquals(1, factory.created.get())
+
+        // The next call parses again.
+        service.text()
+        assertEquals(2, factory.created.get())
+    }
+
+    @Test
+    fun invalidMethodThrowsOnEveryCall() {
+        val service = service(BlockingConverterFactory())
+        val first = assertThrows(IllegalArgumentException::class.java) { service.body(Text()) }
+        val second = assertThrows(IllegalArgumentException::class.java) { service.body(Text()) }
+        assertEquals(first.message, second.message)
+    }
+}
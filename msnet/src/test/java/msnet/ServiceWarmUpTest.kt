@@ -0,0 +1,163 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import msnet.annotation.Body
+import msnet.annotation.GET
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertThrows
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.lang.reflect.Method
+import java.util.concurrent.Executor
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+
+class ServiceWarmUpTest {
+    interface Service {
+        @GET("/a")
+        fun a(): Call<Unit>
+
+        @GET("/b")
+        fun b(): Call<Unit>
+
+        @GET("/")
+        fun invalid(@Body body: String): Call<Unit>
+    }
+
+    interface Other {
+        @GET("/c")
+        fun c(): Call<Unit>
+    }
+
+    private val msNet = msNet({ FakeCall().call })
+    private val a = Service::class.java.getMethod("a")
+    private val b = Service::class.java.getMethod("b")
+    private val invalid = Service::class.java.getMethod("invalid", String::class.java)
+    private val c = Other::class.java.getMethod("c")
+
+    /** Records what the listener is told, in order. */
+    private class RecordingListener : ServiceWarmUp.Listener {
+        val parsed = ArrayList<Method>()
+        val errors = HashMap<Method, Throwable?>()
+
+        @Synchronized
+        override fun onMethodParsed(method: Method, tookNanos: Long, error: Throwable?) {
+            assertTrue(tookNanos >= 0L)
+            parsed.add(method)
+            errors[method] = error
+        }
+    }
+
+    @Test
+    fun reportsEveryMethodOfEveryService() {
+        val listener = RecordingListener()
+        val warmUp = msNet.warmUp(
+            Service::class.java,
+            Other::class.java,
+            executor = Executor { it.run() },
+            listener = listener
+        )
+
+        assertTrue(warmUp.isDone)
+        assertTrue(warmUp.await(0L, TimeUnit.SECONDS))
+        assertEquals(setOf(a, b, invalid, c), listener.parsed.toSet())
+        assertEquals(4, listener.parsed.size)
+        assertEquals(setOf(a, b, c), warmUp.parseTimesNanos().keys)
+        assertTrue(warmUp.parseTimesNanos().values.all { it >= 0L })
+        assertNull(listener.errors[a])
+    }
+
+    @Test
+    fun failuresAreReportedNotThrown() {
+        val listener = RecordingListener()
+        val warmUp = msNet.warmUp(
+            Service::class.java,
+            executor = Executor { it.run() },
+            listener = listener
+        )
+
+        val failure = warmUp.failures()[invalid]
+        assertTrue(failure is IllegalArgumentException)
+        assertEquals(failure, listener.errors[invalid])
+        assertEquals(setOf(invalid), warmUp.failures().keys)
+        // Calling the method throws the same error.
+        val e = assertThrows(IllegalArgumentException::class.java) {
+            msNet.create(Service::class.java).invalid("")
+        }
+        assertEquals(failure!!.message, e.message)
+    }
+
+    @Test
+    fun laterWarmUpReportsCachedMethods() {
+        msNet.warmUp(Service::class.java, executor = Executor { it.run() })
+
+        val listener = RecordingListener()
+        val again = msNet.warmUp(
+            Service::class.java,
+            executor = Executor { it.run() },
+            listener = listener
+        )
+        // Parsed methods are looked up, the failed one is parsed and fails again.
+        assertEquals(setOf(a, b), again.parseTimesNanos().keys)
+        assertEquals(setOf(invalid), again.failures().keys)
+        assertEquals(3, listener.parsed.size)
+    }
+
+    @Test
+    fun cancelSkipsMethodsNotStarted() {
+        val tasks = ArrayList<Runnable>()
+        val listener = RecordingListener()
+        val warmUp = msNet.warmUp(
+            Service::class.java,
+            executor = Executor { tasks.add(it) },
+            listener = listener
+        )
+        assertFalse(warmUp.isDone)
+
+        tasks.removeAt(0).run()
+        warmUp.cancel()
+        tasks.forEach { it.run() }
+        assertTrue(warmUp.isDone)
+        assertEquals(1, listener.parsed.size)
+    }
+
+    @Test
+    fun rejectedTaskIsReportedAsFailure() {
+        val rejection = RejectedExecutionException()
+        val warmUp = msNet.warmUp(Other::class.java, executor = Executor { throw rejection })
+
+        assertTrue(warmUp.isDone)
+        assertEquals(rejection, warmUp.failures()[c])
+    }
+
+    @Test
+    fun servicesMustBeInterfaces() {
+        assertThrows(IllegalArgumentException::class.java) {
+            msNet.warmUp(String::class.java, executor = Executor { it.run() })
+        }
+    }
+}
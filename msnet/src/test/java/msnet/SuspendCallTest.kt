@@ -0,0 +1,162 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.MainCoroutineDispatcher
+import kotlinx.coroutines.cancelAndJoin
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withContext
+import msnet.annotation.GET
+import okcronet.http.ResponseBody
+import okcronet.http.ResponseBody.Companion.asResponseBody
+import okio.Buffer
+import okio.ForwardingSource
+import okio.buffer
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.lang.reflect.Type
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
+import kotlin.coroutines.CoroutineContext
+
+class SuspendCallTest {
+    interface Service {
+        @GET("/")
+        suspend fun text(): Text
+    }
+
+    class Text(val value: String, val convertedOn: Thread)
+
+    private class TextConverterFactory : Converter.Factory() {
+        override fun responseBodyConverter(
+            type: Type,
+            annotations: Array<Annotation>,
+            msNet: MSNet
+        ): Converter<ResponseBody?, *>? {
+            if (type != Text::class.java) return null
+            return object : Converter<ResponseBody?, Text> {
+                override fun convert(value: ResponseBody): Text {
+                    return Text(value.source().readUtf8(), Thread.currentThread())
+                }
+            }
+        }
+    }
+
+    /** Counts its dispatches and runs them on the dispatching thread. */
+    private class CountingDispatcher : CoroutineDispatcher() {
+        val dispatches = AtomicInteger()
+
+        override fun dispatch(context: CoroutineContext, block: Runnable) {
+            dispatches.incrementAndGet()
+            block.run()
+        }
+    }
+
+    /** A main dispatcher for the JVM, on a thread of its own. */
+    private class FakeMainDispatcher : MainCoroutineDispatcher() {
+        val executor = Executors.newSingleThreadExecutor()
+
+        override val immediate: MainCoroutineDispatcher
+            get() = this
+
+        override fun dispatch(context: CoroutineContext, block: Runnable) {
+            executor.execute(block)
+        }
+    }
+
+    private val fake = FakeCall()
+    private val dispatchTasks = AtomicInteger()
+    private val conversionDispatcher = CountingDispatcher()
+    private val main = FakeMainDispatcher()
+    private val service = msNet({ fake.call }) {
+        addConverterFactory(TextConverterFactory())
+        dispatchExecutor {
+            dispatchTasks.incrementAndGet()
+            it.run()
+        }
+        conversionDispatcher(conversionDispatcher)
+    }.create(Service::class.java)
+
+    @After
+    fun tearDown() {
+        main.executor.shutdown()
+    }
+
+    private fun respondLater(body: ResponseBody = "hello".toResponseBody()): Thread {
+        return thread { fake.awaitStarted().respond(rawResponse(200, body = body)) }
+    }
+
+    @Test
+    fun otherDispatchersStartAndConvertThemselves() {
+        val responder = respondLater()
+        val text = runBlocking { service.text() }
+        responder.join()
+
+        assertEquals("hello", text.value)
+        assertSame(Thread.currentThread(), text.convertedOn)
+        assertEquals(0, dispatchTasks.get())
+        assertEquals(0, conversionDispatcher.dispatches.get())
+    }
+
+    @Test
+    fun mainDispatcherHopsOffTheMainThread() {
+        val responder = respondLater()
+        val mainThread = main.executor.submit<Thread> { Thread.currentThread() }.get()
+        val text = runBlocking { withContext(main) { service.text() } }
+        responder.join()
+
+        assertEquals("hello", text.value)
+        assertNotSame(mainThread, text.convertedOn)
+        assertSame(responder, text.convertedOn)
+        assertEquals(1, dispatchTasks.get())
+        assertEquals(1, conversionDispatcher.dispatches.get())
+    }
+
+    @Test
+    fun responseOfACanceledCoroutineIsClosed() = runBlocking {
+        val job = launch(Dispatchers.Default) { service.text() }
+        fake.awaitStarted()
+        job.cancelAndJoin()
+        assertTrue(fake.canceled)
+
+        val closed = AtomicBoolean()
+        val source = object : ForwardingSource(Buffer().writeUtf8("hello")) {
+            override fun close() {
+                closed.set(true)
+                super.close()
+            }
+        }
+        fake.respond(rawResponse(200, body = source.buffer().asResponseBody(null, 5L)))
+        assertTrue(closed.get())
+    }
+}
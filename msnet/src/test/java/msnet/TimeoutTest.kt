@@ -0,0 +1,141 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2023 LiMuYang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package msnet
+
+import msnet.annotation.GET
+import msnet.annotation.Timeout
+import okcronet.http.ResponseBody
+import okcronet.http.ResponseBody.Companion.asResponseBody
+import okio.Buffer
+import okio.Source
+import okio.buffer
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertThrows
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.IOException
+import java.io.InterruptedIOException
+import java.net.SocketTimeoutException
+import java.util.concurrent.TimeUnit
+
+class TimeoutTest {
+    interface Service {
+        @Timeout(callMs = 100L)
+        @GET("/")
+        fun call(): Call<Unit>
+
+        @Timeout(connectMs = 100L)
+        @GET("/")
+        fun connect(): Call<Unit>
+
+        @Timeout(readMs = 100L)
+        @GET("/")
+        fun read(): Call<ResponseBody>
+
+        @GET("/")
+        fun none(): Call<Unit>
+
+        @Timeout(callMs = -1L)
+        @GET("/")
+        fun negative(): Call<Unit>
+    }
+
+    private val fake = FakeCall()
+    private val service = msNet({ fake.call }).create(Service::class.java)
+
+    /** Blocks until the call is canceled, as Cronet does for a request that never completes. */
+    private fun awaitCancel() {
+        val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5L)
+        while (!fake.canceled) {
+            if (System.nanoTime() > deadline) throw AssertionError("Not canceled")
+            Thread.sleep(5L)
+        }
+    }
+
+    private fun hangUntilCanceled() {
+        fake.onExecute = {
+            awaitCancel()
+            throw IOException("Canceled")
+        }
+    }
+
+    @Test
+    fun callDeadlineCancelsTheCall() {
+        hangUntilCanceled()
+        val e = assertThrows(InterruptedIOException::class.java) { service.call().execute() }
+        assertEquals(InterruptedIOException::class.java, e.javaClass)
+        assertEquals("timeout", e.message)
+        assertTrue(fake.canceled)
+    }
+
+    @Test
+    fun connectTimeoutFailsTheAttempt() {
+        hangUntilCanceled()
+        val e = assertThrows(SocketTimeoutException::class.java) { service.connect().execute() }
+        assertEquals("Timed out waiting for the response headers", e.message)
+        assertTrue(fake.canceled)
+    }
+
+    @Test
+    fun readTimeoutFailsTheRead() {
+        val hangingSource = object : Source by Buffer() {
+            override fun read(sink: Buffer, byteCount: Long): Long {
+                awaitCancel()
+                throw IOException("Canceled")
+            }
+        }
+        fake.onExecute = {
+            rawResponse(200, body = hangingSource.buffer().asResponseBody(null, -1L))
+        }
+
+        val e = assertThrows(InterruptedIOException::class.java) { service.read().execute() }
+        assertEquals("timeout", e.message)
+        assertTrue(fake.canceled)
+    }
+
+    @Test
+    fun callDeadlineCanBeSetPerCall() {
+        hangUntilCanceled()
+        val call = service.none()
+        call.timeout()!!.timeout(100L, TimeUnit.MILLISECONDS)
+
+        val e = assertThrows(InterruptedIOException::class.java) { call.execute() }
+        assertEquals("timeout", e.message)
+    }
+
+    @Test
+    fun noTimeoutByDefault() {
+        fake.onExecute = {
+            Thread.sleep(150L)
+            rawResponse(200)
+        }
+        assertEquals(200, service.none().execute().code())
+    }
+
+    @Test
+    fun negativeValuesAreRejected() {
+        val e = assertThrows(IllegalArgumentException::class.java) { service.negative() }
+        assertTrue(e.message!!.startsWith("@Timeout values must not be negative."))
+    }
+}
@@ -22,3 +22,4 @@ dependencyResolutionManagement {
 rootProject.name = "msnet"
 include(":app")
 include(":msnet")
+include(":msnet-compiler")